@@ -0,0 +1,77 @@
+package ubc.cs317.rtsp.client.headless;
+
+import java.io.PrintStream;
+
+import ubc.cs317.rtsp.client.model.listener.DiagnosticListener;
+
+/**
+ * A diagnostic listener that writes every event as a line of text, prefixed
+ * by the time in milliseconds since the log was created and the name of the
+ * stream. Several streams may share the same output.
+ */
+public class DiagnosticLog implements DiagnosticListener {
+
+	private static final double NANOS_PER_MILLISECOND = 1e6;
+
+	private final String name;
+	private final PrintStream out;
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * Creates a new log.
+	 *
+	 * @param name
+	 *            The name of the stream, written in every line.
+	 * @param out
+	 *            The stream where events are written.
+	 */
+	public DiagnosticLog(String name, PrintStream out) {
+		this.name = name;
+		this.out = out;
+	}
+
+	@Override
+	public void requestCompleted(String method, int cseq, int statusCode,
+			long durationNanos) {
+		log("request method=%s cseq=%d status=%d duration=%.2fms", method,
+				cseq, statusCode, durationNanos / NANOS_PER_MILLISECOND);
+	}
+
+	@Override
+	public void rebufferingStarted(String mediaType) {
+		log("rebuffering-start media=%s", mediaType);
+	}
+
+	@Override
+	public void rebufferingEnded(String mediaType, long durationNanos) {
+		log("rebuffering-end media=%s duration=%.2fms", mediaType,
+				durationNanos / NANOS_PER_MILLISECOND);
+	}
+
+	@Override
+	public void frameDropped(String mediaType, short sequenceNumber,
+			DropCause cause) {
+		log("frame-dropped media=%s seq=%d cause=%s", mediaType,
+				sequenceNumber & 0xFFFF, cause);
+	}
+
+	@Override
+	public void packetReordered(String mediaType, short sequenceNumber) {
+		log("packet-reordered media=%s seq=%d", mediaType,
+				sequenceNumber & 0xFFFF);
+	}
+
+	@Override
+	public void socketTimedOut(String socket, long timeoutMillis) {
+		log("socket-timeout socket=%s timeout=%dms", socket, timeoutMillis);
+	}
+
+	private void log(String format, Object... args) {
+		String line = String.format("%.3f %s ",
+				(System.nanoTime() - startTime) / NANOS_PER_MILLISECOND, name)
+				+ String.format(format, args);
+		synchronized (out) {
+			out.println(line);
+		}
+	}
+}
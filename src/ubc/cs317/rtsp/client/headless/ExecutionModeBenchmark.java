@@ -0,0 +1,222 @@
+package ubc.cs317.rtsp.client.headless;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.LatencyTrace;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.SessionRegistry;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * Compares the execution modes of the session loops. For each number of
+ * sessions given, the same video is played that many times, first with
+ * platform threads and then with virtual threads (if the JVM supports them),
+ * and the benchmark reports the number of platform threads, the heap used,
+ * the frame rate and the time from the arrival of a frame to its playout.
+ * The playout buffering is the same in both modes, so differences in that
+ * time come from scheduling the loops.
+ *
+ * <pre>
+ * Usage: ExecutionModeBenchmark [options] server port video [sessions...]
+ *   -duration SECONDS    time each configuration plays (default: 10)
+ *   sessions             numbers of sessions to compare (default: 1 100 1000)
+ * </pre>
+ */
+public class ExecutionModeBenchmark {
+
+	/**
+	 * Header of the lines returned by <code>run</code>. Threads are the
+	 * platform threads added by the sessions, and heap is the heap used by
+	 * them after a garbage collection. The latency is the time from the
+	 * arrival of a frame to its playout, in milliseconds.
+	 */
+	public static final String HEADER = String.format(
+			"%-8s %8s %8s %8s %10s %10s %8s %8s", "mode", "sessions",
+			"threads", "peak", "heap (MB)", "fps/sess", "p50 ms", "p99 ms");
+
+	private static final int[] DEFAULT_SESSION_COUNTS = { 1, 100, 1000 };
+	private static final long SETTLE_MILLIS = 2000;
+
+	private final String server;
+	private final int port;
+	private final String videoName;
+	private final long durationMillis;
+
+	/**
+	 * Creates a new benchmark.
+	 *
+	 * @param server
+	 *            The IP address or host name of the RTSP server.
+	 * @param port
+	 *            The port where the RTSP server is listening to.
+	 * @param videoName
+	 *            The video played by every session.
+	 * @param durationMillis
+	 *            The time each configuration plays, in milliseconds.
+	 */
+	public ExecutionModeBenchmark(String server, int port, String videoName,
+			long durationMillis) {
+		this.server = server;
+		this.port = port;
+		this.videoName = videoName;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Plays a number of sessions in an execution mode and returns a line
+	 * with the measurements. Every session is closed before returning.
+	 *
+	 * @param executionMode
+	 *            The kind of thread used for the session loops.
+	 * @param count
+	 *            The number of sessions.
+	 * @return The measurements, in the format of <code>HEADER</code>.
+	 * @throws RTSPException
+	 *             If a session could not be opened or played.
+	 * @throws InterruptedException
+	 *             If interrupted while the sessions are playing.
+	 */
+	public String run(ExecutionMode executionMode, int count)
+			throws RTSPException, InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long heapBefore = getUsedHeap();
+		int threadsBefore = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		List<Session> sessions = new ArrayList<Session>();
+		List<ThroughputMeter> meters = new ArrayList<ThroughputMeter>();
+		try {
+			for (int i = 0; i < count; i++) {
+				Session session = new Session(server, port, executionMode);
+				sessions.add(session);
+				ThroughputMeter meter = new ThroughputMeter(videoName + "#" + i,
+						new NullSessionListener());
+				meters.add(meter);
+				session.setLatencyTracing(true);
+				session.addSessionListener(meter);
+				session.open(videoName);
+				session.play();
+			}
+
+			Thread.sleep(SETTLE_MILLIS);
+			long frames = 0;
+			for (ThroughputMeter meter : meters)
+				frames -= meter.getFrames();
+			for (Session session : sessions)
+				session.getLatencyTrace().clear();
+			long start = System.nanoTime();
+			Thread.sleep(durationMillis);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			for (ThroughputMeter meter : meters)
+				frames += meter.getFrames();
+
+			int threadCount = threads.getThreadCount() - threadsBefore;
+			int peakThreadCount = threads.getPeakThreadCount() - threadsBefore;
+			long heap = getUsedHeap() - heapBefore;
+			long[] latencies = getLatencies(sessions);
+			return String.format("%-8s %8d %8d %8d %10.1f %10.1f %8.1f %8.1f",
+					executionMode.name().toLowerCase(), count, threadCount,
+					peakThreadCount, heap / (1024.0 * 1024.0), frames
+							/ seconds / count, getPercentile(latencies, 0.5),
+					getPercentile(latencies, 0.99));
+		} finally {
+			SessionRegistry.closeAll(sessions,
+					SessionRegistry.SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Merges the arrival to playout latencies of all sessions.
+	 */
+	private static long[] getLatencies(List<Session> sessions) {
+		long[] all = new long[0];
+		for (Session session : sessions) {
+			long[] latencies = session.getLatencyTrace().getLatencies(
+					LatencyTrace.Stage.RECEIVE, LatencyTrace.Stage.DEQUEUE);
+			int length = all.length;
+			all = Arrays.copyOf(all, length + latencies.length);
+			System.arraycopy(latencies, 0, all, length, latencies.length);
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	/**
+	 * Returns a percentile of sorted latencies, in milliseconds, or NaN if
+	 * there are none.
+	 */
+	private static double getPercentile(long[] latencies, double percentile) {
+		if (latencies.length == 0)
+			return Double.NaN;
+		int index = (int) Math.min(latencies.length - 1,
+				Math.round(percentile * (latencies.length - 1)));
+		return latencies[index] / 1e6;
+	}
+
+	private static long getUsedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		Thread.sleep(100);
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ExecutionModeBenchmark [-duration SECONDS]"
+				+ " server port video [sessions...]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		long duration = 10;
+		int arg = 0;
+		int port = 0;
+		int[] counts = DEFAULT_SESSION_COUNTS;
+		try {
+			if (arg < args.length && args[arg].equals("-duration")) {
+				if (++arg >= args.length)
+					usage();
+				duration = Long.parseLong(args[arg++]);
+			}
+			if (args.length - arg < 3)
+				usage();
+			port = Integer.parseInt(args[arg + 1]);
+			if (args.length - arg > 3) {
+				counts = new int[args.length - arg - 3];
+				for (int i = 0; i < counts.length; i++)
+					counts[i] = Integer.parseInt(args[arg + 3 + i]);
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+
+		ExecutionModeBenchmark benchmark = new ExecutionModeBenchmark(
+				args[arg], port, args[arg + 2], duration * 1000);
+		System.out.println(HEADER);
+		for (int count : counts) {
+			for (ExecutionMode executionMode : ExecutionMode.values()) {
+				if (!executionMode.isSupported()) {
+					System.out.println(executionMode.name().toLowerCase()
+							+ " threads are not supported by this JVM");
+					continue;
+				}
+				try {
+					System.out.println(benchmark.run(executionMode, count));
+				} catch (RTSPException e) {
+					System.out.println(executionMode.name().toLowerCase()
+							+ " with " + count + " sessions failed: "
+							+ e.getMessage());
+				}
+			}
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,406 @@
+package ubc.cs317.rtsp.client.headless;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.FrameStore;
+import ubc.cs317.rtsp.client.model.LatencyTrace;
+import ubc.cs317.rtsp.client.model.ListenerDispatcher;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.SessionRegistry;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+import ubc.cs317.rtsp.client.net.ReceptionStatistics;
+import ubc.cs317.rtsp.client.record.RecordingSessionListener;
+import ubc.cs317.rtsp.client.relay.RelayServer;
+
+/**
+ * A client without user interface. It opens one session for each video given
+ * in the command line, plays them all and routes their frames to a sink,
+ * reporting the throughput of each stream periodically. No AWT or Swing
+ * component is created, so it can run on machines without a display.
+ *
+ * <pre>
+ * Usage: HeadlessClient [options] server port video [video...]
+ *   -sink null           discard all frames (default)
+ *   -sink record:DIR     record every stream in directory DIR
+ *   -sink class:NAME     send frames to a new instance of SessionListener NAME
+ *   -sink relay:PORT     relay every stream to viewers connecting to PORT
+ *   -duration SECONDS    stop after the given time (default: run until killed)
+ *   -interval SECONDS    time between throughput reports (default: 5)
+ *   -threads MODE        platform or virtual threads (default: platform)
+ *   -transport MODE      unicast or multicast (default: unicast)
+ *   -buffer MODE         heap or offheap (default: heap)
+ *   -rcvbuf BYTES        socket receive buffer size (default: system)
+ *   -trace on|off        report the latency of each stage (default: off)
+ *   -events FILE         log diagnostic events to a file, or - for stderr
+ * </pre>
+ */
+public class HeadlessClient {
+
+	private final List<Session> sessions = new ArrayList<Session>();
+	private final List<ThroughputMeter> meters = new ArrayList<ThroughputMeter>();
+	private boolean multicast = false;
+	private boolean offHeap = false;
+	private int receiveBufferSize = 0;
+	private boolean latencyTracing = false;
+	private PrintStream events = null;
+	private RelayServer relay = null;
+
+	/**
+	 * Selects the transport used by the streams added after this call.
+	 *
+	 * @param multicast
+	 *            If <tt>true</tt>, streams are received through multicast,
+	 *            and streams of the same video share a single socket.
+	 */
+	public void setMulticast(boolean multicast) {
+		this.multicast = multicast;
+	}
+
+	/**
+	 * Selects where the streams added after this call buffer their frames.
+	 *
+	 * @param offHeap
+	 *            If <tt>true</tt>, frames are buffered off the Java heap.
+	 */
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Sets the socket receive buffer size of the streams added after this
+	 * call.
+	 *
+	 * @param receiveBufferSize
+	 *            The size in bytes, or 0 for the system default.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Enables the latency trace of the streams added after this call, which
+	 * is then printed with every report.
+	 *
+	 * @param latencyTracing
+	 *            If <tt>true</tt>, the latency of each stage is traced.
+	 */
+	public void setLatencyTracing(boolean latencyTracing) {
+		this.latencyTracing = latencyTracing;
+	}
+
+	/**
+	 * Selects where the diagnostic events of the streams added after this
+	 * call are logged, such as RTSP response times and rebuffering.
+	 *
+	 * @param events
+	 *            The stream where events are written, or null to not log
+	 *            events.
+	 */
+	public void setEventLog(PrintStream events) {
+		this.events = events;
+	}
+
+	/**
+	 * Relays the streams added after this call to the viewers of a relay
+	 * server, which then does not open sessions of its own for them. The
+	 * relay is closed with the client.
+	 *
+	 * @param relay
+	 *            The relay server, or null to not relay the streams.
+	 */
+	public void setRelay(RelayServer relay) {
+		this.relay = relay;
+	}
+
+	/**
+	 * Opens a new session for a video and starts playing it.
+	 *
+	 * @param server
+	 *            The IP address or host name of the RTSP server.
+	 * @param port
+	 *            The port where the RTSP server is listening to.
+	 * @param videoName
+	 *            The name of the video to be played.
+	 * @param sink
+	 *            The listener that receives the frames of the video.
+	 * @param executionMode
+	 *            The kind of thread used for the session loops.
+	 * @throws RTSPException
+	 *             If the session could not be opened or played.
+	 */
+	public void addStream(String server, int port, String videoName,
+			SessionListener sink, ExecutionMode executionMode)
+			throws RTSPException {
+
+		ThroughputMeter meter = new ThroughputMeter(videoName + "#"
+				+ meters.size(), sink);
+		Session session = new Session(server, port, executionMode);
+		sessions.add(session);
+		meters.add(meter);
+		if (sink instanceof RecordingSessionListener)
+			session.addSessionListener(meter,
+					ListenerDispatcher.OverflowPolicy.BLOCK,
+					ListenerDispatcher.DEFAULT_CAPACITY);
+		else
+			session.addSessionListener(meter);
+		session.setMulticast(multicast);
+		session.setOffHeap(offHeap);
+		session.setReceiveBufferSize(receiveBufferSize);
+		session.setLatencyTracing(latencyTracing);
+		if (events != null)
+			session.addDiagnosticListener(new DiagnosticLog(videoName + "#"
+					+ (meters.size() - 1), events));
+		session.open(videoName);
+		if (relay != null)
+			relay.publish(session);
+		try {
+			session.play();
+		} catch (RTSPException e) {
+			if (relay != null)
+				relay.unpublish(session);
+			throw e;
+		}
+	}
+
+	/**
+	 * Prints the throughput of every stream since the previous report, how
+	 * long its frames wait before the sink takes them, the frames discarded
+	 * because the sink fell behind, and the packets it lost so far.
+	 */
+	public void report() {
+		long frames = 0, bytes = 0;
+		for (int i = 0; i < meters.size(); i++) {
+			ThroughputMeter meter = meters.get(i);
+			String line = meter.report();
+			ListenerDispatcher dispatcher = sessions.get(i)
+					.getListenerDispatcher(meter);
+			if (dispatcher != null)
+				line += String.format(", lag %.1f ms, dropped %d frames",
+						dispatcher.getLag() / 1e6,
+						dispatcher.getDroppedFrames());
+			ReceptionStatistics statistics = sessions.get(i)
+					.getReceptionStatistics();
+			if (statistics == null)
+				System.out.println(line);
+			else
+				System.out.println(String.format(
+						"%s, lost %d packets (%.2f%%: %d local, %d network)",
+						line, statistics.getLostPackets(),
+						statistics.getLossRatio() * 100,
+						statistics.getLocalLostPackets(),
+						statistics.getNetworkLostPackets()));
+			LatencyTrace trace = sessions.get(i).getLatencyTrace();
+			if (trace != null)
+				System.out.println(trace.getBreakdown());
+			frames += meter.getFrames();
+			bytes += meter.getBytes();
+		}
+		System.out.println("all streams: " + frames + " frames, " + bytes
+				+ " bytes");
+	}
+
+	/**
+	 * Closes every session, in parallel, and every sink that holds resources.
+	 */
+	public void close() {
+		if (relay != null)
+			for (Session session : sessions)
+				relay.unpublish(session);
+		int aborted = SessionRegistry.closeAll(sessions,
+				SessionRegistry.SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		if (aborted > 0)
+			System.err.println(aborted
+					+ " sessions did not respond to TEARDOWN in time");
+		for (ThroughputMeter meter : meters) {
+			if (meter.getSink() instanceof RecordingSessionListener) {
+				try {
+					((RecordingSessionListener) meter.getSink()).close();
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
+				}
+			}
+		}
+		sessions.clear();
+		meters.clear();
+		if (relay != null)
+			relay.close();
+	}
+
+	/**
+	 * Creates the sink for a stream from its command line specification.
+	 *
+	 * @param specification
+	 *            The sink specification, as given to the <tt>-sink</tt>
+	 *            option.
+	 * @param streamName
+	 *            A name unique to the stream, used to name recordings.
+	 * @return A new sink.
+	 * @throws IllegalArgumentException
+	 *             If the specification is invalid.
+	 */
+	public static SessionListener createSink(String specification,
+			String streamName) {
+		if (specification.equals("null"))
+			return new NullSessionListener();
+		if (specification.startsWith("record:")) {
+			File directory = new File(specification.substring(7));
+			directory.mkdirs();
+			return new RecordingSessionListener(directory,
+					streamName.replaceAll("[^A-Za-z0-9_.-]", "_"));
+		}
+		if (specification.startsWith("class:")) {
+			try {
+				return (SessionListener) Class
+						.forName(specification.substring(6))
+						.getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Invalid sink class: "
+						+ specification.substring(6), e);
+			}
+		}
+		throw new IllegalArgumentException("Invalid sink: " + specification);
+	}
+
+	private static void usage() {
+		System.err
+				.println("Usage: HeadlessClient"
+						+ " [-sink null|record:DIR|class:NAME|relay:PORT]"
+						+ " [-duration SECONDS] [-interval SECONDS]"
+						+ " [-threads platform|virtual]"
+						+ " [-transport unicast|multicast]"
+						+ " [-buffer heap|offheap] [-rcvbuf BYTES]"
+						+ " [-trace on|off] [-events FILE]"
+						+ " server port video...");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		String sink = "null";
+		long duration = 0;
+		long interval = 5;
+		ExecutionMode executionMode = ExecutionMode.getDefault();
+		boolean multicast = false;
+		boolean offHeap = Boolean.getBoolean(FrameStore.OFF_HEAP_PROPERTY);
+		int receiveBufferSize = 0;
+		boolean latencyTracing = Boolean
+				.getBoolean(LatencyTrace.TRACE_PROPERTY);
+		String events = null;
+
+		int arg = 0;
+		try {
+			while (arg < args.length && args[arg].startsWith("-")) {
+				String option = args[arg++];
+				if (arg >= args.length)
+					usage();
+				if (option.equals("-sink"))
+					sink = args[arg++];
+				else if (option.equals("-duration"))
+					duration = Long.parseLong(args[arg++]);
+				else if (option.equals("-interval"))
+					interval = Math.max(1, Long.parseLong(args[arg++]));
+				else if (option.equals("-threads"))
+					executionMode = ExecutionMode.valueOf(args[arg++]
+							.toUpperCase());
+				else if (option.equals("-transport")) {
+					String transport = args[arg++];
+					if (!transport.equals("unicast")
+							&& !transport.equals("multicast"))
+						usage();
+					multicast = transport.equals("multicast");
+				} else if (option.equals("-buffer")) {
+					String buffer = args[arg++];
+					if (!buffer.equals("heap") && !buffer.equals("offheap"))
+						usage();
+					offHeap = buffer.equals("offheap");
+				} else if (option.equals("-rcvbuf")) {
+					receiveBufferSize = Integer.parseInt(args[arg++]);
+					if (receiveBufferSize < 0)
+						usage();
+				} else if (option.equals("-trace")) {
+					String trace = args[arg++];
+					if (!trace.equals("on") && !trace.equals("off"))
+						usage();
+					latencyTracing = trace.equals("on");
+				} else if (option.equals("-events"))
+					events = args[arg++];
+				else
+					usage();
+			}
+		} catch (IllegalArgumentException e) {
+			usage();
+		}
+		if (args.length - arg < 3)
+			usage();
+
+		String server = args[arg++];
+		int port = Integer.parseInt(args[arg++]);
+
+		final HeadlessClient client = new HeadlessClient();
+		if (sink.startsWith("relay:")) {
+			try {
+				RelayServer relay = new RelayServer(server, port,
+						Integer.parseInt(sink.substring(6)));
+				relay.start();
+				client.setRelay(relay);
+				System.err.println("Relaying on port " + relay.getPort());
+			} catch (NumberFormatException e) {
+				usage();
+			} catch (IOException e) {
+				System.err.println("Cannot open relay port: " + e.getMessage());
+				System.exit(1);
+			}
+			sink = "null";
+		}
+		client.setMulticast(multicast);
+		client.setOffHeap(offHeap);
+		client.setReceiveBufferSize(receiveBufferSize);
+		client.setLatencyTracing(latencyTracing);
+		if (events != null) {
+			try {
+				client.setEventLog(events.equals("-") ? System.err
+						: new PrintStream(new FileOutputStream(events), true));
+			} catch (IOException e) {
+				System.err.println("Cannot open " + events + ": "
+						+ e.getMessage());
+				System.exit(1);
+			}
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				client.report();
+				client.close();
+			}
+		});
+
+		try {
+			for (int i = arg; i < args.length; i++)
+				client.addStream(server, port, args[i],
+						createSink(sink, args[i] + "-" + (i - arg)),
+						executionMode);
+		} catch (RTSPException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+
+		long end = duration > 0 ? System.currentTimeMillis() + duration * 1000
+				: Long.MAX_VALUE;
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(Math.min(interval * 1000,
+					Math.max(1, end - System.currentTimeMillis())));
+			client.report();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,24 @@
+package ubc.cs317.rtsp.client.headless;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+
+/**
+ * A session listener that discards every event. Used as a frame sink when
+ * measuring how fast the client can receive and play frames by itself.
+ */
+public class NullSessionListener implements SessionListener {
+
+	@Override
+	public void exceptionThrown(RTSPException exception) {
+	}
+
+	@Override
+	public void frameReceived(Frame frame) {
+	}
+
+	@Override
+	public void videoNameChanged(String videoName) {
+	}
+}
@@ -0,0 +1,108 @@
+package ubc.cs317.rtsp.client.headless;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+
+/**
+ * A session listener that counts the frames and payload bytes of a stream
+ * before passing every event on to another listener (the actual sink).
+ */
+public class ThroughputMeter implements SessionListener {
+
+	private final String name;
+	private final SessionListener sink;
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	private long lastFrames = 0;
+	private long lastBytes = 0;
+	private long lastReportTime = System.nanoTime();
+
+	/**
+	 * Creates a new meter.
+	 *
+	 * @param name
+	 *            The name of the stream, used in reports.
+	 * @param sink
+	 *            The listener that receives all events after they are counted.
+	 */
+	public ThroughputMeter(String name, SessionListener sink) {
+		this.name = name;
+		this.sink = sink;
+	}
+
+	@Override
+	public void exceptionThrown(RTSPException exception) {
+		errors.incrementAndGet();
+		sink.exceptionThrown(exception);
+	}
+
+	@Override
+	public void frameReceived(Frame frame) {
+		if (frame != null) {
+			frames.incrementAndGet();
+			bytes.addAndGet(frame.getPayloadLength());
+		}
+		sink.frameReceived(frame);
+	}
+
+	@Override
+	public void videoNameChanged(String videoName) {
+		sink.videoNameChanged(videoName);
+	}
+
+	/**
+	 * Returns the listener that receives the events counted by this meter.
+	 *
+	 * @return The sink listener.
+	 */
+	public SessionListener getSink() {
+		return sink;
+	}
+
+	/**
+	 * Returns the total number of frames received so far.
+	 *
+	 * @return The number of frames.
+	 */
+	public long getFrames() {
+		return frames.get();
+	}
+
+	/**
+	 * Returns the total number of payload bytes received so far.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Builds a one-line report with the throughput since the previous report,
+	 * and the totals since the meter was created.
+	 *
+	 * @return A human-readable report line.
+	 */
+	public synchronized String report() {
+		long now = System.nanoTime();
+		long currentFrames = frames.get();
+		long currentBytes = bytes.get();
+		double seconds = Math.max(1e-9, (now - lastReportTime) / 1e9);
+
+		String line = String.format(
+				"%s: %.1f frames/s, %.1f KB/s (total %d frames, %d bytes, %d errors)",
+				name, (currentFrames - lastFrames) / seconds,
+				(currentBytes - lastBytes) / seconds / 1024, currentFrames,
+				currentBytes, errors.get());
+
+		lastFrames = currentFrames;
+		lastBytes = currentBytes;
+		lastReportTime = now;
+		return line;
+	}
+}
@@ -0,0 +1,319 @@
+package ubc.cs317.rtsp.client.log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * A structured event log, written asynchronously. Each record is an event
+ * name with a level, the context of the session that logged it (session
+ * identifier, video and CSeq) and a list of named fields. Logging a record
+ * only queues it in a bounded queue; a background thread writes queued
+ * records to the sink in batches, so threads that log never wait for the
+ * output. If the queue is full, the record is dropped and counted.
+ *
+ * Callers check <code>isEnabled</code> before building a record, so that a
+ * disabled level costs a single field read. The default log is configured by
+ * system properties: <code>rtsp.client.log</code> selects the output
+ * (<tt>stdout</tt>, the default, <tt>stderr</tt>, <tt>off</tt> or a file
+ * name), <code>rtsp.client.log.format</code> selects <tt>text</tt> (the
+ * default) or <tt>json</tt> (JSON lines), and
+ * <code>rtsp.client.log.level</code> selects the lowest level written
+ * (<tt>INFO</tt> by default).
+ */
+public class EventLog implements Runnable {
+
+	/**
+	 * Name of the system property that selects the output of the default log.
+	 */
+	public static final String LOG_PROPERTY = "rtsp.client.log";
+
+	/**
+	 * Name of the system property that selects the format of the default log.
+	 */
+	public static final String FORMAT_PROPERTY = "rtsp.client.log.format";
+
+	/**
+	 * Name of the system property that selects the level of the default log.
+	 */
+	public static final String LEVEL_PROPERTY = "rtsp.client.log.level";
+
+	/**
+	 * Number of records queued before new records are dropped.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * The levels of the records, from the least to the most severe.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static EventLog defaultLog;
+
+	private final LogSink sink;
+	private final BlockingQueue<Record> queue;
+	private final AtomicLong droppedRecords = new AtomicLong();
+	private volatile Level level;
+	private volatile Thread writer;
+	private long reportedDrops = 0;
+
+	/**
+	 * Creates a new log, and starts its writer thread if any level is
+	 * enabled.
+	 *
+	 * @param sink
+	 *            The sink where records are written, or null to write
+	 *            nothing.
+	 * @param level
+	 *            The lowest level written.
+	 * @param capacity
+	 *            The number of records queued before new records are dropped.
+	 */
+	public EventLog(LogSink sink, Level level, int capacity) {
+		this.sink = sink;
+		this.level = sink == null ? Level.OFF : level;
+		queue = new ArrayBlockingQueue<Record>(capacity);
+		if (this.level != Level.OFF) {
+			Thread thread = ExecutionMode.PLATFORM.newDaemonThreadFactory(
+					"Event log").newThread(this);
+			writer = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Returns the log shared by all sessions, creating it from the system
+	 * properties the first time. The records still queued when the process
+	 * exits are written by a shutdown hook.
+	 *
+	 * @return The default log.
+	 */
+	public static synchronized EventLog getDefault() {
+		if (defaultLog == null) {
+			defaultLog = createDefault();
+			if (defaultLog.writer != null) {
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						defaultLog.close();
+					}
+				});
+			}
+		}
+		return defaultLog;
+	}
+
+	private static EventLog createDefault() {
+		String output = System.getProperty(LOG_PROPERTY, "stdout").trim();
+		Level level;
+		try {
+			level = Level.valueOf(System.getProperty(LEVEL_PROPERTY, "INFO")
+					.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			level = Level.INFO;
+		}
+		OutputStream out;
+		if (output.equalsIgnoreCase("off")) {
+			out = null;
+			level = Level.OFF;
+		} else if (output.equalsIgnoreCase("stdout"))
+			out = System.out;
+		else if (output.equalsIgnoreCase("stderr"))
+			out = System.err;
+		else {
+			try {
+				out = new FileOutputStream(output, true);
+			} catch (IOException e) {
+				System.err.println("Cannot open log " + output + ": "
+						+ e.getMessage());
+				out = System.err;
+			}
+		}
+		boolean json = System.getProperty(FORMAT_PROPERTY, "text").trim()
+				.equalsIgnoreCase("json");
+		LogSink sink = out == null ? null : json ? new LogSink.JsonLines(out)
+				: new LogSink.Text(out);
+		return new EventLog(sink, level, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns an indication if records of a level are written.
+	 *
+	 * @param level
+	 *            The level of the record.
+	 * @return <tt>true</tt> if the record should be logged.
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0 && level != Level.OFF;
+	}
+
+	/**
+	 * Changes the lowest level written. A log created with level
+	 * <code>OFF</code> has no writer and stays off.
+	 *
+	 * @param level
+	 *            The new level.
+	 */
+	public void setLevel(Level level) {
+		if (writer != null)
+			this.level = level;
+	}
+
+	/**
+	 * Queues a record to be written, if its level is enabled.
+	 *
+	 * @param level
+	 *            The level of the record.
+	 * @param event
+	 *            The name of the event, such as <tt>rtsp.request</tt>.
+	 * @param sessionID
+	 *            The RTSP session identifier, or null if not known.
+	 * @param videoName
+	 *            The name of the video, or null if not known.
+	 * @param cseq
+	 *            The CSeq of the RTSP exchange, or -1 if not applicable.
+	 * @param fields
+	 *            Alternating field names and values.
+	 */
+	public void log(Level level, String event, String sessionID,
+			String videoName, int cseq, Object... fields) {
+		if (!isEnabled(level))
+			return;
+		Record record = new Record(System.currentTimeMillis(), level, event,
+				sessionID, videoName, cseq, fields);
+		if (!queue.offer(record))
+			droppedRecords.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of records dropped because the queue was full.
+	 *
+	 * @return The number of dropped records.
+	 */
+	public long getDroppedRecords() {
+		return droppedRecords.get();
+	}
+
+	/**
+	 * Stops the writer thread, after writing all queued records.
+	 */
+	public void close() {
+		Thread thread = writer;
+		writer = null;
+		level = Level.OFF;
+		if (thread == null)
+			return;
+		thread.interrupt();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		List<Record> batch = new ArrayList<Record>();
+		try {
+			while (writer == Thread.currentThread()) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				write(batch);
+			}
+		} catch (InterruptedException e) {
+			// Log was closed
+		}
+		queue.drainTo(batch);
+		write(batch);
+	}
+
+	private void write(List<Record> batch) {
+		try {
+			for (Record record : batch)
+				sink.write(record);
+			long dropped = droppedRecords.get();
+			if (dropped > reportedDrops) {
+				sink.write(new Record(System.currentTimeMillis(), Level.WARN,
+						"log.dropped", null, null, -1, new Object[] {
+								"records", dropped - reportedDrops }));
+				reportedDrops = dropped;
+			}
+			sink.flush();
+		} catch (IOException e) {
+			// Nowhere left to report it
+		}
+		batch.clear();
+	}
+
+	/**
+	 * A single record of the log.
+	 */
+	public static class Record {
+
+		private final long time;
+		private final Level level;
+		private final String event;
+		private final String sessionID;
+		private final String videoName;
+		private final int cseq;
+		private final Object[] fields;
+
+		Record(long time, Level level, String event, String sessionID,
+				String videoName, int cseq, Object[] fields) {
+			this.time = time;
+			this.level = level;
+			this.event = event;
+			this.sessionID = sessionID;
+			this.videoName = videoName;
+			this.cseq = cseq;
+			this.fields = fields;
+		}
+
+		/**
+		 * Returns the time the record was logged.
+		 *
+		 * @return The time in milliseconds since the epoch.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		public String getEvent() {
+			return event;
+		}
+
+		public String getSessionID() {
+			return sessionID;
+		}
+
+		public String getVideoName() {
+			return videoName;
+		}
+
+		public int getCSeq() {
+			return cseq;
+		}
+
+		/**
+		 * Returns the fields of the record, as alternating names and values.
+		 *
+		 * @return The fields; the array must not be modified.
+		 */
+		public Object[] getFields() {
+			return fields;
+		}
+	}
+}
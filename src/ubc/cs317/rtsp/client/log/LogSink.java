@@ -0,0 +1,149 @@
+package ubc.cs317.rtsp.client.log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The destination of the records of an event log. Sinks are only called by
+ * the writer thread of the log, so they need no synchronization.
+ */
+public interface LogSink {
+
+	/**
+	 * Writes a record, possibly buffered until the next flush.
+	 */
+	public void write(EventLog.Record record) throws IOException;
+
+	/**
+	 * Writes any buffered records to the output.
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * A sink that writes one line of text per record: the time, level and
+	 * event, followed by the context and fields as <tt>name=value</tt>
+	 * pairs.
+	 */
+	public static class Text implements LogSink {
+
+		private final Writer out;
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS");
+		private final Date date = new Date();
+
+		public Text(OutputStream out) {
+			this.out = new BufferedWriter(new OutputStreamWriter(out,
+					Charset.forName("UTF-8")));
+		}
+
+		@Override
+		public void write(EventLog.Record record) throws IOException {
+			date.setTime(record.getTime());
+			out.write(dateFormat.format(date));
+			out.write(' ');
+			out.write(record.getLevel().name());
+			out.write(' ');
+			out.write(record.getEvent());
+			if (record.getSessionID() != null)
+				out.write(" session=" + record.getSessionID());
+			if (record.getVideoName() != null)
+				out.write(" video=" + record.getVideoName());
+			if (record.getCSeq() >= 0)
+				out.write(" cseq=" + record.getCSeq());
+			Object[] fields = record.getFields();
+			for (int i = 0; i + 1 < fields.length; i += 2)
+				out.write(" " + fields[i] + "=" + fields[i + 1]);
+			out.write(System.lineSeparator());
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+
+	/**
+	 * A sink that writes one JSON object per line (JSON lines), with the
+	 * time in milliseconds since the epoch, the level, the event, the
+	 * context and the fields as members. Numbers and booleans are written as
+	 * such; any other value is written as a string.
+	 */
+	public static class JsonLines implements LogSink {
+
+		private final Writer out;
+		private final StringBuilder line = new StringBuilder();
+
+		public JsonLines(OutputStream out) {
+			this.out = new BufferedWriter(new OutputStreamWriter(out,
+					Charset.forName("UTF-8")));
+		}
+
+		@Override
+		public void write(EventLog.Record record) throws IOException {
+			line.setLength(0);
+			line.append("{\"time\":").append(record.getTime());
+			appendMember("level", record.getLevel().name());
+			appendMember("event", record.getEvent());
+			if (record.getSessionID() != null)
+				appendMember("session", record.getSessionID());
+			if (record.getVideoName() != null)
+				appendMember("video", record.getVideoName());
+			if (record.getCSeq() >= 0)
+				appendMember("cseq", record.getCSeq());
+			Object[] fields = record.getFields();
+			for (int i = 0; i + 1 < fields.length; i += 2)
+				appendMember(String.valueOf(fields[i]), fields[i + 1]);
+			line.append("}\n");
+			out.write(line.toString());
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		private void appendMember(String name, Object value) {
+			line.append(',');
+			appendString(name);
+			line.append(':');
+			if (value instanceof Boolean
+					|| (value instanceof Number && isFinite((Number) value)))
+				line.append(value);
+			else if (value == null)
+				line.append("null");
+			else
+				appendString(value.toString());
+		}
+
+		private static boolean isFinite(Number value) {
+			double d = value.doubleValue();
+			return !Double.isNaN(d) && !Double.isInfinite(d);
+		}
+
+		private void appendString(String value) {
+			line.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\')
+					line.append('\\').append(c);
+				else if (c == '\n')
+					line.append("\\n");
+				else if (c == '\r')
+					line.append("\\r");
+				else if (c == '\t')
+					line.append("\\t");
+				else if (c < 0x20)
+					line.append(String.format("\\u%04x", (int) c));
+				else
+					line.append(c);
+			}
+			line.append('"');
+		}
+	}
+}
@@ -15,17 +15,26 @@ package ubc.cs317.rtsp.client.model;
 
 import java.awt.Image;
 import java.awt.Toolkit;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
- * This class represents an individual frame in a video stream.
+ * This class represents an individual frame in a video stream. Frames are
+ * immutable. A frame either owns its payload, or is a view of a payload kept
+ * in a <code>FrameStore</code>, which is never modified while it is
+ * referenced.
  */
 public class Frame implements Comparable<Frame> {
 
-	private byte payloadType;
-	private boolean marker;
-	private short sequenceNumber;
-	private int timestamp;
-	private byte[] payload;
+	private final byte payloadType;
+	private final boolean marker;
+	private final short sequenceNumber;
+	private final int timestamp;
+	private final byte[] payload;
+	private final int offset;
+	private final int length;
 
 	/**
 	 * Creates a new frame.
@@ -61,6 +70,24 @@ public class Frame implements Comparable<Frame> {
 
 		this.payload = new byte[length];
 		System.arraycopy(payload, offset, this.payload, 0, length);
+		this.offset = 0;
+		this.length = length;
+	}
+
+	/**
+	 * Creates a new frame that shares its payload with the caller, instead of
+	 * copying it. The payload must not be modified afterwards.
+	 */
+	Frame(byte[] data, int offset, int length, byte payloadType,
+			boolean marker, short sequenceNumber, int timestamp) {
+
+		this.payloadType = payloadType;
+		this.marker = marker;
+		this.sequenceNumber = sequenceNumber;
+		this.timestamp = timestamp;
+		this.payload = data;
+		this.offset = offset;
+		this.length = length;
 	}
 
 	/**
@@ -135,7 +162,31 @@ public class Frame implements Comparable<Frame> {
 	 * @return A byte array corresponding to the raw data of the frame.
 	 */
 	public byte[] getPayload() {
-		return payload.clone();
+		return Arrays.copyOfRange(payload, offset, offset + length);
+	}
+
+	/**
+	 * Returns a read-only buffer with the raw data included in the frame.
+	 * Unlike <code>getPayload</code>, the data is not copied, so this method
+	 * should be preferred when the payload is only written somewhere else.
+	 * 
+	 * @return A read-only ByteBuffer corresponding to the raw data of the
+	 *         frame.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(payload, offset, length).slice()
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a stream that reads the raw data included in the frame. The data
+	 * is not copied, so frames shared by several consumers can be decoded by
+	 * each one without an extra copy of the payload.
+	 * 
+	 * @return An InputStream with the raw data of the frame.
+	 */
+	public InputStream getPayloadStream() {
+		return new ByteArrayInputStream(payload, offset, length);
 	}
 
 	/**
@@ -145,7 +196,22 @@ public class Frame implements Comparable<Frame> {
 	 * @return The length of the payload.
 	 */
 	public int getPayloadLength() {
-		return payload.length;
+		return length;
+	}
+
+	/**
+	 * Returns a frame with the same contents that owns its payload. A frame
+	 * that is a view of a frame store keeps the whole block of the store
+	 * holding its payload in memory, so frames kept for a long time should be
+	 * detached first.
+	 * 
+	 * @return This frame if it owns its payload, or a copy otherwise.
+	 */
+	public Frame detach() {
+		if (offset == 0 && length == payload.length)
+			return this;
+		return new Frame(payloadType, marker, sequenceNumber, timestamp,
+				payload, offset, length);
 	}
 
 	/**
@@ -154,7 +220,7 @@ public class Frame implements Comparable<Frame> {
 	 * @return An <code>Image</code> object corresponding to the frame contents.
 	 */
 	public Image getImage() {
-		return Toolkit.getDefaultToolkit().createImage(getPayload());
+		return Toolkit.getDefaultToolkit().createImage(payload, offset, length);
 	}
 
 	@Override
@@ -0,0 +1,183 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recent frame, and the most recent frame marked as
+ * important (key frame), of each video played. When a video is opened again,
+ * the cached frame can be shown right away while the stream is set up and
+ * buffered. The cache is bounded by the total size of the payloads it holds;
+ * when the bound is exceeded, the videos least recently used are evicted.
+ * 
+ * Frames are stored as they are played, which may be views of the buffer of
+ * a session, so storing a frame never copies its payload. A cached frame is
+ * only detached from the buffer when it is handed out, or when the session
+ * playing the video is done with it.
+ */
+public class FrameCache {
+
+	/**
+	 * Default maximum size of the shared cache, in bytes.
+	 */
+	public static final long DEFAULT_MAXIMUM_SIZE = 32L * 1024 * 1024;
+
+	private static FrameCache instance = null;
+
+	private final long maximumSize;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long size = 0;
+
+	/**
+	 * Creates a new, empty cache.
+	 *
+	 * @param maximumSize
+	 *            The maximum total size of the cached payloads, in bytes.
+	 */
+	public FrameCache(long maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Returns the cache shared by all sessions, creating it with the default
+	 * size the first time this method is called.
+	 *
+	 * @return The shared frame cache.
+	 */
+	public static synchronized FrameCache getInstance() {
+		if (instance == null)
+			instance = new FrameCache(DEFAULT_MAXIMUM_SIZE);
+		return instance;
+	}
+
+	/**
+	 * Returns the key that identifies a video in the cache.
+	 *
+	 * @param server
+	 *            The host name or IP address of the RTSP server.
+	 * @param port
+	 *            The port of the RTSP server.
+	 * @param videoName
+	 *            The name of the video.
+	 * @return The cache key of the video.
+	 */
+	public static String getKey(String server, int port, String videoName) {
+		return server + ":" + port + "/" + videoName;
+	}
+
+	/**
+	 * Stores a frame as the most recent frame of a video. If the frame is
+	 * marked as important, it also becomes the most recent key frame. The
+	 * frame is kept as it is, without copying its payload.
+	 *
+	 * @param key
+	 *            The cache key of the video.
+	 * @param frame
+	 *            The frame to be stored.
+	 */
+	public synchronized void put(String key, Frame frame) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+		size -= entry.size();
+		entry.lastFrame = frame;
+		if (frame.isMarkerOn())
+			entry.lastKeyFrame = frame;
+		size += entry.size();
+		evict();
+	}
+
+	/**
+	 * Returns the most recent frame of a video.
+	 *
+	 * @param key
+	 *            The cache key of the video.
+	 * @return The most recent frame, or null if the video is not cached.
+	 */
+	public synchronized Frame getLastFrame(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		entry.detach();
+		return entry.lastFrame;
+	}
+
+	/**
+	 * Returns the most recent key frame of a video.
+	 *
+	 * @param key
+	 *            The cache key of the video.
+	 * @return The most recent key frame, or null if the video is not cached or
+	 *         no key frame was received.
+	 */
+	public synchronized Frame getLastKeyFrame(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		entry.detach();
+		return entry.lastKeyFrame;
+	}
+
+	/**
+	 * Replaces the cached frames of a video by frames that own their
+	 * payloads, so that they no longer keep the buffer of the session that
+	 * played them in memory. This is called when a session closes the video.
+	 *
+	 * @param key
+	 *            The cache key of the video.
+	 */
+	public synchronized void detach(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null)
+			entry.detach();
+	}
+
+	/**
+	 * Returns the total size of the payloads held by the cache.
+	 *
+	 * @return The size of the cache, in bytes.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Removes the least recently used videos until the cache fits its maximum
+	 * size. Must be called with the lock held.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+				.iterator();
+		while (size > maximumSize && iterator.hasNext()) {
+			size -= iterator.next().getValue().size();
+			iterator.remove();
+		}
+	}
+
+	private static class Entry {
+
+		private Frame lastFrame;
+		private Frame lastKeyFrame;
+
+		private void detach() {
+			boolean same = lastKeyFrame == lastFrame;
+			if (lastFrame != null)
+				lastFrame = lastFrame.detach();
+			if (same)
+				lastKeyFrame = lastFrame;
+			else if (lastKeyFrame != null)
+				lastKeyFrame = lastKeyFrame.detach();
+		}
+
+		private long size() {
+			long total = lastFrame == null ? 0 : lastFrame.getPayloadLength();
+			if (lastKeyFrame != null && lastKeyFrame != lastFrame)
+				total += lastKeyFrame.getPayloadLength();
+			return total;
+		}
+	}
+}
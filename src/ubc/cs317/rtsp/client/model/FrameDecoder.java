@@ -0,0 +1,180 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * This class decodes the payload of frames into images, optionally at a
+ * reduced resolution. When the image is to be shown in an area smaller than
+ * the source, only every n-th pixel in each direction is decoded (source
+ * subsampling), which costs a fraction of a full decode. The resulting image
+ * is never smaller than the target area, so it can still be scaled down to
+ * the exact size without visible loss.
+ *
+ * The image format of a frame is selected by its RTP payload type. Static
+ * payload types are known in advance; dynamic payload types are mapped to an
+ * encoding with <code>setEncoding</code>, usually from the session
+ * description of the stream. Frames of unknown payload types are decoded as
+ * JPEG.
+ *
+ * A decoder reuses the same image reader for all frames of a format, and its
+ * methods are synchronized, so it is best used by a single thread.
+ */
+public class FrameDecoder {
+
+	private static final String DEFAULT_FORMAT = "jpeg";
+	private static final int JPEG_PAYLOAD_TYPE = 26;
+
+	private final Map<Integer, String> formats = new HashMap<Integer, String>();
+	private final Map<String, ImageReader> readers = new HashMap<String, ImageReader>();
+
+	/**
+	 * Maps an RTP payload type to an encoding, so that frames of this payload
+	 * type are decoded with the corresponding image format.
+	 *
+	 * @param payloadType
+	 *            The RTP payload type.
+	 * @param encodingName
+	 *            The encoding name, as given in the session description (such
+	 *            as <tt>JPEG</tt>), or null to remove the mapping.
+	 */
+	public synchronized void setEncoding(int payloadType, String encodingName) {
+		String format = getImageFormat(encodingName);
+		if (format == null)
+			formats.remove(payloadType);
+		else
+			formats.put(payloadType, format);
+	}
+
+	/**
+	 * Decodes a frame at full resolution.
+	 *
+	 * @param frame
+	 *            The frame to be decoded.
+	 * @return An image with the frame contents.
+	 * @throws IOException
+	 *             If the payload is not a valid image.
+	 */
+	public BufferedImage decode(Frame frame) throws IOException {
+		return decode(frame, 0, 0);
+	}
+
+	/**
+	 * Decodes a frame at the lowest resolution that still covers a target
+	 * area, keeping the aspect ratio of the source.
+	 *
+	 * @param frame
+	 *            The frame to be decoded.
+	 * @param targetWidth
+	 *            The width of the area where the image will be shown, or 0 if
+	 *            the width is not constrained.
+	 * @param targetHeight
+	 *            The height of the area where the image will be shown, or 0 if
+	 *            the height is not constrained.
+	 * @return An image with the frame contents.
+	 * @throws IOException
+	 *             If the payload is not a valid image.
+	 */
+	public synchronized BufferedImage decode(Frame frame, int targetWidth,
+			int targetHeight) throws IOException {
+
+		ImageInputStream input = new MemoryCacheImageInputStream(
+				frame.getPayloadStream());
+		try {
+			ImageReader imageReader = getReader(getFormat(frame
+					.getPayloadType()));
+			imageReader.setInput(input, true, true);
+			ImageReadParam param = imageReader.getDefaultReadParam();
+			int subsampling = getSubsampling(imageReader.getWidth(0),
+					imageReader.getHeight(0), targetWidth, targetHeight);
+			if (subsampling > 1)
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			return imageReader.read(0, param);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Releases the image readers used by this decoder.
+	 */
+	public synchronized void dispose() {
+		for (ImageReader reader : readers.values())
+			reader.dispose();
+		readers.clear();
+	}
+
+	/**
+	 * Returns the image format used to decode an encoding.
+	 *
+	 * @param encodingName
+	 *            The encoding name, as given in the session description.
+	 * @return The image format name, or null if the encoding is not an image
+	 *         format that can be decoded.
+	 */
+	public static String getImageFormat(String encodingName) {
+		if (encodingName == null)
+			return null;
+		String name = encodingName.toLowerCase();
+		if (name.equals("jpeg") || name.equals("mjpeg") || name.equals("jpg"))
+			return "jpeg";
+		if (name.equals("png") || name.equals("gif") || name.equals("bmp"))
+			return name;
+		return null;
+	}
+
+	/**
+	 * Computes the largest subsampling factor for which an image of the source
+	 * size still covers the target area when scaled to fit it.
+	 *
+	 * @param sourceWidth
+	 *            The width of the source image.
+	 * @param sourceHeight
+	 *            The height of the source image.
+	 * @param targetWidth
+	 *            The width of the target area, or 0 if not constrained.
+	 * @param targetHeight
+	 *            The height of the target area, or 0 if not constrained.
+	 * @return The subsampling factor, 1 meaning a full decode.
+	 */
+	public static int getSubsampling(int sourceWidth, int sourceHeight,
+			int targetWidth, int targetHeight) {
+		double ratio = 0;
+		if (targetWidth > 0)
+			ratio = (double) sourceWidth / targetWidth;
+		if (targetHeight > 0)
+			ratio = Math.max(ratio, (double) sourceHeight / targetHeight);
+		return Math.max(1, (int) ratio);
+	}
+
+	private String getFormat(int payloadType) {
+		String format = formats.get(payloadType);
+		if (format != null)
+			return format;
+		if (payloadType == JPEG_PAYLOAD_TYPE)
+			return "jpeg";
+		return DEFAULT_FORMAT;
+	}
+
+	private ImageReader getReader(String format) throws IOException {
+		ImageReader reader = readers.get(format);
+		if (reader == null) {
+			Iterator<ImageReader> available = ImageIO
+					.getImageReadersByFormatName(format);
+			if (!available.hasNext())
+				throw new IOException("No " + format + " decoder available.");
+			reader = available.next();
+			readers.put(format, reader);
+		}
+		return reader;
+	}
+}
@@ -0,0 +1,399 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact store of buffered frames, ordered by sequence number. Instead of
+ * keeping one Frame object and one payload array per frame, the header fields
+ * of all frames are packed in primitive arrays indexed by sequence number, and
+ * the payloads are appended to large shared blocks. Frames are returned as
+ * views over these blocks, created only when a frame is taken out of the
+ * store. A deep buffer is thus held by a handful of large arrays, which the
+ * garbage collector traces at a fraction of the cost of thousands of small
+ * objects.
+ * 
+ * Blocks are never written again once a payload is appended, so views remain
+ * valid after their frame is removed. A block is freed when no frame in the
+ * store and no view uses it anymore.
+ * 
+ * Blocks may also be kept off the Java heap, in direct buffers, so that the
+ * payloads of a deep buffer are neither traced nor copied by the garbage
+ * collector. Off-heap frames are copied to the heap as they are taken out of
+ * the store, and a block is released as soon as its last frame is taken out
+ * or the store is cleared: it goes back to a pool shared by all stores and is
+ * reused by the next block allocated, instead of waiting for the garbage
+ * collector to free it.
+ * 
+ * Sequence numbers are extended beyond 16 bits, so frames stay in order when
+ * the sequence number wraps around. This class is not thread-safe.
+ */
+public class FrameStore {
+
+	/**
+	 * Default size of the blocks holding the payloads, in bytes.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+	/**
+	 * System property that, if set to <tt>true</tt>, keeps the buffered
+	 * frames of new sessions off the Java heap.
+	 */
+	public static final String OFF_HEAP_PROPERTY = "rtsp.client.buffer.offheap";
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int EMPTY = Integer.MIN_VALUE;
+	private static final int MAXIMUM_PAYLOAD_LENGTH = 0xFFFFFF;
+	private static final int MAXIMUM_FREE_BLOCKS = 64;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> freeBlocks = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger freeBlockCount = new AtomicInteger();
+
+	private final int blockSize;
+	private final boolean offHeap;
+
+	// Extended sequence number, packed header fields and payload length,
+	// block and position of each slot, indexed by extended sequence number
+	// modulo capacity
+	private int[] sequences;
+	private long[] headers;
+	private Block[] blocks;
+	private int[] offsets;
+	private int mask;
+
+	private Block block;
+
+	private int count = 0;
+	private long bytes = 0;
+	private int first;
+	private int last;
+	private int floor = EMPTY;
+	private int lastSequence = EMPTY;
+	private Frame head;
+
+	/**
+	 * Creates a new, empty store on the heap with the default block size.
+	 */
+	public FrameStore() {
+		this(DEFAULT_BLOCK_SIZE, false);
+	}
+
+	/**
+	 * Creates a new, empty store.
+	 * 
+	 * @param blockSize
+	 *            The size of the blocks holding the payloads, in bytes.
+	 *            Payloads larger than a block get a block of their own.
+	 * @param offHeap
+	 *            If <tt>true</tt>, payloads are kept in direct buffers, off
+	 *            the Java heap.
+	 */
+	public FrameStore(int blockSize, boolean offHeap) {
+		this.blockSize = blockSize;
+		this.offHeap = offHeap;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns an indication if the payloads are kept off the Java heap.
+	 * 
+	 * @return <tt>true</tt> if the blocks are direct buffers.
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Adds a copy of a frame to the store. Frames older than the most recent
+	 * frame taken out of the store, or already in the store, are rejected, as
+	 * are payloads of 16 MB or more.
+	 * 
+	 * @param frame
+	 *            The frame to be added.
+	 * @return <tt>true</tt> if the frame was added.
+	 */
+	public boolean add(Frame frame) {
+		int length = frame.getPayloadLength();
+		if (length > MAXIMUM_PAYLOAD_LENGTH)
+			return false;
+		int sequence = extend(frame.getSequenceNumber());
+		if (sequence < floor)
+			return false;
+		if (count > 0) {
+			int low = Math.min(first, sequence);
+			int high = Math.max(last, sequence);
+			if (high - low >= sequences.length)
+				grow(high - low + 1);
+			if (sequences[slot(sequence)] == sequence)
+				return false;
+		}
+
+		if (block == null || block.position + length > block.capacity) {
+			if (block != null && block.frames == 0)
+				release(block);
+			block = new Block(Math.max(blockSize, length), offHeap);
+		}
+
+		int slot = slot(sequence);
+		sequences[slot] = sequence;
+		headers[slot] = pack(frame, length);
+		blocks[slot] = block;
+		offsets[slot] = block.position;
+		block.append(frame.getPayloadBuffer());
+
+		if (count == 0 || sequence < first) {
+			first = sequence;
+			head = null;
+		}
+		if (count == 0 || sequence > last)
+			last = sequence;
+		count++;
+		bytes += length;
+		return true;
+	}
+
+	/**
+	 * Returns the frame with the lowest sequence number, without removing it.
+	 * 
+	 * @return A view of the first frame, or a copy if the store is off the
+	 *         heap, or null if the store is empty.
+	 */
+	public Frame peek() {
+		if (count == 0)
+			return null;
+		if (head == null)
+			head = view(slot(first));
+		return head;
+	}
+
+	/**
+	 * Removes the frame with the lowest sequence number. Frames older than it
+	 * are rejected from now on.
+	 * 
+	 * @return A view of the removed frame, or a copy if the store is off the
+	 *         heap, or null if the store is empty.
+	 */
+	public Frame poll() {
+		Frame frame = peek();
+		if (frame == null)
+			return null;
+		int slot = slot(first);
+		Block removed = blocks[slot];
+		if (--removed.frames == 0 && removed != block)
+			release(removed);
+		sequences[slot] = EMPTY;
+		blocks[slot] = null;
+		bytes -= headers[slot] >>> 40;
+		floor = first + 1;
+		count--;
+		head = null;
+		if (count > 0) {
+			do
+				first++;
+			while (sequences[slot(first)] != first);
+		}
+		return frame;
+	}
+
+	/**
+	 * Removes all frames, releasing all blocks of an off-heap store. The next
+	 * frame added starts a new sequence, so frames of any sequence number are
+	 * accepted again.
+	 */
+	public void clear() {
+		Block current = block;
+		block = null;
+		for (Block used : blocks) {
+			if (used != null && used.frames > 0) {
+				used.frames = 0;
+				release(used);
+				if (used == current)
+					current = null;
+			}
+		}
+		if (current != null)
+			release(current);
+		Arrays.fill(sequences, EMPTY);
+		Arrays.fill(blocks, null);
+		count = 0;
+		bytes = 0;
+		floor = EMPTY;
+		lastSequence = EMPTY;
+		head = null;
+	}
+
+	/**
+	 * Returns the number of frames in the store.
+	 * 
+	 * @return The number of frames.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns an indication if the store has no frames.
+	 * 
+	 * @return <tt>true</tt> if the store is empty.
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Returns the total size of the payloads of the frames in the store. The
+	 * memory used by the blocks may be larger, since a block is only freed
+	 * once all its frames are removed.
+	 * 
+	 * @return The number of payload bytes.
+	 */
+	public long getBufferedBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Extends a 16-bit sequence number to the value closest to the previous
+	 * extended sequence number.
+	 */
+	private int extend(short sequenceNumber) {
+		int sequence;
+		if (lastSequence == EMPTY)
+			sequence = sequenceNumber & 0xFFFF;
+		else
+			sequence = lastSequence
+					+ (short) (sequenceNumber - (short) lastSequence);
+		lastSequence = sequence;
+		return sequence;
+	}
+
+	private int slot(int sequence) {
+		return sequence & mask;
+	}
+
+	/**
+	 * Packs the timestamp (bits 0-31), payload type (bits 32-38), marker (bit
+	 * 39) and payload length (bits 40-63) of a frame in a long.
+	 */
+	private static long pack(Frame frame, int length) {
+		return (frame.getTimestamp() & 0xFFFFFFFFL)
+				| (long) (frame.getPayloadType() & 0x7F) << 32
+				| (frame.isMarkerOn() ? 1L << 39 : 0) | (long) length << 40;
+	}
+
+	/**
+	 * Returns the frame in a slot, as a view of its block if the block is on
+	 * the heap, or as a copy otherwise.
+	 */
+	private Frame view(int slot) {
+		long header = headers[slot];
+		int length = (int) (header >>> 40);
+		Block used = blocks[slot];
+		byte[] data = used.array;
+		int offset = offsets[slot];
+		if (data == null) {
+			data = new byte[length];
+			ByteBuffer payload = used.buffer.duplicate();
+			payload.position(offset);
+			payload.get(data);
+			offset = 0;
+		}
+		return new Frame(data, offset, length, (byte) (header >>> 32 & 0x7F),
+				(header & 1L << 39) != 0, (short) sequences[slot], (int) header);
+	}
+
+	/**
+	 * Returns an off-heap block to the shared pool, if it has the default
+	 * size and the pool is not full. Blocks on the heap are left to the
+	 * garbage collector, since views may still use them.
+	 */
+	private static void release(Block released) {
+		ByteBuffer buffer = released.buffer;
+		if (buffer == null || buffer.capacity() != DEFAULT_BLOCK_SIZE)
+			return;
+		if (freeBlockCount.incrementAndGet() <= MAXIMUM_FREE_BLOCKS)
+			freeBlocks.offer(buffer);
+		else
+			freeBlockCount.decrementAndGet();
+	}
+
+	private void allocate(int capacity) {
+		sequences = new int[capacity];
+		Arrays.fill(sequences, EMPTY);
+		headers = new long[capacity];
+		blocks = new Block[capacity];
+		offsets = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Grows the arrays to hold at least a given range of sequence numbers,
+	 * moving every frame to its slot in the new arrays.
+	 */
+	private void grow(int range) {
+		int capacity = sequences.length;
+		while (capacity < range)
+			capacity <<= 1;
+		int[] oldSequences = sequences;
+		long[] oldHeaders = headers;
+		Block[] oldBlocks = blocks;
+		int[] oldOffsets = offsets;
+		allocate(capacity);
+		for (int i = 0; i < oldSequences.length; i++) {
+			if (oldSequences[i] == EMPTY)
+				continue;
+			int slot = slot(oldSequences[i]);
+			sequences[slot] = oldSequences[i];
+			headers[slot] = oldHeaders[i];
+			blocks[slot] = oldBlocks[i];
+			offsets[slot] = oldOffsets[i];
+		}
+	}
+
+	/**
+	 * A block of payloads, on the heap or in a direct buffer, with the number
+	 * of frames of the store it still holds.
+	 */
+	private static class Block {
+
+		private final byte[] array;
+		private final ByteBuffer buffer;
+		private final int capacity;
+		private int position = 0;
+		private int frames = 0;
+
+		private Block(int capacity, boolean offHeap) {
+			this.capacity = capacity;
+			if (!offHeap) {
+				array = new byte[capacity];
+				buffer = null;
+			} else {
+				array = null;
+				ByteBuffer free = capacity == DEFAULT_BLOCK_SIZE ? freeBlocks
+						.poll() : null;
+				if (free != null)
+					freeBlockCount.decrementAndGet();
+				else
+					free = ByteBuffer.allocateDirect(capacity);
+				buffer = free;
+			}
+		}
+
+		/**
+		 * Copies a payload to the end of the block.
+		 */
+		private void append(ByteBuffer payload) {
+			int length = payload.remaining();
+			if (array != null) {
+				payload.get(array, position, length);
+			} else {
+				ByteBuffer destination = buffer.duplicate();
+				destination.position(position);
+				destination.put(payload);
+			}
+			position += length;
+			frames++;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class records when each video frame of a session goes through each
+ * stage of the client, from the moment the sender sent it until it was
+ * painted, so that the latency of playback can be broken down by stage.
+ *
+ * The times of the most recent frames are kept in a ring indexed by the RTP
+ * sequence number, with one slot per frame and one time per stage. Recording
+ * a time is a single array store, with no locks or allocation, so the trace
+ * can be left on while playing. Slots are reused as new frames arrive; a
+ * stage recorded for a frame that is no longer in the ring is ignored.
+ *
+ * The send time of a frame is derived from the RTCP sender reports of the
+ * track, which map RTP timestamps to the wallclock of the sender. It is only
+ * meaningful when the clocks of both hosts agree, such as on loopback, and it
+ * is not recorded when it is too far from the receive time to be real.
+ */
+public class LatencyTrace {
+
+	/**
+	 * Name of the system property that enables the trace in new sessions.
+	 */
+	public static final String TRACE_PROPERTY = "rtsp.client.trace";
+
+	/**
+	 * Number of frames kept in the trace by default.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The stages of a frame, in the order they happen.
+	 */
+	public enum Stage {
+		SEND, RECEIVE, PARSE, ENQUEUE, DEQUEUE, DECODE_START, DECODE_END, PAINT
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final int EMPTY = -1;
+	private static final long NOT_RECORDED = Long.MIN_VALUE;
+	private static final long NTP_UNIX_OFFSET_NANOS = TimeUnit.SECONDS
+			.toNanos(2208988800L);
+	private static final long MAXIMUM_SEND_LATENCY_NANOS = TimeUnit.SECONDS
+			.toNanos(10);
+	private static final double NANOS_PER_MILLISECOND = 1e6;
+
+	private final int mask;
+	private final int[] sequences;
+	private final long[] times;
+	private final long wallclockOffset;
+
+	/**
+	 * Creates a new trace keeping the most recent frames.
+	 *
+	 * @param capacity
+	 *            The number of frames kept, rounded up to a power of two, up
+	 *            to 65536 (the range of sequence numbers).
+	 */
+	public LatencyTrace(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		int slots = Integer.highestOneBit(Math.min(capacity, 0x10000));
+		if (slots < capacity)
+			slots = Math.min(slots << 1, 0x10000);
+		mask = slots - 1;
+		sequences = new int[slots];
+		times = new long[slots * STAGES.length];
+		clear();
+		wallclockOffset = TimeUnit.MILLISECONDS.toNanos(System
+				.currentTimeMillis()) - System.nanoTime();
+	}
+
+	/**
+	 * Records a frame arriving at the client, which starts its entry in the
+	 * trace, replacing the oldest frame in its slot.
+	 *
+	 * @param sequenceNumber
+	 *            The RTP sequence number of the frame.
+	 * @param time
+	 *            The time the frame was received, as given by
+	 *            <code>System.nanoTime</code>.
+	 */
+	public void frameReceived(short sequenceNumber, long time) {
+		int slot = sequenceNumber & mask;
+		int base = slot * STAGES.length;
+		Arrays.fill(times, base, base + STAGES.length, NOT_RECORDED);
+		sequences[slot] = sequenceNumber & 0xFFFF;
+		times[base + Stage.RECEIVE.ordinal()] = time;
+	}
+
+	/**
+	 * Records the time the sender sent a frame already in the trace.
+	 *
+	 * @param sequenceNumber
+	 *            The RTP sequence number of the frame.
+	 * @param senderTime
+	 *            The wallclock time of the sender, in nanoseconds since the
+	 *            NTP epoch (1900).
+	 */
+	public void frameSent(short sequenceNumber, long senderTime) {
+		int slot = sequenceNumber & mask;
+		long sentAt = senderTime - NTP_UNIX_OFFSET_NANOS - wallclockOffset;
+		long receivedAt = times[slot * STAGES.length + Stage.RECEIVE.ordinal()];
+		if (receivedAt != NOT_RECORDED
+				&& Math.abs(receivedAt - sentAt) <= MAXIMUM_SEND_LATENCY_NANOS)
+			record(Stage.SEND, sequenceNumber, sentAt);
+	}
+
+	/**
+	 * Records a frame reaching a stage now.
+	 *
+	 * @param stage
+	 *            The stage reached.
+	 * @param sequenceNumber
+	 *            The RTP sequence number of the frame.
+	 */
+	public void record(Stage stage, short sequenceNumber) {
+		record(stage, sequenceNumber, System.nanoTime());
+	}
+
+	/**
+	 * Records a frame reaching a stage at a given time.
+	 *
+	 * @param stage
+	 *            The stage reached.
+	 * @param sequenceNumber
+	 *            The RTP sequence number of the frame.
+	 * @param time
+	 *            The time the stage was reached, as given by
+	 *            <code>System.nanoTime</code>.
+	 */
+	public void record(Stage stage, short sequenceNumber, long time) {
+		int slot = sequenceNumber & mask;
+		if (sequences[slot] == (sequenceNumber & 0xFFFF))
+			times[slot * STAGES.length + stage.ordinal()] = time;
+	}
+
+	/**
+	 * Removes all frames from the trace.
+	 */
+	public void clear() {
+		Arrays.fill(sequences, EMPTY);
+		Arrays.fill(times, NOT_RECORDED);
+	}
+
+	/**
+	 * Returns the time taken between two stages by each frame in the trace
+	 * that reached both.
+	 *
+	 * @param from
+	 *            The earlier stage.
+	 * @param to
+	 *            The later stage.
+	 * @return The latencies in nanoseconds, in ascending order.
+	 */
+	public long[] getLatencies(Stage from, Stage to) {
+		long[] latencies = new long[sequences.length];
+		int count = 0;
+		for (int slot = 0; slot < sequences.length; slot++) {
+			long start = times[slot * STAGES.length + from.ordinal()];
+			long end = times[slot * STAGES.length + to.ordinal()];
+			if (sequences[slot] != EMPTY && start != NOT_RECORDED
+					&& end != NOT_RECORDED)
+				latencies[count++] = end - start;
+		}
+		latencies = Arrays.copyOf(latencies, count);
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	/**
+	 * Returns a breakdown of the latency of the frames in the trace. Each
+	 * line gives the time from one stage to the next one recorded (stages
+	 * not recorded in this client, such as painting in a headless client, are
+	 * skipped), followed by the time from the first stage to the last one.
+	 *
+	 * @return A text report, with the mean, median and 99th percentile of
+	 *         each interval in milliseconds.
+	 */
+	public String getBreakdown() {
+		StringBuilder report = new StringBuilder(
+				"latency (mean / median / 99th percentile):");
+		Stage first = null;
+		Stage previous = null;
+		int intervals = 0;
+		for (Stage stage : STAGES) {
+			if (getLatencies(stage, stage).length == 0)
+				continue;
+			if (first == null)
+				first = stage;
+			if (previous != null) {
+				appendLine(report, previous, stage);
+				intervals++;
+			}
+			previous = stage;
+		}
+		if (intervals > 1)
+			appendLine(report, first, previous);
+		if (intervals > 2 && first == Stage.SEND)
+			appendLine(report, Stage.RECEIVE, previous);
+		return report.toString();
+	}
+
+	private void appendLine(StringBuilder report, Stage from, Stage to) {
+		long[] latencies = getLatencies(from, to);
+		if (latencies.length == 0)
+			return;
+		double total = 0;
+		for (long latency : latencies)
+			total += latency;
+		report.append(String.format(
+				"%n  %-12s -> %-12s %8.2f / %8.2f / %8.2f ms (%d frames)",
+				from.name().toLowerCase(), to.name().toLowerCase(),
+				total / NANOS_PER_MILLISECOND / latencies.length,
+				latencies[latencies.length / 2] / NANOS_PER_MILLISECOND,
+				latencies[(int) (latencies.length * 0.99)]
+						/ NANOS_PER_MILLISECOND, latencies.length));
+	}
+}
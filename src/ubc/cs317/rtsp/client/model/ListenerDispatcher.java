@@ -0,0 +1,392 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * Delivers the events of a session to a single listener, in a thread of its
+ * own. Events are queued in a bounded queue, so a slow listener only delays
+ * its own events and never the playout of the session or the other
+ * listeners. When the queue is full, the overflow policy of the listener
+ * decides whether the session waits for room or a frame is discarded.
+ * 
+ * Only frames count towards the capacity of the queue. Changes in the video
+ * name, exceptions and the <tt>null</tt> frame sent when a video is closed
+ * are always queued, in order with the frames, and are never discarded.
+ */
+public class ListenerDispatcher implements Runnable {
+
+	/**
+	 * Default number of frames queued for a listener. A small queue keeps a
+	 * listener showing the most recent frames, while allowing for some jitter
+	 * in the time it takes to process them.
+	 */
+	public static final int DEFAULT_CAPACITY = 2;
+
+	private static final double SMOOTHING = 0.1;
+
+	/**
+	 * What happens to a frame offered when the queue of the listener is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The session waits until the listener takes a frame, so a slow
+		 * listener slows down the playout, and the rate control of the
+		 * session sees it as an overloaded client. No frame is lost.
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued frame is discarded, so the listener always gets
+		 * the most recent frames.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The offered frame is discarded, so the listener gets an
+		 * uninterrupted sequence of frames, with gaps between sequences.
+		 */
+		DROP_NEWEST
+	}
+
+	private final SessionListener listener;
+	private final OverflowPolicy policy;
+	private final int capacity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<Event> queue = new ArrayDeque<Event>();
+	private int queuedFrames = 0;
+	private boolean closed = false;
+
+	private volatile long deliveredFrames = 0;
+	private volatile long droppedFrames = 0;
+	private volatile long discardedFrames = 0;
+	private volatile long lag = 0;
+	private volatile long processingTime = 0;
+
+	/**
+	 * Creates a new dispatcher for a listener. The dispatcher does not
+	 * deliver events until it is started.
+	 * 
+	 * @param listener
+	 *            The listener that receives the events.
+	 * @param policy
+	 *            What to do with frames offered when the queue is full.
+	 * @param capacity
+	 *            The maximum number of frames queued for the listener.
+	 */
+	public ListenerDispatcher(SessionListener listener, OverflowPolicy policy,
+			int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		this.listener = listener;
+		this.policy = policy;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Starts the thread that delivers the events to the listener.
+	 * 
+	 * @param executionMode
+	 *            The kind of thread used to deliver the events.
+	 */
+	void start(ExecutionMode executionMode) {
+		Thread thread = executionMode.newThread(this, "Session listener "
+				+ listener.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops accepting events. The thread of the dispatcher ends once the
+	 * events already queued are delivered, or right away if they are
+	 * discarded. The event being delivered, if any, is not interrupted.
+	 * 
+	 * @param discard
+	 *            If <tt>true</tt>, events still queued are discarded.
+	 */
+	void close(boolean discard) {
+		lock.lock();
+		try {
+			closed = true;
+			if (discard) {
+				queue.clear();
+				queuedFrames = 0;
+			}
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a frame to be delivered to the listener. If the queue is full,
+	 * the overflow policy decides if this method waits for room, or if this
+	 * or the oldest queued frame is discarded. The <tt>null</tt> frame is
+	 * never discarded, and the frames queued before it are, since they would
+	 * only be shown before the video is closed.
+	 * 
+	 * @param frame
+	 *            The frame to be delivered, or <tt>null</tt> if the video was
+	 *            closed.
+	 * @throws InterruptedException
+	 *             If the thread was interrupted while waiting for room.
+	 */
+	void frameReceived(Frame frame) throws InterruptedException {
+		lock.lock();
+		try {
+			if (frame == null) {
+				discardedFrames += discardFrames(queuedFrames);
+				enqueue(new Event(Event.Kind.FRAME, null, null, null));
+				return;
+			}
+			while (!closed && queuedFrames >= capacity) {
+				if (policy == OverflowPolicy.BLOCK)
+					notFull.await();
+				else if (policy == OverflowPolicy.DROP_OLDEST)
+					droppedFrames += discardFrames(1);
+				else {
+					droppedFrames++;
+					return;
+				}
+			}
+			if (closed)
+				return;
+			queuedFrames++;
+			enqueue(new Event(Event.Kind.FRAME, frame, null, null));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a change in the video name to be delivered to the listener.
+	 * 
+	 * @param videoName
+	 *            The new name of the video.
+	 */
+	void videoNameChanged(String videoName) {
+		lock.lock();
+		try {
+			enqueue(new Event(Event.Kind.VIDEO_NAME, null, videoName, null));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues an exception to be delivered to the listener.
+	 * 
+	 * @param exception
+	 *            The exception thrown.
+	 */
+	void exceptionThrown(RTSPException exception) {
+		lock.lock();
+		try {
+			enqueue(new Event(Event.Kind.EXCEPTION, null, null, exception));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an event to the queue. Must be called with the lock held.
+	 */
+	private void enqueue(Event event) {
+		if (closed)
+			return;
+		queue.add(event);
+		notEmpty.signal();
+	}
+
+	/**
+	 * Discards the oldest queued frames, keeping all other events. Must be
+	 * called with the lock held.
+	 * 
+	 * @return The number of frames discarded.
+	 */
+	private int discardFrames(int count) {
+		int discarded = 0;
+		Iterator<Event> events = queue.iterator();
+		while (discarded < count && events.hasNext()) {
+			Event event = events.next();
+			if (event.kind == Event.Kind.FRAME && event.frame != null) {
+				events.remove();
+				queuedFrames--;
+				discarded++;
+			}
+		}
+		notFull.signalAll();
+		return discarded;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Event event;
+			lock.lock();
+			try {
+				while (!closed && queue.isEmpty())
+					notEmpty.awaitUninterruptibly();
+				event = queue.poll();
+				if (event == null)
+					return;
+				if (event.kind == Event.Kind.FRAME && event.frame != null) {
+					queuedFrames--;
+					notFull.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			long start = System.nanoTime();
+			try {
+				if (event.kind == Event.Kind.FRAME)
+					listener.frameReceived(event.frame);
+				else if (event.kind == Event.Kind.VIDEO_NAME)
+					listener.videoNameChanged(event.videoName);
+				else
+					listener.exceptionThrown(event.exception);
+			} catch (RuntimeException e) {
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread,
+						e);
+			}
+			long end = System.nanoTime();
+
+			if (event.kind == Event.Kind.FRAME && event.frame != null) {
+				deliveredFrames++;
+				lag = smooth(lag, start - event.queuedAt);
+				processingTime = smooth(processingTime, end - start);
+			}
+		}
+	}
+
+	private static long smooth(long previous, long sample) {
+		return previous == 0 ? sample : previous
+				+ (long) ((sample - previous) * SMOOTHING);
+	}
+
+	/**
+	 * Returns the listener that receives the events of this dispatcher.
+	 * 
+	 * @return The listener.
+	 */
+	public SessionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Returns the policy used for frames offered when the queue is full.
+	 * 
+	 * @return The overflow policy of the listener.
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the maximum number of frames queued for the listener.
+	 * 
+	 * @return The capacity of the queue.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of frames waiting to be delivered to the listener.
+	 * 
+	 * @return The number of queued frames.
+	 */
+	public int getQueuedFrames() {
+		lock.lock();
+		try {
+			return queuedFrames;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of frames delivered to the listener.
+	 * 
+	 * @return The number of delivered frames.
+	 */
+	public long getDeliveredFrames() {
+		return deliveredFrames;
+	}
+
+	/**
+	 * Returns the number of frames discarded because the queue of the
+	 * listener was full. This is a sign that the listener cannot keep up
+	 * with the stream.
+	 * 
+	 * @return The number of dropped frames.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Returns the number of frames discarded because the video was closed
+	 * before they were delivered, such as when the video is stopped or
+	 * switched. These frames are not counted as dropped.
+	 * 
+	 * @return The number of frames discarded on close.
+	 */
+	public long getDiscardedFrames() {
+		return discardedFrames;
+	}
+
+	/**
+	 * Returns the time frames wait in the queue before they are delivered to
+	 * the listener, smoothed over the most recent frames.
+	 * 
+	 * @return The average lag in nanoseconds, or 0 if no frame was delivered
+	 *         yet.
+	 */
+	public long getLag() {
+		return lag;
+	}
+
+	/**
+	 * Returns the time the listener takes to process a frame, smoothed over
+	 * the most recent frames.
+	 * 
+	 * @return The average processing time in nanoseconds, or 0 if no frame
+	 *         was delivered yet.
+	 */
+	public long getProcessingTime() {
+		return processingTime;
+	}
+
+	/**
+	 * An event waiting to be delivered to the listener.
+	 */
+	private static class Event {
+
+		enum Kind {
+			FRAME, VIDEO_NAME, EXCEPTION
+		}
+
+		final Kind kind;
+		final Frame frame;
+		final String videoName;
+		final RTSPException exception;
+		final long queuedAt = System.nanoTime();
+
+		Event(Kind kind, Frame frame, String videoName, RTSPException exception) {
+			this.kind = kind;
+			this.frame = frame;
+			this.videoName = videoName;
+			this.exception = exception;
+		}
+	}
+}
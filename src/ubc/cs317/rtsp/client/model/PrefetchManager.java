@@ -0,0 +1,407 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * This class keeps sessions for videos that are likely to be watched next
+ * already set up, so that switching to one of them does not wait for the
+ * connection, SETUP and prebuffering. A prefetched video may also be warm: it
+ * is played with its playout held until a small buffer of frames is received,
+ * and then paused, so that it starts playing immediately when promoted.
+ *
+ * The number of prefetched sessions, the number of sessions receiving frames
+ * at the same time and the total size of the warm buffers are all bounded.
+ * When a bound is exceeded, the least recently used sessions are closed.
+ *
+ * Requests to the server are never sent while holding the lock of the
+ * manager. Each change is planned with the lock held, marking the sessions
+ * involved as busy, and the requests are sent after the lock is released, so
+ * a slow server only delays the caller that asked for it.
+ */
+public class PrefetchManager {
+
+	private static final long MONITOR_INTERVAL_MILLIS = 100;
+
+	private final String server;
+	private final int port;
+	private final int maximumSessions;
+	private final int maximumWarmingSessions;
+	private final long warmBufferSize;
+	private final long memoryBudget;
+
+	private final LinkedHashMap<String, Prefetched> sessions = new LinkedHashMap<String, Prefetched>(
+			16, 0.75f, true);
+	private final ScheduledExecutorService monitor;
+
+	/**
+	 * Creates a new prefetch manager for videos in a server.
+	 *
+	 * @param server
+	 *            The IP address or host name of the RTSP server.
+	 * @param port
+	 *            The port where the RTSP server is listening to.
+	 * @param maximumSessions
+	 *            The maximum number of prefetched sessions.
+	 * @param maximumWarmingSessions
+	 *            The maximum number of prefetched sessions receiving frames at
+	 *            the same time, which bounds the bandwidth used for warming.
+	 * @param warmBufferSize
+	 *            The size of the warm buffer of each session, in bytes.
+	 * @param memoryBudget
+	 *            The maximum total size of all warm buffers, in bytes.
+	 */
+	public PrefetchManager(String server, int port, int maximumSessions,
+			int maximumWarmingSessions, long warmBufferSize, long memoryBudget) {
+		this.server = server;
+		this.port = port;
+		this.maximumSessions = maximumSessions;
+		this.maximumWarmingSessions = maximumWarmingSessions;
+		this.warmBufferSize = warmBufferSize;
+		this.memoryBudget = memoryBudget;
+
+		monitor = Executors.newSingleThreadScheduledExecutor(ExecutionMode
+				.getDefault().newDaemonThreadFactory("Prefetch monitor"));
+		monitor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkSessions();
+			}
+		}, MONITOR_INTERVAL_MILLIS, MONITOR_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets up a session for a video, if one is not prefetched already. The
+	 * video is reserved in the manager before the session is opened, so a
+	 * concurrent call for the same video does not open a second session.
+	 *
+	 * @param videoName
+	 *            The name of the video.
+	 * @param warm
+	 *            If <tt>true</tt>, a small buffer of frames is also received,
+	 *            as soon as the bandwidth bound allows it.
+	 * @throws RTSPException
+	 *             If the session could not be set up.
+	 */
+	public void prefetch(String videoName, boolean warm) throws RTSPException {
+		Prefetched reserved = null;
+		synchronized (this) {
+			Prefetched prefetched = sessions.get(videoName);
+			if (prefetched == null) {
+				prefetched = reserved = new Prefetched(videoName);
+				sessions.put(videoName, prefetched);
+			}
+			prefetched.warm |= warm;
+		}
+		if (reserved != null)
+			open(reserved);
+
+		Actions actions = new Actions();
+		synchronized (this) {
+			planWarming(actions);
+			planEviction(actions);
+		}
+		perform(actions);
+	}
+
+	/**
+	 * Removes a video from the manager and returns its session, which is now
+	 * owned by the caller. If the video was not prefetched, a new session is
+	 * opened; if it is still being set up, this method waits for it. The
+	 * caller is expected to add its listeners and then call
+	 * <code>play</code>; if the video was warm, playback starts right away with
+	 * the buffered frames.
+	 *
+	 * @param videoName
+	 *            The name of the video.
+	 * @return A session where the video is open.
+	 * @throws RTSPException
+	 *             If a new session could not be opened.
+	 */
+	public Session promote(String videoName) throws RTSPException {
+		Prefetched prefetched;
+		synchronized (this) {
+			prefetched = sessions.remove(videoName);
+			if (prefetched != null)
+				awaitIdle(prefetched);
+		}
+		if (prefetched != null && prefetched.session != null) {
+			Actions actions = new Actions();
+			synchronized (this) {
+				planWarming(actions);
+			}
+			perform(actions);
+			return prefetched.session;
+		}
+		Session session = new Session(server, port);
+		try {
+			session.open(videoName);
+		} catch (RTSPException e) {
+			session.closeConnection();
+			throw e;
+		}
+		return session;
+	}
+
+	/**
+	 * Returns an indication if a video is currently prefetched.
+	 *
+	 * @param videoName
+	 *            The name of the video.
+	 * @return <tt>true</tt> if a session is set up, or being set up, for the
+	 *         video.
+	 */
+	public synchronized boolean isPrefetched(String videoName) {
+		return sessions.containsKey(videoName);
+	}
+
+	/**
+	 * Closes all prefetched sessions and stops the manager. Sessions still
+	 * being set up are closed as soon as their setup ends.
+	 */
+	public void close() {
+		monitor.shutdownNow();
+		Actions actions = new Actions();
+		synchronized (this) {
+			for (Prefetched prefetched : sessions.values())
+				discard(prefetched, actions);
+			sessions.clear();
+		}
+		perform(actions);
+	}
+
+	/**
+	 * Pauses the sessions whose warm buffer is full, starts warming pending
+	 * sessions if bandwidth allows and evicts sessions if the memory budget
+	 * is exceeded.
+	 */
+	private void checkSessions() {
+		Actions actions = new Actions();
+		synchronized (this) {
+			long perSessionBuffer = getPerSessionBuffer();
+			for (Prefetched prefetched : sessions.values()) {
+				if (prefetched.warming && !prefetched.busy
+						&& getBufferedBytes(prefetched) >= perSessionBuffer) {
+					prefetched.warming = false;
+					prefetched.warmed = true;
+					prefetched.busy = true;
+					actions.pause.add(prefetched);
+				}
+			}
+			planWarming(actions);
+			planEviction(actions);
+		}
+		perform(actions);
+	}
+
+	/**
+	 * Connects a new session for a reserved video and opens the video in it.
+	 * If the video was evicted in the meantime, the session is closed.
+	 */
+	private void open(Prefetched prefetched) throws RTSPException {
+		Session session = null;
+		try {
+			session = new Session(server, port);
+			session.open(prefetched.videoName);
+		} catch (RTSPException e) {
+			if (session != null)
+				session.closeConnection();
+			synchronized (this) {
+				if (sessions.get(prefetched.videoName) == prefetched)
+					sessions.remove(prefetched.videoName);
+			}
+			finish(prefetched);
+			throw e;
+		}
+		synchronized (this) {
+			prefetched.session = session;
+		}
+		finish(prefetched);
+	}
+
+	/**
+	 * Sends the requests planned while holding the lock. A session that
+	 * fails to pause is closed, and a session that fails to start warming is
+	 * no longer warm.
+	 */
+	private void perform(Actions actions) {
+		for (Prefetched prefetched : actions.pause) {
+			try {
+				prefetched.session.pause();
+			} catch (RTSPException e) {
+				synchronized (this) {
+					if (sessions.get(prefetched.videoName) == prefetched) {
+						sessions.remove(prefetched.videoName);
+						prefetched.discarded = true;
+					}
+				}
+			}
+			finish(prefetched);
+		}
+		for (Prefetched prefetched : actions.prebuffer) {
+			try {
+				prefetched.session.prebuffer();
+			} catch (RTSPException e) {
+				synchronized (this) {
+					prefetched.warming = false;
+					prefetched.warm = false;
+				}
+			}
+			finish(prefetched);
+		}
+		for (Session session : actions.close)
+			closeSession(session);
+	}
+
+	/**
+	 * Marks the end of a request on a session, and closes the session if it
+	 * was evicted while the request was being sent.
+	 */
+	private void finish(Prefetched prefetched) {
+		boolean discarded;
+		synchronized (this) {
+			prefetched.busy = false;
+			discarded = prefetched.discarded;
+			notifyAll();
+		}
+		if (discarded && prefetched.session != null)
+			closeSession(prefetched.session);
+	}
+
+	/**
+	 * Waits until no request is being sent on a session. Must be called
+	 * while holding the lock of the manager.
+	 */
+	private void awaitIdle(Prefetched prefetched) {
+		boolean interrupted = false;
+		while (prefetched.busy) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Plans to start receiving frames for warm sessions that are not yet
+	 * buffered, most recently used first, up to the bound of warming
+	 * sessions. Must be called while holding the lock of the manager.
+	 */
+	private void planWarming(Actions actions) {
+		int warming = 0;
+		for (Prefetched prefetched : sessions.values())
+			if (prefetched.warming)
+				warming++;
+
+		List<Prefetched> candidates = new ArrayList<Prefetched>(
+				sessions.values());
+		for (int i = candidates.size() - 1; i >= 0
+				&& warming < maximumWarmingSessions; i--) {
+			Prefetched prefetched = candidates.get(i);
+			if (prefetched.warm && !prefetched.warming && !prefetched.warmed
+					&& !prefetched.busy) {
+				prefetched.warming = true;
+				prefetched.busy = true;
+				actions.prebuffer.add(prefetched);
+				warming++;
+			}
+		}
+	}
+
+	/**
+	 * Plans to close the least recently used sessions while there are more
+	 * sessions than allowed, or the warm buffers use more memory than
+	 * allowed. Must be called while holding the lock of the manager.
+	 */
+	private void planEviction(Actions actions) {
+		long buffered = 0;
+		for (Prefetched prefetched : sessions.values())
+			buffered += getBufferedBytes(prefetched);
+
+		Iterator<Prefetched> iterator = sessions.values().iterator();
+		while (iterator.hasNext()
+				&& (sessions.size() > maximumSessions || buffered > memoryBudget)) {
+			Prefetched prefetched = iterator.next();
+			buffered -= getBufferedBytes(prefetched);
+			iterator.remove();
+			discard(prefetched, actions);
+		}
+	}
+
+	/**
+	 * Plans to close a session removed from the manager. A session with a
+	 * request in progress is closed when the request ends instead.
+	 */
+	private static void discard(Prefetched prefetched, Actions actions) {
+		if (prefetched.busy)
+			prefetched.discarded = true;
+		else
+			actions.close.add(prefetched.session);
+	}
+
+	/**
+	 * Returns the warm buffer size of each session, reduced if the memory
+	 * budget cannot hold a full buffer for every warm session.
+	 */
+	private long getPerSessionBuffer() {
+		int warmSessions = 0;
+		for (Prefetched prefetched : sessions.values())
+			if (prefetched.warm)
+				warmSessions++;
+		return Math.min(warmBufferSize,
+				memoryBudget / Math.max(1, warmSessions));
+	}
+
+	/**
+	 * Returns the size of the warm buffer of a session. The connection of a
+	 * session is locked while a request is sent, so the size last seen is
+	 * returned for busy sessions instead of waiting for the request.
+	 */
+	private static long getBufferedBytes(Prefetched prefetched) {
+		if (!prefetched.busy)
+			prefetched.bufferedBytes = prefetched.session.getBufferedBytes();
+		return prefetched.bufferedBytes;
+	}
+
+	private static void closeSession(Session session) {
+		try {
+			session.release();
+		} catch (RTSPException e) {
+		}
+	}
+
+	private static class Prefetched {
+
+		private final String videoName;
+		private Session session = null;
+		private boolean busy = true;
+		private boolean discarded = false;
+		private boolean warm = false;
+		private boolean warming = false;
+		private boolean warmed = false;
+		private long bufferedBytes = 0;
+
+		private Prefetched(String videoName) {
+			this.videoName = videoName;
+		}
+	}
+
+	private static class Actions {
+
+		private final List<Prefetched> pause = new ArrayList<Prefetched>();
+		private final List<Prefetched> prebuffer = new ArrayList<Prefetched>();
+		private final List<Session> close = new ArrayList<Session>();
+	}
+}
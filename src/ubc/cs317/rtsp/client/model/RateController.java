@@ -0,0 +1,117 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+import ubc.cs317.rtsp.client.net.PlayoutBuffer;
+
+/**
+ * This class adapts the frame rate shown by a session to the load of the
+ * client. The load is sampled periodically from the playout buffer of the
+ * session: the time taken to decode and show a frame, the number of frames
+ * waiting to be played and the number of frames the client failed to show in
+ * time. The time taken per frame is compared to the time available for each
+ * frame shown, which grows with the fraction of frames left out.
+ * When the client falls behind, only one frame in two, and then one in four,
+ * is shown; after the client has kept up for several periods in a row, the
+ * rate is raised back one step at a time.
+ */
+public class RateController {
+
+	private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+	private static final int[] DECIMATION_LEVELS = { 1, 2, 4 };
+	private static final long FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(40);
+	private static final double OVERLOAD_RATIO = 0.8;
+	private static final double HEADROOM_RATIO = 0.5;
+	private static final int HIGH_WATER_FRAMES = 2 * PlayoutBuffer.MINIMUM_FRAMES_TO_PLAY;
+	private static final int PERIODS_TO_STEP_UP = 5;
+
+	private final Session session;
+	private final ScheduledExecutorService sampler;
+
+	private int level = 0;
+	private int periodsWithHeadroom = 0;
+	private long lastSkippedFrames = 0;
+
+	/**
+	 * Creates a new controller for a session, and starts sampling its load.
+	 *
+	 * @param session
+	 *            The session whose frame rate is adapted.
+	 */
+	public RateController(Session session) {
+		this.session = session;
+
+		sampler = Executors.newSingleThreadScheduledExecutor(ExecutionMode
+				.getDefault().newDaemonThreadFactory("Rate controller"));
+		sampler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the fraction of frames currently shown.
+	 *
+	 * @return 1 if all frames are shown, or n if one frame in n is shown.
+	 */
+	public synchronized int getDecimation() {
+		return DECIMATION_LEVELS[level];
+	}
+
+	/**
+	 * Stops sampling the session. The current frame rate is kept.
+	 */
+	public void close() {
+		sampler.shutdownNow();
+	}
+
+	/**
+	 * Steps the frame rate down if the client is overloaded, or up if it has
+	 * had enough headroom for a while. Sessions without an open video are not
+	 * sampled.
+	 */
+	private synchronized void sample() {
+		if (session.getVideoName() == null) {
+			periodsWithHeadroom = 0;
+			return;
+		}
+
+		long deliveryTime = session.getDeliveryTime();
+		int bufferedFrames = session.getBufferedFrames();
+		long skippedFrames = session.getSkippedFrames();
+		boolean skipped = skippedFrames > lastSkippedFrames;
+		lastSkippedFrames = skippedFrames;
+
+		// Time available for each frame shown, at this level and one step up
+		long budget = DECIMATION_LEVELS[level] * FRAME_INTERVAL_NANOS;
+		long budgetUp = DECIMATION_LEVELS[Math.max(0, level - 1)]
+				* FRAME_INTERVAL_NANOS;
+
+		if (deliveryTime > OVERLOAD_RATIO * budget
+				|| bufferedFrames > HIGH_WATER_FRAMES || skipped) {
+			periodsWithHeadroom = 0;
+			if (level < DECIMATION_LEVELS.length - 1)
+				setLevel(level + 1);
+		} else if (deliveryTime < HEADROOM_RATIO * budgetUp
+				&& bufferedFrames <= PlayoutBuffer.MINIMUM_FRAMES_TO_PLAY) {
+			if (++periodsWithHeadroom >= PERIODS_TO_STEP_UP && level > 0) {
+				periodsWithHeadroom = 0;
+				setLevel(level - 1);
+			}
+		} else {
+			periodsWithHeadroom = 0;
+		}
+	}
+
+	private void setLevel(int level) {
+		this.level = level;
+		session.setDecimation(DECIMATION_LEVELS[level]);
+	}
+}
@@ -13,23 +13,88 @@
 
 package ubc.cs317.rtsp.client.model;
 
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.listener.DiagnosticListener;
+import ubc.cs317.rtsp.client.model.listener.PacketListener;
 import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.model.listener.TrackListener;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
 import ubc.cs317.rtsp.client.net.RTSPConnection;
+import ubc.cs317.rtsp.client.net.ReceptionStatistics;
 
 /**
  * This class manages an open session with an RTSP server. It provides the main
  * interaction between the network interface (package
  * <code>ubc.cs317.rtsp.client.net</code> and the user interface.
+ * 
+ * A session holds a connection and threads until it is released, so
+ * <code>release</code> should be called once it is no longer needed, or the
+ * session used through <code>asResource</code> in a try-with-resources
+ * statement. Sessions still open when the process exits are released by the
+ * <code>SessionRegistry</code>.
  */
 public class Session {
 
-	private Set<SessionListener> sessionListeners = new HashSet<SessionListener>();
+	private List<ListenerDispatcher> sessionListeners = new CopyOnWriteArrayList<ListenerDispatcher>();
+	private Set<TrackListener> trackListeners = new CopyOnWriteArraySet<TrackListener>();
+	private Set<PacketListener> packetListeners = new CopyOnWriteArraySet<PacketListener>();
+	private Set<DiagnosticListener> diagnosticListeners = new CopyOnWriteArraySet<DiagnosticListener>();
+	private final DiagnosticListener diagnostics = new DiagnosticListener() {
+
+		@Override
+		public void requestCompleted(String method, int cseq, int statusCode,
+				long durationNanos) {
+			for (DiagnosticListener listener : diagnosticListeners)
+				listener.requestCompleted(method, cseq, statusCode,
+						durationNanos);
+		}
+
+		@Override
+		public void rebufferingStarted(String mediaType) {
+			for (DiagnosticListener listener : diagnosticListeners)
+				listener.rebufferingStarted(mediaType);
+		}
+
+		@Override
+		public void rebufferingEnded(String mediaType, long durationNanos) {
+			for (DiagnosticListener listener : diagnosticListeners)
+				listener.rebufferingEnded(mediaType, durationNanos);
+		}
+
+		@Override
+		public void frameDropped(String mediaType, short sequenceNumber,
+				DropCause cause) {
+			for (DiagnosticListener listener : diagnosticListeners)
+				listener.frameDropped(mediaType, sequenceNumber, cause);
+		}
+
+		@Override
+		public void packetReordered(String mediaType, short sequenceNumber) {
+			for (DiagnosticListener listener : diagnosticListeners)
+				listener.packetReordered(mediaType, sequenceNumber);
+		}
+
+		@Override
+		public void socketTimedOut(String socket, long timeoutMillis) {
+			for (DiagnosticListener listener : diagnosticListeners)
+				listener.socketTimedOut(socket, timeoutMillis);
+		}
+	};
 	private RTSPConnection rtspConnection;
-	private String videoName = null;
+	private ExecutionMode executionMode;
+	private String server;
+	private int port;
+	private volatile String videoName = null;
+	private String cacheKey = null;
+	private volatile boolean closed = false;
+	private volatile LatencyTrace latencyTrace = Boolean
+			.getBoolean(LatencyTrace.TRACE_PROPERTY) ? new LatencyTrace(
+			LatencyTrace.DEFAULT_CAPACITY) : null;
 
 	/**
 	 * Creates a new RTSP session. This constructor will also create a new
@@ -46,7 +111,37 @@ public class Session {
 	 */
 	public Session(String server, int port) throws RTSPException {
 
+		this.server = server;
+		this.port = port;
+		this.executionMode = ExecutionMode.getDefault();
 		rtspConnection = new RTSPConnection(this, server, port);
+		SessionRegistry.getInstance().register(this);
+	}
+
+	/**
+	 * Creates a new RTSP session whose receive and playout loops run in threads
+	 * of the given execution mode. This constructor will also create a new
+	 * network connection with the server. No stream setup is established at
+	 * this point.
+	 * 
+	 * @param server
+	 *            The IP address or host name of the RTSP server.
+	 * @param port
+	 *            The port where the RTSP server is listening to.
+	 * @param executionMode
+	 *            The kind of thread used for the per-session loops.
+	 * @throws RTSPException
+	 *             If it was not possible to establish a connection with the
+	 *             server.
+	 */
+	public Session(String server, int port, ExecutionMode executionMode)
+			throws RTSPException {
+
+		this.server = server;
+		this.port = port;
+		this.executionMode = executionMode;
+		rtspConnection = new RTSPConnection(this, server, port, executionMode);
+		SessionRegistry.getInstance().register(this);
 	}
 
 	/**
@@ -54,28 +149,137 @@ public class Session {
 	 * (such as a change in video name or a new frame) happens. Any interaction
 	 * with user interfaces is done through these listeners.
 	 * 
+	 * Each listener is called in a thread of its own, with up to two frames
+	 * queued. When its queue is full, the oldest queued frame is discarded,
+	 * so a slow listener never holds up the playout and always shows the
+	 * most recent frames. Listeners that need every frame, such as a
+	 * recording, should be added with the <tt>BLOCK</tt> policy instead.
+	 * 
+	 * @param listener
+	 *            A SessionListener to be called when a session event happens.
+	 */
+	public void addSessionListener(SessionListener listener) {
+		addSessionListener(listener,
+				ListenerDispatcher.OverflowPolicy.DROP_OLDEST,
+				ListenerDispatcher.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Adds a new listener to be called in a thread of its own every time a
+	 * session event happens, with its own queue of frames. A listener that
+	 * needs every frame, such as a recording, can have the playout wait for
+	 * it when it falls behind, at the cost of slowing down the video. If the
+	 * listener was already added, its policy and capacity are not changed.
+	 * 
 	 * @param listener
 	 *            A SessionListener to be called when a session event happens.
+	 * @param policy
+	 *            What to do with frames that arrive when the queue of the
+	 *            listener is full.
+	 * @param capacity
+	 *            The maximum number of frames queued for the listener.
 	 */
-	public synchronized void addSessionListener(SessionListener listener) {
-		sessionListeners.add(listener);
-		listener.videoNameChanged(this.videoName);
+	public void addSessionListener(SessionListener listener,
+			ListenerDispatcher.OverflowPolicy policy, int capacity) {
+		ListenerDispatcher dispatcher = new ListenerDispatcher(listener,
+				policy, capacity);
+		synchronized (sessionListeners) {
+			if (getListenerDispatcher(listener) != null)
+				return;
+			dispatcher.videoNameChanged(this.videoName);
+			sessionListeners.add(dispatcher);
+		}
+		dispatcher.start(executionMode);
 	}
 
 	/**
 	 * Removes an existing listener from the list of listeners to be called for
-	 * session events.
+	 * session events. Events not yet delivered to the listener are discarded.
 	 * 
 	 * @param listener
 	 *            A SessionListener that should no longer be called when a
 	 *            session event happens.
 	 */
 	public void removeSessionListener(SessionListener listener) {
-		sessionListeners.remove(listener);
+		ListenerDispatcher dispatcher;
+		synchronized (sessionListeners) {
+			dispatcher = getListenerDispatcher(listener);
+			if (dispatcher == null)
+				return;
+			sessionListeners.remove(dispatcher);
+		}
+		dispatcher.close(true);
+	}
+
+	/**
+	 * Returns the dispatcher that delivers the events of the session to a
+	 * listener, with the statistics of its queue, such as how far behind the
+	 * session the listener is.
+	 * 
+	 * @param listener
+	 *            A SessionListener added to the session.
+	 * @return The dispatcher of the listener, or null if the listener was not
+	 *         added.
+	 */
+	public ListenerDispatcher getListenerDispatcher(SessionListener listener) {
+		for (ListenerDispatcher dispatcher : sessionListeners)
+			if (dispatcher.getListener() == listener)
+				return dispatcher;
+		return null;
 	}
 
 	/**
-	 * Opens a new video file in the interface.
+	 * Selects the transport requested when a video is opened. In multicast
+	 * mode, all sessions in this process watching the same multicast stream
+	 * share a single socket.
+	 * 
+	 * @param multicast
+	 *            If <tt>true</tt>, multicast transport is requested.
+	 */
+	public void setMulticast(boolean multicast) {
+		rtspConnection.setMulticast(multicast);
+	}
+
+	/**
+	 * Selects where the frames of videos opened after this call are buffered.
+	 * Off the heap, deep buffers do not lengthen garbage collection pauses,
+	 * and their memory is reused as soon as the video is closed.
+	 * 
+	 * @param offHeap
+	 *            If <tt>true</tt>, frames are buffered off the Java heap.
+	 */
+	public void setOffHeap(boolean offHeap) {
+		rtspConnection.setOffHeap(offHeap);
+	}
+
+	/**
+	 * Sets the receive buffer size of the sockets of videos opened after this
+	 * call. A larger buffer avoids packet loss when the client cannot keep up
+	 * with bursts of packets.
+	 * 
+	 * @param receiveBufferSize
+	 *            The size in bytes, or 0 for the system default.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		rtspConnection.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	/**
+	 * Sets the IP traffic class of the sockets of videos opened after this
+	 * call, which routers may use to prioritize the stream.
+	 * 
+	 * @param trafficClass
+	 *            The traffic class, from 0 to 255, or -1 for the system
+	 *            default.
+	 */
+	public void setTrafficClass(int trafficClass) {
+		rtspConnection.setTrafficClass(trafficClass);
+	}
+
+	/**
+	 * Opens a new video file in the interface. If a frame of this video was
+	 * played before, the most recent one is sent to the listeners right away,
+	 * so that it can be shown while the stream is buffered.
 	 * 
 	 * @param videoName
 	 *            The name (URL) of the video to be opened. It should correspond
@@ -85,10 +289,18 @@ public class Session {
 	 *             connectivity problem.
 	 */
 	public void open(String videoName) throws RTSPException {
+		LatencyTrace trace = latencyTrace;
+		if (trace != null)
+			trace.clear();
 		rtspConnection.setup(videoName);
 		this.videoName = videoName;
-		for (SessionListener listener : sessionListeners)
+		this.cacheKey = FrameCache.getKey(server, port, videoName);
+		for (ListenerDispatcher listener : sessionListeners)
 			listener.videoNameChanged(this.videoName);
+
+		Frame cachedFrame = FrameCache.getInstance().getLastFrame(cacheKey);
+		if (cachedFrame != null)
+			processReceivedFrame(cachedFrame);
 	}
 
 	/**
@@ -106,6 +318,20 @@ public class Session {
 		rtspConnection.play();
 	}
 
+	/**
+	 * Starts to receive the existing file without playing it. Frames are
+	 * buffered until <code>play</code> is called, at which point playback
+	 * starts immediately with the buffered frames. It should only be called
+	 * once a file has been opened.
+	 * 
+	 * @throws RTSPException
+	 *             If the server does not accept the request, or in case of a
+	 *             connectivity problem.
+	 */
+	public void prebuffer() throws RTSPException {
+		rtspConnection.prebuffer();
+	}
+
 	/**
 	 * Pauses the playback the existing file. It should only be called once a
 	 * file has started playing. This function will return immediately after the
@@ -120,9 +346,37 @@ public class Session {
 		rtspConnection.pause();
 	}
 
+	/**
+	 * Changes the playback rate, for fast-forward and rewind. A rate of 2, 4
+	 * or 8 plays the video that many times faster, and a negative rate plays
+	 * it backwards. If the video is playing, the new rate takes effect right
+	 * away; otherwise it is used when the video is next played. When frames
+	 * cannot be decoded as fast as the rate requires, only frames with the
+	 * marker bit set are shown, and frames already late are skipped.
+	 * 
+	 * @param rate
+	 *            The playback rate, 1 for normal playback. Must not be 0.
+	 * @throws RTSPException
+	 *             If the rate is invalid, or if the server does not accept the
+	 *             request, or in case of a connectivity problem.
+	 */
+	public void setRate(double rate) throws RTSPException {
+		rtspConnection.setRate(rate);
+	}
+
+	/**
+	 * Returns the playback rate in use, as accepted by the server. Servers
+	 * that do not support changing the rate always play at rate 1.
+	 * 
+	 * @return The current playback rate.
+	 */
+	public double getRate() {
+		return rtspConnection.getRate();
+	}
+
 	/**
 	 * Closes the currently open file. It should only be called once a file has
-	 * been open.
+	 * been open. The connection is kept, so another file may be opened.
 	 * 
 	 * @throws RTSPException
 	 *             If the server does not accept the request, or in case of a
@@ -131,32 +385,370 @@ public class Session {
 	public synchronized void close() throws RTSPException {
 		rtspConnection.teardown();
 		processReceivedFrame(null);
+		FrameCache.getInstance().detach(cacheKey);
 		videoName = null;
-		for (SessionListener listener : sessionListeners)
+		for (ListenerDispatcher listener : sessionListeners)
 			listener.videoNameChanged(this.videoName);
 	}
 
 	/**
-	 * Closes the connection with the current server. This session element
-	 * should not be used anymore after this point.
+	 * Releases all resources of the session. The open file, if any, is closed
+	 * first, and then the connection with the server is closed, even if the
+	 * server did not accept the request. This session element should not be
+	 * used anymore after this point. Calling this method more than once has
+	 * no further effect.
+	 * 
+	 * @throws RTSPException
+	 *             If the open file could not be closed, in which case the
+	 *             connection is closed anyway.
+	 */
+	public synchronized void release() throws RTSPException {
+		if (closed)
+			return;
+		try {
+			if (videoName != null)
+				close();
+		} finally {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * Returns a handle that releases this session when it is closed, so that
+	 * the session can be used in a try-with-resources statement.
+	 * 
+	 * @return A handle for the session.
+	 */
+	public Resource asResource() {
+		return new Resource(this);
+	}
+
+	/**
+	 * Adds a new listener to be called every time a frame of a track other
+	 * than the video (such as audio) is due to be played.
+	 * 
+	 * @param listener
+	 *            A TrackListener to be called for the frames of the other
+	 *            tracks.
+	 */
+	public synchronized void addTrackListener(TrackListener listener) {
+		trackListeners.add(listener);
+	}
+
+	/**
+	 * Removes an existing track listener.
+	 * 
+	 * @param listener
+	 *            A TrackListener that should no longer be called.
+	 */
+	public synchronized void removeTrackListener(TrackListener listener) {
+		trackListeners.remove(listener);
+	}
+
+	/**
+	 * Adds a new listener to be called for every packet of the video as soon
+	 * as it arrives, before it is buffered and played.
+	 * 
+	 * @param listener
+	 *            A PacketListener to be called when a packet arrives.
+	 */
+	public void addPacketListener(PacketListener listener) {
+		packetListeners.add(listener);
+	}
+
+	/**
+	 * Removes an existing packet listener.
+	 * 
+	 * @param listener
+	 *            A PacketListener that should no longer be called.
+	 */
+	public void removePacketListener(PacketListener listener) {
+		packetListeners.remove(listener);
+	}
+
+	/**
+	 * Adds a listener for the events that explain stalls in playback. While
+	 * no such listener is registered, reporting an event costs no more than
+	 * checking an empty set.
+	 * 
+	 * @param listener
+	 *            A DiagnosticListener to be called for every diagnostic
+	 *            event.
+	 */
+	public void addDiagnosticListener(DiagnosticListener listener) {
+		diagnosticListeners.add(listener);
+	}
+
+	/**
+	 * Removes an existing diagnostic listener.
+	 * 
+	 * @param listener
+	 *            A DiagnosticListener that should no longer be called.
+	 */
+	public void removeDiagnosticListener(DiagnosticListener listener) {
+		diagnosticListeners.remove(listener);
+	}
+
+	/**
+	 * Returns the listener through which the network interface reports
+	 * diagnostic events, which forwards them to every diagnostic listener of
+	 * the session.
+	 * 
+	 * @return The forwarding listener.
+	 */
+	public DiagnosticListener getDiagnosticListener() {
+		return diagnostics;
+	}
+
+	/**
+	 * Closes the connection with the current server, without closing the open
+	 * file first. This session element should not be used anymore after this
+	 * point.
 	 */
 	public void closeConnection() {
+		closed = true;
 		rtspConnection.closeConnection();
+		if (cacheKey != null)
+			FrameCache.getInstance().detach(cacheKey);
+		for (ListenerDispatcher listener : sessionListeners)
+			listener.close(false);
+		SessionRegistry.getInstance().unregister(this);
+	}
+
+	/**
+	 * Closes the socket of the connection right away, so that a request
+	 * waiting for a server that does not respond fails immediately.
+	 */
+	void abort() {
+		rtspConnection.abort();
 	}
 
 	/**
 	 * Processes a frame received from the RTSP server. This method will direct
 	 * the frame to the user interface to be processed and presented to the
-	 * user.
+	 * user. The frame is queued for each listener, and this method only waits
+	 * for listeners whose queue is full and that do not allow frames to be
+	 * discarded.
 	 * 
 	 * @param frame
 	 *            The recently received frame.
 	 */
-	public synchronized void processReceivedFrame(Frame frame) {
+	public void processReceivedFrame(Frame frame) {
+		if (videoName == null)
+			return;
+		if (frame != null)
+			FrameCache.getInstance().put(cacheKey, frame);
+		try {
+			for (ListenerDispatcher listener : sessionListeners)
+				listener.frameReceived(frame);
+		} catch (InterruptedException e) {
+			// Playout is being stopped, the frame is no longer needed
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Processes a packet of the video as soon as it arrives from the RTSP
+	 * server, directing it to the packet listeners. This method is called by
+	 * the receiving thread and does not take the lock of the session.
+	 * 
+	 * @param frame
+	 *            The frame in the packet.
+	 */
+	public void processArrivedPacket(Frame frame) {
+		for (PacketListener listener : packetListeners)
+			listener.packetReceived(frame);
+	}
+
+	/**
+	 * Processes a frame of a track other than the video, such as audio, when
+	 * it is due to be played. The frame is directed to the track listeners.
+	 * 
+	 * @param mediaType
+	 *            The media type of the track, such as <tt>audio</tt>.
+	 * @param frame
+	 *            The frame to be played.
+	 */
+	public void processReceivedTrackFrame(String mediaType, Frame frame) {
 		if (videoName == null)
 			return;
-		for (SessionListener listener : sessionListeners)
-			listener.frameReceived(frame);
+		for (TrackListener listener : trackListeners)
+			listener.trackFrameReceived(mediaType, frame);
+	}
+
+	/**
+	 * Returns the total size of the frames received but not yet played.
+	 * 
+	 * @return The number of buffered payload bytes.
+	 */
+	public long getBufferedBytes() {
+		return rtspConnection.getBufferedBytes();
+	}
+
+	/**
+	 * Sets the fraction of frames handed to the listeners. The video keeps
+	 * its speed, but only one frame in <tt>decimation</tt> is shown, which
+	 * reduces the decoding load.
+	 * 
+	 * @param decimation
+	 *            1 to show all frames, or n to show one frame in n.
+	 */
+	public void setDecimation(int decimation) {
+		rtspConnection.setDecimation(decimation);
+	}
+
+	/**
+	 * Returns the number of frames received but not yet played.
+	 * 
+	 * @return The number of buffered frames.
+	 */
+	public int getBufferedFrames() {
+		return rtspConnection.getBufferedFrames();
+	}
+
+	/**
+	 * Returns the number of frames discarded because they arrived too late
+	 * to be played, since the video was opened.
+	 * 
+	 * @return The number of discarded frames.
+	 */
+	public long getDroppedFrames() {
+		return rtspConnection.getDroppedFrames();
+	}
+
+	/**
+	 * Returns the number of frames this client failed to show in time: the
+	 * frames played late or skipped by the playout of the video, and the
+	 * frames discarded by listeners that fell behind. Frames lost or late in
+	 * the network, and frames discarded because the video was closed or
+	 * switched, are not counted.
+	 * 
+	 * @return The number of frames skipped by the client.
+	 */
+	public long getSkippedFrames() {
+		long skipped = rtspConnection.getLateFrames();
+		for (ListenerDispatcher listener : sessionListeners)
+			skipped += listener.getDroppedFrames();
+		return skipped;
+	}
+
+	/**
+	 * Returns the average time the listeners take to process a frame, such
+	 * as to decode and show it.
+	 * 
+	 * @return The average processing time in nanoseconds.
+	 */
+	public long getDeliveryTime() {
+		return Math.max(rtspConnection.getDeliveryTime(),
+				getListenerProcessingTime());
+	}
+
+	/**
+	 * Returns the average time the slowest listener takes to process a frame.
+	 * Listeners that allow frames to be discarded are also considered, since
+	 * a listener that falls behind loses frames even if the playout does not
+	 * wait for it.
+	 * 
+	 * @return The average processing time in nanoseconds, or 0 if no such
+	 *         listener processed a frame yet.
+	 */
+	public long getListenerProcessingTime() {
+		long processingTime = 0;
+		for (ListenerDispatcher listener : sessionListeners)
+			processingTime = Math.max(processingTime,
+					listener.getProcessingTime());
+		return processingTime;
+	}
+
+	/**
+	 * Enables or disables the latency trace of the session. The trace is
+	 * enabled by default if the system property
+	 * <code>rtsp.client.trace</code> is set to <tt>true</tt>.
+	 * 
+	 * @param enabled
+	 *            If <tt>true</tt>, the stages of each video frame are
+	 *            recorded from now on.
+	 */
+	public void setLatencyTracing(boolean enabled) {
+		if (!enabled)
+			latencyTrace = null;
+		else if (latencyTrace == null)
+			latencyTrace = new LatencyTrace(LatencyTrace.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns the latency trace of the session, where the listeners may
+	 * record the stages that happen after a frame is delivered to them, such
+	 * as decoding and painting.
+	 * 
+	 * @return The trace, or null if tracing is disabled.
+	 */
+	public LatencyTrace getLatencyTrace() {
+		return latencyTrace;
+	}
+
+	/**
+	 * Returns the number of packets received and lost since the video was
+	 * opened, with an estimate of how many were lost by this host and how
+	 * many in the network.
+	 * 
+	 * @return The reception statistics, or null if no video is open.
+	 */
+	public ReceptionStatistics getReceptionStatistics() {
+		return rtspConnection.getReceptionStatistics();
+	}
+
+	/**
+	 * Returns the encoding of the open video, as described by the server.
+	 * 
+	 * @return The encoding name, such as <tt>JPEG</tt>, or null if the server
+	 *         did not describe the video.
+	 */
+	public String getEncodingName() {
+		return rtspConnection.getEncodingName();
+	}
+
+	/**
+	 * Returns the RTP payload type of the open video, as described by the
+	 * server.
+	 * 
+	 * @return The payload type, or -1 if the server did not describe the
+	 *         video.
+	 */
+	public int getPayloadType() {
+		return rtspConnection.getPayloadType();
+	}
+
+	/**
+	 * Returns the number of tracks (such as video and audio) of the open
+	 * video.
+	 * 
+	 * @return The number of tracks, or 0 if no video is open.
+	 */
+	public int getTrackCount() {
+		return rtspConnection.getTrackCount();
+	}
+
+	/**
+	 * Returns the largest synchronization error between the tracks of the
+	 * open video, such as the lip-sync error between audio and video.
+	 * 
+	 * @return The synchronization error in nanoseconds, or 0 if the video
+	 *         has a single track.
+	 */
+	public long getSyncSkew() {
+		return rtspConnection.getSyncSkew();
+	}
+
+	/**
+	 * Returns the time it took for the first frame to be played after the
+	 * most recent resume from a pause.
+	 * 
+	 * @return The resume latency in nanoseconds, or -1 if the video has not
+	 *         been resumed yet.
+	 */
+	public long getResumeLatency() {
+		return rtspConnection.getResumeLatency();
 	}
 
 	/**
@@ -168,4 +760,32 @@ public class Session {
 	public String getVideoName() {
 		return videoName;
 	}
+
+	/**
+	 * A handle that releases a session when closed. Unlike
+	 * <code>Session.close</code>, which only closes the open file, closing
+	 * the handle closes the connection as well.
+	 */
+	public static final class Resource implements AutoCloseable {
+
+		private final Session session;
+
+		private Resource(Session session) {
+			this.session = session;
+		}
+
+		/**
+		 * Returns the session released by this handle.
+		 * 
+		 * @return The session.
+		 */
+		public Session getSession() {
+			return session;
+		}
+
+		@Override
+		public void close() throws RTSPException {
+			session.release();
+		}
+	}
 }
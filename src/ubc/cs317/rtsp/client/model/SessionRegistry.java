@@ -0,0 +1,181 @@
+package ubc.cs317.rtsp.client.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.log.EventLog;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * This class keeps track of all sessions of the process that were not closed
+ * yet, so that they can all be released together. Sessions are closed in
+ * parallel by a bounded number of threads, and each close is given a bounded
+ * time: a session whose server does not respond to TEARDOWN in time has its
+ * connection aborted instead. When the registry is first used, a shutdown
+ * hook is registered to close every session still open when the process
+ * exits, so servers are told to tear their sessions down instead of waiting
+ * for them to time out.
+ * 
+ * Sessions are held weakly, so a session that is dropped without being
+ * released can still be garbage collected. A session that is playing is
+ * always reachable from its own threads.
+ */
+public class SessionRegistry {
+
+	/**
+	 * Time given to the sessions still open when the process exits to be
+	 * torn down, in milliseconds.
+	 */
+	public static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+	private static final int MAXIMUM_CLOSING_THREADS = 16;
+
+	private static SessionRegistry instance = null;
+
+	private final Set<Session> sessions = Collections
+			.newSetFromMap(new WeakHashMap<Session, Boolean>());
+
+	private SessionRegistry() {
+	}
+
+	/**
+	 * Returns the registry shared by all sessions. The registry, and its
+	 * shutdown hook, are created the first time this method is called.
+	 * 
+	 * @return The shared session registry.
+	 */
+	public static synchronized SessionRegistry getInstance() {
+		if (instance == null) {
+			instance = new SessionRegistry();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					instance.closeAll(SHUTDOWN_TIMEOUT_MS,
+							TimeUnit.MILLISECONDS);
+				}
+			});
+		}
+		return instance;
+	}
+
+	/**
+	 * Adds a session whose connection was just established.
+	 */
+	synchronized void register(Session session) {
+		sessions.add(session);
+	}
+
+	/**
+	 * Removes a session whose connection was closed.
+	 */
+	synchronized void unregister(Session session) {
+		sessions.remove(session);
+	}
+
+	/**
+	 * Returns the sessions whose connection is still open.
+	 * 
+	 * @return A copy of the list of active sessions.
+	 */
+	public synchronized List<Session> getActiveSessions() {
+		return new ArrayList<Session>(sessions);
+	}
+
+	/**
+	 * Returns the number of sessions whose connection is still open.
+	 * 
+	 * @return The number of active sessions.
+	 */
+	public synchronized int getActiveCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Closes every active session, in parallel, waiting at most the given
+	 * time for all of them.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait for the sessions to be closed.
+	 * @param unit
+	 *            The unit of <tt>timeout</tt>.
+	 * @return The number of sessions that were not closed in time, and whose
+	 *         connection was aborted.
+	 */
+	public int closeAll(long timeout, TimeUnit unit) {
+		return closeAll(getActiveSessions(), timeout, unit);
+	}
+
+	/**
+	 * Closes a group of sessions in parallel, waiting at most the given time
+	 * for all of them. Each session is torn down if it has a video open, and
+	 * its connection is closed. The connection of any session not closed
+	 * within the timeout is aborted, so that its pending request fails and
+	 * its resources are released right after this method returns.
+	 * 
+	 * @param sessions
+	 *            The sessions to be closed.
+	 * @param timeout
+	 *            The maximum time to wait for the sessions to be closed.
+	 * @param unit
+	 *            The unit of <tt>timeout</tt>.
+	 * @return The number of sessions that were not closed in time, and whose
+	 *         connection was aborted.
+	 */
+	public static int closeAll(Collection<Session> sessions, long timeout,
+			TimeUnit unit) {
+		if (sessions.isEmpty())
+			return 0;
+
+		final Set<Session> pending = Collections
+				.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+		pending.addAll(sessions);
+		int threads = Math.min(pending.size(), MAXIMUM_CLOSING_THREADS);
+		ExecutorService closers = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				ExecutionMode.getDefault().newDaemonThreadFactory(
+						"Session closer"));
+		for (final Session session : pending) {
+			closers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						session.release();
+					} catch (RTSPException e) {
+						// The connection is closed even if TEARDOWN failed
+					} finally {
+						pending.remove(session);
+					}
+				}
+			});
+		}
+		closers.shutdown();
+		try {
+			closers.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		int aborted = 0;
+		for (Session session : pending) {
+			session.abort();
+			aborted++;
+		}
+		if (aborted > 0) {
+			EventLog eventLog = EventLog.getDefault();
+			if (eventLog.isEnabled(EventLog.Level.WARN))
+				eventLog.log(EventLog.Level.WARN, "session.close.timeout",
+						null, null, -1, "aborted", aborted);
+		}
+		return aborted;
+	}
+}
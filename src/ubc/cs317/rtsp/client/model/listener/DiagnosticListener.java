@@ -0,0 +1,79 @@
+package ubc.cs317.rtsp.client.model.listener;
+
+/**
+ * A listener for the events that explain stalls and glitches in playback,
+ * such as slow RTSP responses, rebuffering and discarded frames. It is called
+ * by the thread where the event happened, sometimes with internal locks held,
+ * so it must return quickly and must not call back into the session. Media
+ * types are those of the tracks, the video being <tt>video</tt>.
+ */
+public interface DiagnosticListener {
+
+	/**
+	 * Reasons for a frame to be discarded.
+	 */
+	public enum DropCause {
+		/**
+		 * The frame arrived after a later frame was played, or was a
+		 * duplicate.
+		 */
+		LATE_ARRIVAL,
+		/**
+		 * The frame was due too long ago to be played at a fast rate.
+		 */
+		LATE_PLAYOUT
+	}
+
+	/**
+	 * Called when an RTSP request was answered or gave up.
+	 * 
+	 * @param method
+	 *            The method of the request, such as <tt>PLAY</tt>.
+	 * @param cseq
+	 *            The sequence number of the request.
+	 * @param statusCode
+	 *            The status code of the response, or -1 if no response was
+	 *            received.
+	 * @param durationNanos
+	 *            The time from sending the request to reading the response.
+	 */
+	public void requestCompleted(String method, int cseq, int statusCode,
+			long durationNanos);
+
+	/**
+	 * Called when a track stops playing because its buffer ran empty.
+	 */
+	public void rebufferingStarted(String mediaType);
+
+	/**
+	 * Called when a track plays again after rebuffering.
+	 * 
+	 * @param durationNanos
+	 *            The time the track was stalled.
+	 */
+	public void rebufferingEnded(String mediaType, long durationNanos);
+
+	/**
+	 * Called when a received frame is discarded without being played.
+	 * Frames skipped on purpose, such as to lower the frame rate, are not
+	 * reported.
+	 */
+	public void frameDropped(String mediaType, short sequenceNumber,
+			DropCause cause);
+
+	/**
+	 * Called when a packet arrives after a packet with a later sequence
+	 * number.
+	 */
+	public void packetReordered(String mediaType, short sequenceNumber);
+
+	/**
+	 * Called when nothing was received from a socket for its timeout.
+	 * 
+	 * @param socket
+	 *            The protocol of the socket, <tt>RTSP</tt> or <tt>RTP</tt>.
+	 * @param timeoutMillis
+	 *            The timeout that expired.
+	 */
+	public void socketTimedOut(String socket, long timeoutMillis);
+}
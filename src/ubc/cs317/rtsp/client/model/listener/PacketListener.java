@@ -0,0 +1,13 @@
+package ubc.cs317.rtsp.client.model.listener;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * A listener for the RTP packets of the video of a session as they arrive,
+ * before they are buffered and played. It is called by the receiving thread,
+ * so it must return quickly.
+ */
+public interface PacketListener {
+
+	public void packetReceived(Frame frame);
+}
@@ -0,0 +1,13 @@
+package ubc.cs317.rtsp.client.model.listener;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * A listener for the frames of the tracks of a session other than the video
+ * track, such as audio. Frames are delivered when they are due to be played,
+ * in sync with the video.
+ */
+public interface TrackListener {
+
+	public void trackFrameReceived(String mediaType, Frame frame);
+}
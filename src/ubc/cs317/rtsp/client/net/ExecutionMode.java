@@ -0,0 +1,105 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This enumeration defines how the per-session loops (RTP receive, frame
+ * playout and keep-alive requests) are run. In <code>PLATFORM</code> mode each
+ * loop has its own operating system thread. In <code>VIRTUAL</code> mode the
+ * loops run on virtual threads, which are only available in Java 21 or later;
+ * the blocking socket calls are unchanged, since the runtime parks virtual
+ * threads blocked on them. If virtual threads are not available, the
+ * <code>VIRTUAL</code> mode falls back to platform threads.
+ */
+public enum ExecutionMode {
+
+	PLATFORM, VIRTUAL;
+
+	/**
+	 * System property used to select the default execution mode. Accepted
+	 * values are <tt>platform</tt> and <tt>virtual</tt>.
+	 */
+	public static final String EXECUTION_MODE_PROPERTY = "rtsp.client.threads";
+
+	private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+	/**
+	 * Returns the execution mode selected by the
+	 * <code>EXECUTION_MODE_PROPERTY</code> system property, or
+	 * <code>PLATFORM</code> if the property is not set.
+	 *
+	 * @return The default execution mode.
+	 */
+	public static ExecutionMode getDefault() {
+		String value = System.getProperty(EXECUTION_MODE_PROPERTY);
+		if (value != null && value.trim().equalsIgnoreCase("virtual"))
+			return VIRTUAL;
+		return PLATFORM;
+	}
+
+	/**
+	 * Returns an indication if this mode is supported by the running Java
+	 * version.
+	 *
+	 * @return <tt>true</tt> if threads created by this mode are of the
+	 *         requested kind, <tt>false</tt> if they fall back to platform
+	 *         threads.
+	 */
+	public boolean isSupported() {
+		return this == PLATFORM || virtualThreadFactory != null;
+	}
+
+	/**
+	 * Creates a new thread, not yet started, running the given task.
+	 *
+	 * @param task
+	 *            The task to be run by the thread.
+	 * @param name
+	 *            The name of the thread.
+	 * @return A new thread.
+	 */
+	public Thread newThread(Runnable task, String name) {
+		if (this == VIRTUAL && virtualThreadFactory != null) {
+			Thread thread = virtualThreadFactory.newThread(task);
+			thread.setName(name);
+			return thread;
+		}
+		return new Thread(task, name);
+	}
+
+	/**
+	 * Returns a thread factory that creates daemon threads of this mode, to be
+	 * used by thread pools shared by many sessions.
+	 *
+	 * @param name
+	 *            The name given to the threads created by the factory.
+	 * @return A thread factory.
+	 */
+	public ThreadFactory newDaemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = ExecutionMode.this.newThread(task, name);
+				if (!thread.isDaemon())
+					thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Obtains the virtual thread factory through reflection, so that the
+	 * client still compiles and runs on Java versions without virtual threads.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
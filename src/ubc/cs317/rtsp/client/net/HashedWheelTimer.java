@@ -0,0 +1,186 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A coarse-grained timer that keeps its pending tasks in a circular array of
+ * buckets (a "hashed wheel"). A single worker thread advances the wheel once
+ * every tick and runs the tasks that expired in the current bucket. Scheduling
+ * and cancelling a task are O(1), so a single timer can hold a very large
+ * number of long-lived timeouts (such as one per idle session).
+ *
+ * Tasks are executed in the worker thread, so they are expected to be short;
+ * anything that may block should be handed off to another thread.
+ */
+public class HashedWheelTimer {
+
+	private final long tickMillis;
+	private final LinkedList<Timeout>[] wheel;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread worker;
+
+	private long startTime;
+	private long tick;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a new timer. The worker thread is started immediately, and is
+	 * marked as a daemon thread.
+	 *
+	 * @param name
+	 *            The name of the worker thread.
+	 * @param tickDuration
+	 *            The interval between two consecutive ticks of the wheel. Tasks
+	 *            are never executed earlier than requested, but may be executed
+	 *            up to one tick later.
+	 * @param unit
+	 *            The time unit of <tt>tickDuration</tt>.
+	 * @param wheelSize
+	 *            The number of buckets in the wheel.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit,
+			int wheelSize) {
+
+		if (tickDuration <= 0 || wheelSize <= 0)
+			throw new IllegalArgumentException("Invalid timer configuration.");
+
+		this.tickMillis = Math.max(1, unit.toMillis(tickDuration));
+		this.wheel = new LinkedList[wheelSize];
+		for (int i = 0; i < wheelSize; i++)
+			wheel[i] = new LinkedList<Timeout>();
+
+		worker = new Thread(new Worker(), name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to be executed once after the specified delay.
+	 *
+	 * @param task
+	 *            The task to be executed.
+	 * @param delay
+	 *            The delay before the task is executed.
+	 * @param unit
+	 *            The time unit of <tt>delay</tt>.
+	 * @return A handle that can be used to cancel the task.
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if (stopped)
+			throw new IllegalStateException("Timer has been stopped.");
+		Timeout timeout = new Timeout(task, System.nanoTime()
+				+ unit.toNanos(Math.max(0, delay)));
+		pendingTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the worker thread. Tasks that have not yet expired are discarded.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * Moves newly scheduled timeouts from the pending queue into their buckets.
+	 * Only called from the worker thread.
+	 */
+	private void transferPendingTimeouts() {
+		Timeout timeout;
+		while ((timeout = pendingTimeouts.poll()) != null) {
+			if (timeout.isCancelled())
+				continue;
+			long ticks = (timeout.deadline - startTime) / (tickMillis * 1000000L);
+			// A deadline already in the past is handled in the current tick
+			long expireTick = Math.max(ticks, tick);
+			timeout.remainingRounds = (expireTick - tick) / wheel.length;
+			wheel[(int) (expireTick % wheel.length)].add(timeout);
+		}
+	}
+
+	/**
+	 * Runs all timeouts in the given bucket that expire in the current round.
+	 * Only called from the worker thread.
+	 */
+	private void expireTimeouts(LinkedList<Timeout> bucket) {
+		Iterator<Timeout> iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			Timeout timeout = iterator.next();
+			if (timeout.isCancelled()) {
+				iterator.remove();
+			} else if (timeout.remainingRounds <= 0) {
+				iterator.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					// A failing task must not stop the timer for everyone else
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			startTime = System.nanoTime();
+			while (!stopped) {
+				long deadline = startTime + (tick + 1) * tickMillis * 1000000L;
+				long sleepMillis = (deadline - System.nanoTime()) / 1000000L;
+				if (sleepMillis > 0) {
+					try {
+						Thread.sleep(sleepMillis);
+					} catch (InterruptedException e) {
+						if (stopped)
+							return;
+					}
+				}
+				transferPendingTimeouts();
+				expireTimeouts(wheel[(int) (tick % wheel.length)]);
+				tick++;
+			}
+		}
+	}
+
+	/**
+	 * A handle for a task scheduled in a <code>HashedWheelTimer</code>.
+	 */
+	public static class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task. If the task has already been executed this call
+		 * has no effect. The bucket entry is removed lazily by the worker.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * Returns an indication if this task has been cancelled.
+		 *
+		 * @return <tt>true</tt> if the task was cancelled, <tt>false</tt>
+		 *         otherwise.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * This class keeps RTSP sessions alive by sending a request to the server
+ * before the session timeout announced in the SETUP response expires. All
+ * connections share a single <code>HashedWheelTimer</code>, so idle sessions
+ * cost one timer entry each instead of one thread each. The requests
+ * themselves are sent by a small pool of threads, since they block waiting for
+ * the server response. A check that finds a connection waiting for the
+ * response to another request is postponed instead of handed to the pool,
+ * since that request refreshes the session anyway, and a slow server would
+ * otherwise hold a sender for as long as it takes to respond.
+ */
+public class KeepAliveService {
+
+	/**
+	 * Session timeout assumed when the server does not announce one, in
+	 * seconds (RFC 2326, section 12.37).
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 60;
+
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512;
+	private static final int SENDER_THREADS = 2;
+
+	private static KeepAliveService instance = null;
+
+	private final HashedWheelTimer timer;
+	private final ExecutorService senders;
+
+	private KeepAliveService() {
+		timer = new HashedWheelTimer("RTSP keep-alive timer", TICK_MILLIS,
+				TimeUnit.MILLISECONDS, WHEEL_SIZE);
+		senders = Executors.newFixedThreadPool(SENDER_THREADS, ExecutionMode
+				.getDefault().newDaemonThreadFactory("RTSP keep-alive sender"));
+	}
+
+	/**
+	 * Returns the keep-alive service shared by all connections. The service
+	 * is created the first time this method is called.
+	 *
+	 * @return The shared keep-alive service.
+	 */
+	public static synchronized KeepAliveService getInstance() {
+		if (instance == null)
+			instance = new KeepAliveService();
+		return instance;
+	}
+
+	/**
+	 * Returns the interval between keep-alive requests for a given session
+	 * timeout. Requests are sent at half the timeout, so that a single lost
+	 * or slow request does not expire the session.
+	 *
+	 * @param sessionTimeout
+	 *            The session timeout, in seconds.
+	 * @return The keep-alive interval, in milliseconds.
+	 */
+	public static long getKeepAliveInterval(int sessionTimeout) {
+		return Math.max(1000L, sessionTimeout * 1000L / 2);
+	}
+
+	/**
+	 * Schedules the next keep-alive check for a connection. When the check
+	 * expires, a keep-alive request is sent only if the connection has not
+	 * exchanged any other request with the server in the meantime, and is not
+	 * waiting for the response to one.
+	 *
+	 * @param connection
+	 *            The connection to be kept alive.
+	 * @param delayMillis
+	 *            The delay before the check, in milliseconds.
+	 * @return A handle that can be used to cancel the check.
+	 */
+	HashedWheelTimer.Timeout schedule(final RTSPConnection connection,
+			long delayMillis) {
+		return timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if (connection.isRequestInProgress()) {
+					connection.keepAliveSkipped();
+					return;
+				}
+				senders.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							connection.keepAlive();
+						} catch (RTSPException e) {
+							// The next control request will report the error
+						}
+					}
+				});
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+}
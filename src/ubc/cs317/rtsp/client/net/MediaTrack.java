@@ -0,0 +1,291 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * This class represents a single media track of an RTSP session, such as the
+ * video or the audio of a movie. Each track is set up separately, and has its
+ * own playout buffer. A unicast track has its own pair of RTP and RTCP
+ * channels; a multicast track subscribes to the shared receiver of its group.
+ */
+class MediaTrack {
+
+	private static final int PORT_PAIR_ATTEMPTS = 8;
+
+	private final int index;
+	private final String type;
+	private final String controlURL;
+	private final int payloadType;
+	private final String encodingName;
+	private final int clockRate;
+	private final boolean primary;
+	private final ReceptionStatistics statistics = new ReceptionStatistics();
+
+	private DatagramChannel rtpChannel;
+	private DatagramChannel rtcpChannel;
+	private int receiveBufferSize;
+	private PlayoutBuffer playoutBuffer;
+	private Thread playoutThread;
+
+	private InetAddress multicastGroup;
+	private int multicastRTPPort;
+	private int multicastRTCPPort;
+	private MulticastReceiver multicastReceiver;
+	private MulticastReceiver.Subscriber multicastSubscriber;
+
+	/**
+	 * Creates a new track, with no channels open.
+	 *
+	 * @param index
+	 *            The index of the track in the session.
+	 * @param type
+	 *            The media type of the track, such as <tt>video</tt>.
+	 * @param controlURL
+	 *            The URL used to set up the track.
+	 * @param payloadType
+	 *            The RTP payload type, or -1 if not known.
+	 * @param encodingName
+	 *            The encoding name, or null if not known.
+	 * @param clockRate
+	 *            The RTP clock rate, or 0 if not known.
+	 * @param primary
+	 *            If <tt>true</tt>, this is the video track shown by the
+	 *            session.
+	 */
+	MediaTrack(int index, String type, String controlURL, int payloadType,
+			String encodingName, int clockRate, boolean primary) {
+		this.index = index;
+		this.type = type;
+		this.controlURL = controlURL;
+		this.payloadType = payloadType;
+		this.encodingName = encodingName;
+		this.clockRate = clockRate;
+		this.primary = primary;
+	}
+
+	/**
+	 * Opens the RTP and RTCP channels of the track. The RTP channel uses an
+	 * even port and the RTCP channel the next one, as recommended by RFC 3550,
+	 * unless no such pair is found after a few attempts. The socket options
+	 * are set before the channels are bound; the kernel may round or cap the
+	 * receive buffer size, so the size actually used is read back.
+	 *
+	 * @param receiveBufferSize
+	 *            The receive buffer size of the sockets, or 0 for the system
+	 *            default.
+	 * @param trafficClass
+	 *            The IP traffic class (type of service) of the sockets, or -1
+	 *            for the system default.
+	 * @throws IOException
+	 *             If the channels could not be opened.
+	 */
+	void open(int receiveBufferSize, int trafficClass) throws IOException {
+		close();
+		for (int i = 0; i < PORT_PAIR_ATTEMPTS && rtcpChannel == null; i++) {
+			rtpChannel = openChannel(0, receiveBufferSize, trafficClass);
+			int port = rtpChannel.socket().getLocalPort();
+			if (port % 2 == 0) {
+				try {
+					rtcpChannel = openChannel(port + 1, receiveBufferSize,
+							trafficClass);
+				} catch (IOException e) {
+				}
+			}
+			if (rtcpChannel == null)
+				rtpChannel.close();
+		}
+		if (rtcpChannel == null) {
+			rtpChannel = openChannel(0, receiveBufferSize, trafficClass);
+			rtcpChannel = openChannel(0, receiveBufferSize, trafficClass);
+		}
+		this.receiveBufferSize = rtpChannel
+				.getOption(StandardSocketOptions.SO_RCVBUF);
+	}
+
+	/**
+	 * Registers the channels of the track in a selector. The track is
+	 * attached to both keys.
+	 *
+	 * @param selector
+	 *            The selector shared by all tracks of the session.
+	 * @throws IOException
+	 *             If the channels are closed.
+	 */
+	void register(Selector selector) throws IOException {
+		if (rtpChannel == null)
+			return;
+		rtpChannel.register(selector, SelectionKey.OP_READ, this);
+		rtcpChannel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Sets the multicast group where the server sends the packets of this
+	 * track, as returned in the Transport header of the SETUP response.
+	 *
+	 * @param group
+	 *            The multicast group address.
+	 * @param rtpPort
+	 *            The port of the RTP packets.
+	 * @param rtcpPort
+	 *            The port of the RTCP packets.
+	 */
+	void setMulticastDestination(InetAddress group, int rtpPort, int rtcpPort) {
+		multicastGroup = group;
+		multicastRTPPort = rtpPort;
+		multicastRTCPPort = rtcpPort;
+	}
+
+	boolean isMulticast() {
+		return multicastGroup != null;
+	}
+
+	/**
+	 * Subscribes to the packets of the multicast group of the track.
+	 *
+	 * @param subscriber
+	 *            The subscriber to be called for the packets of the group.
+	 * @throws IOException
+	 *             If the group could not be joined.
+	 */
+	void joinMulticast(MulticastReceiver.Subscriber subscriber)
+			throws IOException {
+		leaveMulticast();
+		multicastReceiver = MulticastReceiver.subscribe(multicastGroup,
+				multicastRTPPort, multicastRTCPPort, subscriber);
+		multicastSubscriber = subscriber;
+	}
+
+	/**
+	 * Unsubscribes from the multicast group of the track, if subscribed.
+	 */
+	void leaveMulticast() {
+		if (multicastReceiver != null) {
+			multicastReceiver.unsubscribe(multicastSubscriber);
+			multicastReceiver = null;
+			multicastSubscriber = null;
+		}
+	}
+
+	/**
+	 * Closes the channels of the track, if they are open, and leaves its
+	 * multicast group.
+	 */
+	void close() {
+		leaveMulticast();
+		closeChannel(rtpChannel);
+		closeChannel(rtcpChannel);
+		rtpChannel = null;
+		rtcpChannel = null;
+	}
+
+	/**
+	 * Returns the value of the Transport header used to set up the track.
+	 *
+	 * @param aggregate
+	 *            If <tt>false</tt>, the header understood by the course
+	 *            server is used, with the RTP port only.
+	 * @return The transport specification.
+	 */
+	String getTransport(boolean aggregate) {
+		int rtpPort = rtpChannel.socket().getLocalPort();
+		if (!aggregate)
+			return "RTP/UDP; client_port= " + rtpPort;
+		return "RTP/AVP;unicast;client_port=" + rtpPort + "-"
+				+ rtcpChannel.socket().getLocalPort();
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	String getType() {
+		return type;
+	}
+
+	String getControlURL() {
+		return controlURL;
+	}
+
+	int getPayloadType() {
+		return payloadType;
+	}
+
+	String getEncodingName() {
+		return encodingName;
+	}
+
+	int getClockRate() {
+		return clockRate;
+	}
+
+	boolean isPrimary() {
+		return primary;
+	}
+
+	boolean isRTCPChannel(Object channel) {
+		return channel == rtcpChannel;
+	}
+
+	/**
+	 * Returns the receive buffer size of the RTP channel, as reported by the
+	 * system when the channel was opened.
+	 *
+	 * @return The receive buffer size in bytes, or 0 if no channel was opened.
+	 */
+	int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	ReceptionStatistics getStatistics() {
+		return statistics;
+	}
+
+	PlayoutBuffer getPlayoutBuffer() {
+		return playoutBuffer;
+	}
+
+	void setPlayoutBuffer(PlayoutBuffer playoutBuffer) {
+		this.playoutBuffer = playoutBuffer;
+	}
+
+	Thread getPlayoutThread() {
+		return playoutThread;
+	}
+
+	void setPlayoutThread(Thread playoutThread) {
+		this.playoutThread = playoutThread;
+	}
+
+	private static DatagramChannel openChannel(int port,
+			int receiveBufferSize, int trafficClass) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			if (receiveBufferSize > 0)
+				channel.setOption(StandardSocketOptions.SO_RCVBUF,
+						receiveBufferSize);
+			if (trafficClass >= 0)
+				channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+			channel.bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private static void closeChannel(DatagramChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
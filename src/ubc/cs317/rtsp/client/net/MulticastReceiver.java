@@ -0,0 +1,271 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * This class receives the RTP and RTCP packets sent by a server to a multicast
+ * group, and hands them to all local subscribers of that group. Any number of
+ * sessions in this process watching the same group share a single pair of
+ * channels and a single receiver thread: each RTP packet is parsed into a
+ * frame once, and the same frame object is handed to every subscriber, so the
+ * cost of each additional subscriber does not depend on the payload size.
+ *
+ * Receivers are created when the first subscriber of a group subscribes, and
+ * closed when the last one unsubscribes.
+ */
+public class MulticastReceiver implements Runnable {
+
+	/**
+	 * Name of the system property that selects the network interface used to
+	 * join multicast groups. If not set, the interface of the local host name
+	 * is used, or else the first interface that supports multicast.
+	 */
+	public static final String INTERFACE_PROPERTY = "rtsp.client.multicast.interface";
+
+	private static final int BUFFER_LENGTH = 15000;
+	private static final int RECEIVE_TIMEOUT_MS = 1000;
+
+	private static final Map<String, MulticastReceiver> receivers = new HashMap<String, MulticastReceiver>();
+
+	/**
+	 * A consumer of the packets of a multicast group.
+	 */
+	public interface Subscriber {
+
+		/**
+		 * Called for each RTP packet received. The frame is shared by all
+		 * subscribers and must not be modified.
+		 */
+		public void frameReceived(Frame frame);
+
+		/**
+		 * Called for each RTCP packet received. The buffer is shared by all
+		 * subscribers and is only valid during the call; its position and
+		 * limit must not be changed.
+		 */
+		public void rtcpReceived(ByteBuffer packet);
+
+		/**
+		 * Called when no packet was received from the group for one second.
+		 */
+		public void receiveTimeout();
+	}
+
+	private final String key;
+	private final DatagramChannel rtpChannel;
+	private final DatagramChannel rtcpChannel;
+	private final Selector selector;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_LENGTH);
+
+	private MulticastReceiver(String key, InetAddress group, int rtpPort,
+			int rtcpPort) throws IOException {
+		this.key = key;
+		NetworkInterface networkInterface = getInterface();
+		selector = Selector.open();
+		DatagramChannel rtp = null;
+		DatagramChannel rtcp = null;
+		try {
+			rtp = joinGroup(group, rtpPort, networkInterface);
+			rtcp = joinGroup(group, rtcpPort, networkInterface);
+			rtp.register(selector, SelectionKey.OP_READ);
+			rtcp.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			if (rtp != null)
+				rtp.close();
+			if (rtcp != null)
+				rtcp.close();
+			selector.close();
+			throw e;
+		}
+		rtpChannel = rtp;
+		rtcpChannel = rtcp;
+	}
+
+	/**
+	 * Subscribes to the packets sent to a multicast group, joining the group
+	 * if this is the first subscriber.
+	 *
+	 * @param group
+	 *            The multicast group address.
+	 * @param rtpPort
+	 *            The port where RTP packets are sent.
+	 * @param rtcpPort
+	 *            The port where RTCP packets are sent.
+	 * @param subscriber
+	 *            The subscriber to be called for the packets of the group.
+	 * @return The receiver of the group, to be used to unsubscribe.
+	 * @throws IOException
+	 *             If the group could not be joined.
+	 */
+	public static synchronized MulticastReceiver subscribe(InetAddress group,
+			int rtpPort, int rtcpPort, Subscriber subscriber)
+			throws IOException {
+		String key = group.getHostAddress() + ":" + rtpPort + "-" + rtcpPort;
+		MulticastReceiver receiver = receivers.get(key);
+		if (receiver == null) {
+			receiver = new MulticastReceiver(key, group, rtpPort, rtcpPort);
+			receivers.put(key, receiver);
+			ExecutionMode.getDefault()
+					.newThread(receiver, "Multicast receiver " + key).start();
+		}
+		receiver.subscribers.add(subscriber);
+		return receiver;
+	}
+
+	/**
+	 * Removes a subscriber of this group. If there are no more subscribers,
+	 * the group is left and the receiver is closed.
+	 *
+	 * @param subscriber
+	 *            The subscriber to be removed.
+	 */
+	public void unsubscribe(Subscriber subscriber) {
+		synchronized (MulticastReceiver.class) {
+			subscribers.remove(subscriber);
+			if (!subscribers.isEmpty() || receivers.get(key) != this)
+				return;
+			receivers.remove(key);
+		}
+		try {
+			selector.close();
+			rtpChannel.close();
+			rtcpChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Returns the number of subscribers of this group.
+	 *
+	 * @return The number of subscribers.
+	 */
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Receives packets from the group until the receiver is closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (selector.isOpen()) {
+				if (selector.select(RECEIVE_TIMEOUT_MS) == 0) {
+					if (selector.isOpen())
+						for (Subscriber subscriber : subscribers)
+							subscriber.receiveTimeout();
+					continue;
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey selected = keys.next();
+					keys.remove();
+					receive((DatagramChannel) selected.channel());
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// The last subscriber left the group
+		} catch (IOException e) {
+			for (Subscriber subscriber : subscribers)
+				subscriber.receiveTimeout();
+		}
+	}
+
+	/**
+	 * Receives all packets available in a channel and hands them to the
+	 * subscribers.
+	 */
+	private void receive(DatagramChannel channel) throws IOException {
+		buffer.clear();
+		while (channel.receive(buffer) != null) {
+			buffer.flip();
+			if (channel == rtcpChannel) {
+				for (Subscriber subscriber : subscribers)
+					subscriber.rtcpReceived(buffer);
+			} else if (buffer.limit() >= RTSPConnection.RTP_HEADER_LENGTH) {
+				Frame frame = RTSPConnection.parseRTPPacket(buffer.array(),
+						buffer.limit());
+				for (Subscriber subscriber : subscribers)
+					subscriber.frameReceived(frame);
+			}
+			buffer.clear();
+		}
+	}
+
+	private static DatagramChannel joinGroup(InetAddress group, int port,
+			NetworkInterface networkInterface) throws IOException {
+		DatagramChannel channel = DatagramChannel
+				.open(group instanceof Inet6Address ? StandardProtocolFamily.INET6
+						: StandardProtocolFamily.INET);
+		try {
+			// Other processes on this host may be watching the same group
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(port));
+			channel.join(group, networkInterface);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Returns the network interface used to join groups.
+	 */
+	private static NetworkInterface getInterface() throws IOException {
+		String name = System.getProperty(INTERFACE_PROPERTY);
+		if (name != null) {
+			NetworkInterface networkInterface = NetworkInterface
+					.getByName(name);
+			if (networkInterface == null)
+				throw new SocketException("Unknown network interface: " + name);
+			return networkInterface;
+		}
+		try {
+			NetworkInterface networkInterface = NetworkInterface
+					.getByInetAddress(InetAddress.getLocalHost());
+			if (networkInterface != null
+					&& networkInterface.supportsMulticast())
+				return networkInterface;
+		} catch (IOException e) {
+		}
+		Enumeration<NetworkInterface> interfaces = NetworkInterface
+				.getNetworkInterfaces();
+		NetworkInterface loopback = null;
+		while (interfaces.hasMoreElements()) {
+			NetworkInterface networkInterface = interfaces.nextElement();
+			if (!networkInterface.isUp()
+					|| !networkInterface.supportsMulticast())
+				continue;
+			if (!networkInterface.isLoopback())
+				return networkInterface;
+			loopback = networkInterface;
+		}
+		if (loopback == null)
+			throw new SocketException("No network interface supports multicast.");
+		return loopback;
+	}
+}
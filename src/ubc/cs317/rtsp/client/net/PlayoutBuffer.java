@@ -0,0 +1,636 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.FrameStore;
+import ubc.cs317.rtsp.client.model.LatencyTrace;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.listener.DiagnosticListener;
+
+/**
+ * This class holds the frames received for a stream until they are due to be
+ * played, and plays them in sequence order to the session. Playout is driven
+ * by a small state machine: frame arrival, pause, resume, seek and close are
+ * all signalled through a condition, so the playout thread only wakes up when
+ * there is something to do, and uses no CPU while the stream is paused or
+ * waiting for frames.
+ * 
+ * The first frame of the stream is played as soon as it arrives, and the
+ * buffer is filled after that, so the user sees an image after a single round
+ * trip instead of after the whole prebuffer.
+ * 
+ * When the RTP clock rate of the stream is known, frames are played at the
+ * pace given by their timestamps; otherwise a fixed frame interval is used.
+ * A buffer may also be one of several tracks of a session sharing a
+ * <code>PlayoutClock</code>, in which case frames are played at the time
+ * given by the clock as soon as the track is synchronized.
+ */
+public class PlayoutBuffer implements Runnable {
+
+	/**
+	 * Number of frames buffered before playback starts or resumes after the
+	 * buffer runs empty.
+	 */
+	public static final int MINIMUM_FRAMES_TO_PLAY = 50;
+
+	private static final long FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(40);
+	private static final long PREBUFFER_TIMEOUT_NANOS = TimeUnit.SECONDS
+			.toNanos(2);
+	private static final long REBUFFER_TIMEOUT_NANOS = TimeUnit.SECONDS
+			.toNanos(20);
+	private static final int MAXIMUM_TIMESTAMP_GAP_SECONDS = 2;
+	private static final double DELIVERY_TIME_SMOOTHING = 0.1;
+
+	/**
+	 * The states of the playout state machine.
+	 */
+	public enum State {
+		BUFFERING, PLAYING, PAUSED, CLOSED
+	}
+
+	private final Session session;
+	private final PlayoutClock clock;
+	private final int track;
+	private final String trackType;
+	private final String mediaType;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private FrameStore queue = new FrameStore();
+
+	private State state = State.BUFFERING;
+	private boolean endOfStream = false;
+	private boolean firstFramePlayed = false;
+	private long nextFrameTime;
+	private int clockRate = 0;
+	private boolean anchored = false;
+	private long anchorTime;
+	private int anchorTimestamp;
+	private long bufferingDeadline = System.nanoTime() + PREBUFFER_TIMEOUT_NANOS;
+	private long resumeTime = -1;
+	private volatile long resumeLatency = -1;
+	private long rebufferingTime = -1;
+	private int decimation = 1;
+	private int decimationCount = 0;
+	private double rate = 1.0;
+	private boolean markedFrames = false;
+	private volatile long droppedFrames = 0;
+	private volatile long lateFrames = 0;
+	private volatile long deliveryTime = 0;
+
+	/**
+	 * Creates a new, empty playout buffer. The buffer starts in the
+	 * <code>BUFFERING</code> state.
+	 *
+	 * @param session
+	 *            The session that receives the frames as they are played.
+	 */
+	public PlayoutBuffer(Session session) {
+		this(session, null, 0, null);
+	}
+
+	/**
+	 * Creates a new, empty playout buffer for a track of a session. The
+	 * buffer starts in the <code>BUFFERING</code> state.
+	 *
+	 * @param session
+	 *            The session that receives the frames as they are played.
+	 * @param clock
+	 *            The clock shared by the tracks of the session, or null if
+	 *            the track is played on its own.
+	 * @param track
+	 *            The index of the track in the clock.
+	 * @param trackType
+	 *            The media type of the track, or null if this is the video
+	 *            track shown by the session.
+	 */
+	public PlayoutBuffer(Session session, PlayoutClock clock, int track,
+			String trackType) {
+		this.session = session;
+		this.clock = clock;
+		this.track = track;
+		this.trackType = trackType;
+		mediaType = trackType == null ? "video" : trackType;
+	}
+
+	/**
+	 * Sets the clock rate of the RTP timestamps of the stream, used to pace
+	 * playback.
+	 *
+	 * @param clockRate
+	 *            The clock rate in Hz, or 0 to play frames at a fixed interval.
+	 */
+	public void setClockRate(int clockRate) {
+		lock.lock();
+		try {
+			this.clockRate = Math.max(0, clockRate);
+			anchored = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Selects where the payloads of the buffered frames are kept. Off the
+	 * heap, a deep buffer does not lengthen garbage collection pauses, and
+	 * its memory is released as soon as the buffer is closed. Frames already
+	 * buffered are discarded.
+	 *
+	 * @param offHeap
+	 *            If <tt>true</tt>, payloads are kept in direct buffers.
+	 */
+	public void setOffHeap(boolean offHeap) {
+		lock.lock();
+		try {
+			if (queue.isOffHeap() != offHeap) {
+				queue.clear();
+				queue = new FrameStore(FrameStore.DEFAULT_BLOCK_SIZE, offHeap);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the fraction of frames handed to the session. Frames that are not
+	 * handed are still consumed at their regular pace, so the frame rate seen
+	 * by the session is divided by the decimation factor, without changing
+	 * the speed of the video.
+	 *
+	 * @param decimation
+	 *            1 to play all frames, or n to play one frame in n.
+	 */
+	public void setDecimation(int decimation) {
+		lock.lock();
+		try {
+			this.decimation = Math.max(1, decimation);
+			decimationCount = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the playback rate of the stream, as applied by the server. Frames
+	 * are paced by their timestamps divided by the rate, and timestamps are
+	 * expected to decrease when the rate is negative. While the rate is not
+	 * 1, the shared clock is not followed and tracks other than the video are
+	 * not played. If frames cannot be processed as fast as they are due at a
+	 * fast rate, only frames with the marker bit set are played, even if
+	 * late, so that playback keeps its speed. In streams without marked
+	 * frames, frames already late are skipped instead.
+	 *
+	 * @param rate
+	 *            The playback rate, such as 2 for double speed or -1 for
+	 *            reverse; must not be 0.
+	 */
+	public void setRate(double rate) {
+		lock.lock();
+		try {
+			this.rate = rate;
+			anchored = false;
+			nextFrameTime = System.nanoTime();
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a copy of a received frame to the buffer. Frames may be added in
+	 * any order; they are played in sequence number order, and handed to the
+	 * session as views of the buffer memory.
+	 *
+	 * @param frame
+	 *            The received frame.
+	 */
+	public void offer(Frame frame) {
+		lock.lock();
+		try {
+			if (state == State.CLOSED)
+				return;
+			if (add(frame))
+				changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a batch of received frames to the buffer, as if each one was added
+	 * with <code>offer(Frame)</code>, but with a single acquisition of the
+	 * lock and a single wake-up of the playout loop.
+	 *
+	 * @param frames
+	 *            An array with the received frames.
+	 * @param count
+	 *            The number of frames at the start of the array to be added.
+	 */
+	public void offer(Frame[] frames, int count) {
+		lock.lock();
+		try {
+			if (state == State.CLOSED)
+				return;
+			for (int i = 0; i < count; i++)
+				add(frames[i]);
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a received frame to the queue, or counts it as dropped if it
+	 * arrived too late to be played. Must be called with the lock held.
+	 *
+	 * @return <tt>true</tt> if the frame was added.
+	 */
+	private boolean add(Frame frame) {
+		if (!queue.add(frame)) {
+			droppedFrames++;
+			session.getDiagnosticListener().frameDropped(mediaType,
+					frame.getSequenceNumber(),
+					DiagnosticListener.DropCause.LATE_ARRIVAL);
+			return false;
+		}
+		markedFrames |= frame.isMarkerOn();
+		return true;
+	}
+
+	/**
+	 * Stops playing frames. Frames still arriving are kept in the buffer.
+	 */
+	public void pause() {
+		lock.lock();
+		try {
+			if (state != State.CLOSED) {
+				endRebuffering();
+				state = State.PAUSED;
+				changed.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Resumes playback after a pause. Frames already in the buffer are played
+	 * right away; the buffer is only filled again if it ran empty during the
+	 * pause.
+	 */
+	public void resume() {
+		lock.lock();
+		try {
+			if (state != State.PAUSED)
+				return;
+			resumeTime = System.nanoTime();
+			if (queue.isEmpty()) {
+				startBuffering(PREBUFFER_TIMEOUT_NANOS);
+			} else {
+				state = State.PLAYING;
+				nextFrameTime = resumeTime;
+				anchored = false;
+				changed.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all buffered frames and restarts buffering from the beginning
+	 * of the stream, such as after the playback position was changed in the
+	 * server.
+	 */
+	public void seek() {
+		lock.lock();
+		try {
+			if (state == State.CLOSED)
+				return;
+			queue.clear();
+			endOfStream = false;
+			firstFramePlayed = false;
+			endRebuffering();
+			if (state != State.PAUSED)
+				startBuffering(PREBUFFER_TIMEOUT_NANOS);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indicates that no more frames will be received. Frames already in the
+	 * buffer are still played, after which the playout loop finishes.
+	 */
+	public void endOfStream() {
+		lock.lock();
+		try {
+			endOfStream = true;
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all buffered frames and finishes the playout loop.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			state = State.CLOSED;
+			queue.clear();
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current state of the buffer.
+	 *
+	 * @return The playout state.
+	 */
+	public State getState() {
+		lock.lock();
+		try {
+			return state;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the total size of the payloads of the frames currently in the
+	 * buffer.
+	 *
+	 * @return The number of buffered payload bytes.
+	 */
+	public long getBufferedBytes() {
+		lock.lock();
+		try {
+			return queue.getBufferedBytes();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time between the most recent call to <code>resume</code>
+	 * and the moment the first frame after it was handed to the session.
+	 *
+	 * @return The resume latency in nanoseconds, or -1 if playback was never
+	 *         resumed.
+	 */
+	public long getResumeLatency() {
+		return resumeLatency;
+	}
+
+	/**
+	 * Returns the number of frames discarded because they arrived after a
+	 * later frame had already been played, or were received twice.
+	 *
+	 * @return The number of discarded frames since the buffer was created.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Returns the number of frames that were due to be shown but were played
+	 * more than a frame interval late, or skipped for being late. Unlike the
+	 * frames dropped on arrival, these are caused by the client not keeping
+	 * up with the stream. Frames left out by decimation are not counted.
+	 *
+	 * @return The number of late frames since the buffer was created.
+	 */
+	public long getLateFrames() {
+		return lateFrames;
+	}
+
+	/**
+	 * Returns the time the session takes to process a frame, such as to
+	 * decode and show it, smoothed over the most recent frames.
+	 *
+	 * @return The average delivery time in nanoseconds, or 0 if no frame was
+	 *         played yet.
+	 */
+	public long getDeliveryTime() {
+		return deliveryTime;
+	}
+
+	/**
+	 * Returns the number of frames currently in the buffer.
+	 *
+	 * @return The number of buffered frames.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Plays the buffered frames until the buffer is closed, or until the end
+	 * of the stream is reached and all frames were played.
+	 */
+	@Override
+	public void run() {
+		lock.lock();
+		try {
+			while (true) {
+				switch (state) {
+				case CLOSED:
+					return;
+				case PAUSED:
+					changed.await();
+					break;
+				case BUFFERING:
+					if (queue.isEmpty() && endOfStream) {
+						endRebuffering();
+						state = State.CLOSED;
+						return;
+					}
+					if (!firstFramePlayed && !queue.isEmpty()) {
+						Frame first = queue.poll();
+						firstFramePlayed = true;
+						deliver(first);
+						break;
+					}
+					long remaining = bufferingDeadline - System.nanoTime();
+					if (queue.size() >= MINIMUM_FRAMES_TO_PLAY || endOfStream
+							|| (remaining <= 0 && !queue.isEmpty())) {
+						endRebuffering();
+						state = State.PLAYING;
+						nextFrameTime = System.nanoTime();
+						anchored = false;
+					} else if (queue.isEmpty())
+						changed.await();
+					else
+						changed.awaitNanos(remaining);
+					break;
+				case PLAYING:
+					playNextFrame();
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Playout thread was stopped externally
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Plays the frame at the head of the buffer if it is due, or waits until
+	 * it is due or the state changes. Must be called with the lock held; the
+	 * lock is released while the frame is delivered to the session.
+	 */
+	private void playNextFrame() throws InterruptedException {
+		Frame frame = queue.peek();
+		if (frame == null) {
+			if (endOfStream)
+				state = State.CLOSED;
+			else {
+				startBuffering(REBUFFER_TIMEOUT_NANOS);
+				rebufferingTime = System.nanoTime();
+				session.getDiagnosticListener().rebufferingStarted(mediaType);
+			}
+			return;
+		}
+		long now = System.nanoTime();
+		long due = nextFrameTime;
+		boolean trickPlay = rate != 1.0;
+		boolean synced = !trickPlay && clock != null
+				&& clock.isSynchronized(track);
+		if (synced)
+			due = clock.getPlayoutTime(track, frame.getTimestamp(), now);
+		else if (clockRate > 0 && anchored)
+			due = anchorTime
+					+ getTimestampInterval(rate < 0 ? anchorTimestamp
+							- frame.getTimestamp() : frame.getTimestamp()
+							- anchorTimestamp);
+		if (due - now > 0) {
+			changed.awaitNanos(due - now);
+			return;
+		}
+
+		queue.poll();
+		long interval = getFrameInterval();
+		boolean late = now - due > interval;
+		// At fast rates, skip frames instead of slowing down when overloaded
+		long processingTime = Math.max(deliveryTime,
+				session.getListenerProcessingTime());
+		boolean overloaded = Math.abs(rate) > 1 && processingTime > interval;
+		if (synced)
+			clock.framePlayed(track, due, now);
+		if (clockRate > 0) {
+			// Don't try to catch up on frames played late
+			anchorTime = late && !overloaded ? now : due;
+			anchorTimestamp = frame.getTimestamp();
+			anchored = true;
+		} else {
+			nextFrameTime += interval;
+			// Don't try to catch up on frames played late, play at regular pace
+			if (nextFrameTime - now < 0 && !overloaded)
+				nextFrameTime = now + interval;
+		}
+		if (overloaded && markedFrames && !frame.isMarkerOn())
+			return;
+		// Marked frames are shown even if late, or an overloaded client
+		// would show nothing at all
+		if (overloaded && late && !markedFrames) {
+			lateFrames++;
+			session.getDiagnosticListener().frameDropped(mediaType,
+					frame.getSequenceNumber(),
+					DiagnosticListener.DropCause.LATE_PLAYOUT);
+			return;
+		}
+		if (trickPlay && trackType != null)
+			return;
+		if (decimation > 1 && decimationCount++ % decimation != 0)
+			return;
+		if (late)
+			lateFrames++;
+		deliver(frame);
+	}
+
+	/**
+	 * Converts a difference of RTP timestamps to the time between the frames,
+	 * at the current rate. Timestamps wrap around at 32 bits; a difference
+	 * that goes backwards or is too large is treated as a discontinuity, and
+	 * the fixed frame interval is used instead. Must be called with the lock
+	 * held.
+	 */
+	private long getTimestampInterval(int timestampDelta) {
+		long ticks = timestampDelta & 0xFFFFFFFFL;
+		if (ticks > (long) clockRate * MAXIMUM_TIMESTAMP_GAP_SECONDS
+				* Math.max(1, (long) Math.ceil(Math.abs(rate))))
+			return getFrameInterval();
+		return (long) (ticks * 1000000000L / clockRate / Math.abs(rate));
+	}
+
+	/**
+	 * Returns the fixed frame interval at the current rate. Must be called
+	 * with the lock held.
+	 */
+	private long getFrameInterval() {
+		return (long) (FRAME_INTERVAL_NANOS / Math.abs(rate));
+	}
+
+	/**
+	 * Hands a frame to the session. Must be called with the lock held; the
+	 * lock is released while the frame is delivered.
+	 */
+	private void deliver(Frame frame) {
+		long resumedAt = resumeTime;
+		resumeTime = -1;
+		lock.unlock();
+		try {
+			long start = System.nanoTime();
+			LatencyTrace trace = session.getLatencyTrace();
+			if (trace != null && trackType == null)
+				trace.record(LatencyTrace.Stage.DEQUEUE,
+						frame.getSequenceNumber(), start);
+			if (trackType == null)
+				session.processReceivedFrame(frame);
+			else
+				session.processReceivedTrackFrame(trackType, frame);
+			long end = System.nanoTime();
+			if (resumedAt != -1)
+				resumeLatency = end - resumedAt;
+			long previous = deliveryTime;
+			deliveryTime = previous == 0 ? end - start : previous
+					+ (long) ((end - start - previous) * DELIVERY_TIME_SMOOTHING);
+		} finally {
+			lock.lock();
+		}
+	}
+
+	/**
+	 * Reports the end of a stall, if the buffer ran empty while playing. Must
+	 * be called with the lock held.
+	 */
+	private void endRebuffering() {
+		if (rebufferingTime != -1) {
+			session.getDiagnosticListener().rebufferingEnded(mediaType,
+					System.nanoTime() - rebufferingTime);
+			rebufferingTime = -1;
+		}
+	}
+
+	/**
+	 * Switches to the buffering state. Must be called with the lock held.
+	 */
+	private void startBuffering(long timeoutNanos) {
+		state = State.BUFFERING;
+		bufferingDeadline = System.nanoTime() + timeoutNanos;
+		changed.signal();
+	}
+}
@@ -0,0 +1,253 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is the playout clock shared by the tracks of a session. The RTP
+ * timestamps of each track are mapped to the wallclock time of the sender
+ * using the RTCP sender reports of that track, and the sender time is mapped
+ * to local time through a single reference point. Frames of different tracks
+ * sampled at the same time by the sender are therefore played at the same
+ * local time (lip sync).
+ *
+ * The reference point follows the master track, usually the audio: if the
+ * master plays late, the reference moves forward instead of catching up, and
+ * all other tracks move with it. When a new sender report changes the mapping
+ * of a track, because the clocks of the sender drift, the difference is
+ * applied a little at a time, so the track does not jump.
+ *
+ * The clock also measures how late the frames of each track are played
+ * relative to the shared timeline, which gives the synchronization error
+ * between each track and the master.
+ */
+public class PlayoutClock {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final long MAXIMUM_LATENESS_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(40);
+	private static final long MAXIMUM_SLEW_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+	private static final double LATENESS_SMOOTHING = 0.1;
+
+	private final Track[] tracks;
+	private final int masterTrack;
+
+	private boolean anchored = false;
+	private long anchorTime;
+	private long anchorSenderTime;
+
+	/**
+	 * Creates a new clock for a session.
+	 *
+	 * @param trackCount
+	 *            The number of tracks in the session.
+	 * @param masterTrack
+	 *            The index of the track that drives the clock.
+	 */
+	public PlayoutClock(int trackCount, int masterTrack) {
+		tracks = new Track[trackCount];
+		for (int i = 0; i < trackCount; i++)
+			tracks[i] = new Track();
+		this.masterTrack = masterTrack;
+	}
+
+	/**
+	 * Sets the clock rate of the RTP timestamps of a track.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @param clockRate
+	 *            The clock rate in Hz, or 0 if not known.
+	 */
+	public synchronized void setClockRate(int track, int clockRate) {
+		tracks[track].clockRate = clockRate;
+	}
+
+	/**
+	 * Updates the mapping of a track from the contents of an RTCP sender
+	 * report.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @param ntpTimestamp
+	 *            The NTP timestamp of the report (64-bit fixed point, seconds
+	 *            since 1900).
+	 * @param rtpTimestamp
+	 *            The RTP timestamp corresponding to the same instant.
+	 */
+	public synchronized void onSenderReport(int track, long ntpTimestamp,
+			int rtpTimestamp) {
+		Track t = tracks[track];
+		if (t.clockRate <= 0)
+			return;
+		long senderTime = ntpToNanos(ntpTimestamp);
+		if (t.reported) {
+			// Keep the current position, and slew to the new mapping
+			t.correction = getSenderTime(t, rtpTimestamp) - senderTime;
+		}
+		t.reportSenderTime = senderTime;
+		t.reportTimestamp = rtpTimestamp;
+		t.reported = true;
+	}
+
+	/**
+	 * Returns an indication if a track can be played by this clock, that is,
+	 * if a sender report was received for it.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @return <tt>true</tt> if the track is synchronized.
+	 */
+	public synchronized boolean isSynchronized(int track) {
+		return tracks[track].reported;
+	}
+
+	/**
+	 * Returns the wallclock time of the sender for an RTP timestamp of a
+	 * track, as mapped by the most recent sender report.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @param timestamp
+	 *            The RTP timestamp.
+	 * @return The sender time in nanoseconds since the NTP epoch, or -1 if
+	 *         the track is not synchronized.
+	 */
+	public synchronized long getSenderWallclock(int track, int timestamp) {
+		Track t = tracks[track];
+		if (!t.reported)
+			return -1;
+		return getSenderTime(t, timestamp);
+	}
+
+	/**
+	 * Returns the local time when a frame of a synchronized track is due to
+	 * be played. The first frame asked for sets the reference point of the
+	 * clock. If the frame belongs to the master track and is already late, the
+	 * reference point is moved so that it is due now.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @param timestamp
+	 *            The RTP timestamp of the frame.
+	 * @param now
+	 *            The current time, as given by <code>System.nanoTime</code>.
+	 * @return The time the frame is due, in the same scale as
+	 *         <code>System.nanoTime</code>.
+	 */
+	public synchronized long getPlayoutTime(int track, int timestamp, long now) {
+		long senderTime = getSenderTime(tracks[track], timestamp);
+		if (!anchored) {
+			anchored = true;
+			anchorTime = now;
+			anchorSenderTime = senderTime;
+		}
+		long due = anchorTime + (senderTime - anchorSenderTime);
+		if (track == masterTrack && now - due > MAXIMUM_LATENESS_NANOS) {
+			anchorTime += now - due;
+			due = now;
+		}
+		return due;
+	}
+
+	/**
+	 * Records that a frame of a synchronized track was played, updating the
+	 * lateness of the track and slewing any pending correction of its
+	 * mapping.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @param due
+	 *            The time the frame was due, as returned by
+	 *            <code>getPlayoutTime</code>.
+	 * @param playedAt
+	 *            The time the frame was actually played.
+	 */
+	public synchronized void framePlayed(int track, long due, long playedAt) {
+		Track t = tracks[track];
+		long lateness = playedAt - due;
+		if (t.framesPlayed++ == 0)
+			t.lateness = lateness;
+		else
+			t.lateness += (lateness - t.lateness) * LATENESS_SMOOTHING;
+
+		if (t.correction > MAXIMUM_SLEW_NANOS)
+			t.correction -= MAXIMUM_SLEW_NANOS;
+		else if (t.correction < -MAXIMUM_SLEW_NANOS)
+			t.correction += MAXIMUM_SLEW_NANOS;
+		else
+			t.correction = 0;
+	}
+
+	/**
+	 * Forgets the reference point of the clock, such as when playback is
+	 * resumed after a pause. The mapping of each track is kept.
+	 */
+	public synchronized void reset() {
+		anchored = false;
+	}
+
+	/**
+	 * Returns the synchronization error between a track and the master
+	 * track, that is, how much later the track is played than the master,
+	 * smoothed over the most recent frames.
+	 *
+	 * @param track
+	 *            The index of the track.
+	 * @return The synchronization error in nanoseconds, positive if the track
+	 *         is behind the master, or 0 if either track was not played in
+	 *         sync yet.
+	 */
+	public synchronized long getSkew(int track) {
+		Track t = tracks[track];
+		Track master = tracks[masterTrack];
+		if (t.framesPlayed == 0 || master.framesPlayed == 0)
+			return 0;
+		return (long) (t.lateness - master.lateness);
+	}
+
+	/**
+	 * Returns the largest synchronization error, in absolute value, between
+	 * any track and the master track.
+	 *
+	 * @return The synchronization error in nanoseconds.
+	 */
+	public synchronized long getMaximumSkew() {
+		long maximum = 0;
+		for (int i = 0; i < tracks.length; i++)
+			maximum = Math.max(maximum, Math.abs(getSkew(i)));
+		return maximum;
+	}
+
+	/**
+	 * Returns the sender time of an RTP timestamp of a track, including any
+	 * correction still being slewed. Timestamps may be before or after the
+	 * one in the sender report, and wrap around at 32 bits.
+	 */
+	private static long getSenderTime(Track t, int timestamp) {
+		long ticks = timestamp - t.reportTimestamp;
+		return t.reportSenderTime + ticks * NANOS_PER_SECOND / t.clockRate
+				+ t.correction;
+	}
+
+	/**
+	 * Converts an NTP timestamp to nanoseconds since the NTP epoch.
+	 */
+	private static long ntpToNanos(long ntpTimestamp) {
+		long seconds = ntpTimestamp >>> 32;
+		long fraction = ntpTimestamp & 0xFFFFFFFFL;
+		return seconds * NANOS_PER_SECOND
+				+ ((fraction * NANOS_PER_SECOND) >>> 32);
+	}
+
+	private static class Track {
+
+		private int clockRate;
+		private boolean reported = false;
+		private long reportSenderTime;
+		private int reportTimestamp;
+		private long correction = 0;
+		private long framesPlayed = 0;
+		private double lateness = 0;
+	}
+}
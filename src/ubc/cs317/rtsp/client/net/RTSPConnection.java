@@ -12,52 +12,94 @@ package ubc.cs317.rtsp.client.net;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.log.EventLog;
 import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.FrameStore;
+import ubc.cs317.rtsp.client.model.LatencyTrace;
 import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.listener.DiagnosticListener;
 
 /**
- * This class represents a connection with an RTSP server.
+ * This class represents a connection with an RTSP server. A video may have
+ * several tracks (such as video and audio), which are all set up under the same
+ * session and controlled together (aggregate control). The RTP and RTCP
+ * packets of all tracks are received by a single thread through a selector,
+ * and the tracks are played in sync using the RTCP sender reports.
  */
 public class RTSPConnection {
 
     private static final int BUFFER_LENGTH = 15000;
-    private static final long MINIMUM_DELAY_READ_PACKETS_MS = 10;
-    private static final long MINIMUM_PACKETS_TO_PLAY = 50;
+    static final int RTP_HEADER_LENGTH = 12;
+    private static final int DESCRIBE_TIMEOUT_MS = 2000;
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 2000;
+    private static final int RECEIVE_TIMEOUT_MS = 1000;
+    private static final int PLAYOUT_STOP_TIMEOUT_MS = 1000;
+    private static final int RTCP_SENDER_REPORT = 200;
+    private static final int RTCP_SENDER_REPORT_LENGTH = 20;
+    private static final String MULTICAST_TRANSPORT = "RTP/AVP;multicast";
 
-    private static Session session;
-    private Timer rtpTimer;
+    private Session session;
+    private final ExecutionMode executionMode;
+    private final EventLog eventLog = EventLog.getDefault();
+    private volatile Thread rtpReceiver;
+    private boolean receiving = false;
+    private boolean multicast = false;
+    private boolean offHeap = Boolean.getBoolean(FrameStore.OFF_HEAP_PROPERTY);
+    private int receiveBufferSize = 0;
+    private int trafficClass = -1;
+    private int decimation = 1;
+    private double requestedScale = 1.0;
+    private double scale = 1.0;
     private InetAddress server;
-    private static Socket RTSPSocket;
-    private static BufferedWriter RTSPOut;
-    private static BufferedReader RTSPIn;
-    private static DatagramSocket RTPPacket;
-    private static PriorityBlockingQueue<Frame> queue = new PriorityBlockingQueue<Frame>();
+    private Socket RTSPSocket;
+    private BufferedWriter RTSPOut;
+    private BufferedReader RTSPIn;
+    private Selector selector;
+    private final List<MediaTrack> tracks = new ArrayList<MediaTrack>();
+    private MediaTrack primaryTrack;
+    private PlayoutClock playoutClock;
 
     private int cseq;
+    private String requestMethod;
+    private long requestTime;
     private String videoName;
     private String sessionID;
-    private Thread frameSender;
+    private String aggregateURL;
+    private final SessionDescription sessionDescription = new SessionDescription();
+    private boolean described = false;
+    private boolean describeSupported = true;
+    private volatile int sessionTimeout = KeepAliveService.DEFAULT_SESSION_TIMEOUT;
 
-    private static int currentFrame = 0;
-    private static volatile boolean isClosed = false;
-    private static volatile boolean isPaused = false;
-    private static volatile boolean replay = false;
-    private static int state;
+    private volatile long lastRequestTime;
+    private volatile boolean requestInProgress = false;
+    private final Object keepAliveLock = new Object();
+    private HashedWheelTimer.Timeout keepAliveTimeout;
+    private boolean getParameterSupported = true;
+
+    private volatile boolean isPaused = false;
+    private boolean playoutHeld = false;
+    private boolean closed = false;
+    private int state;
     static final int INIT = 0;
     static final int READY = 1;
     static final int PLAYING = 2;
@@ -78,7 +120,31 @@ public class RTSPConnection {
      */
     public RTSPConnection(Session session, String server, int port)
             throws RTSPException {
+        this(session, server, port, ExecutionMode.getDefault());
+    }
+
+    /**
+     * Establishes a new connection with an RTSP server, running the RTP
+     * receive and frame playout loops of this connection in threads of the
+     * given execution mode. No message is sent at this point, and no stream is
+     * set up.
+     * 
+     * @param session
+     *            The Session object to be used for connectivity with the UI.
+     * @param server
+     *            The hostname or IP address of the server.
+     * @param port
+     *            The TCP port number where the server is listening to.
+     * @param executionMode
+     *            The kind of thread used for the per-session loops.
+     * @throws RTSPException
+     *             If the connection couldn't be accepted, such as if the host
+     *             name or port number are invalid or there is no connectivity.
+     */
+    public RTSPConnection(Session session, String server, int port,
+            ExecutionMode executionMode) throws RTSPException {
         this.session = session;
+        this.executionMode = executionMode;
         try {
             this.server = InetAddress.getByName(server);
             RTSPSocket = new Socket(this.server, port);
@@ -94,15 +160,75 @@ public class RTSPConnection {
         state = INIT;
     }
 
+    /**
+     * Selects the transport requested in the next SETUP. In multicast mode the
+     * server sends the packets to a multicast group, which is shared by all
+     * sessions in this process watching the same stream, instead of to a
+     * port of this session.
+     * 
+     * @param multicast
+     *            If <tt>true</tt>, multicast transport is requested.
+     */
+    public synchronized void setMulticast(boolean multicast) {
+        this.multicast = multicast;
+    }
+
+    /**
+     * Selects where the frames received after the next SETUP are buffered.
+     * The default is given by the system property
+     * <code>rtsp.client.buffer.offheap</code>.
+     * 
+     * @param offHeap
+     *            If <tt>true</tt>, payloads are buffered off the Java heap.
+     */
+    public synchronized void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Sets the receive buffer size of the channels opened in the next SETUP.
+     * A larger buffer absorbs longer bursts of packets while the receiver
+     * thread is not scheduled, at the cost of kernel memory. The kernel may
+     * cap the size (on Linux, to <code>net.core.rmem_max</code>).
+     * 
+     * @param receiveBufferSize
+     *            The size in bytes, or 0 for the system default.
+     */
+    public synchronized void setReceiveBufferSize(int receiveBufferSize) {
+        if (receiveBufferSize < 0)
+            throw new IllegalArgumentException("Invalid receive buffer size: "
+                    + receiveBufferSize);
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Sets the IP traffic class (type of service byte) of the channels opened
+     * in the next SETUP, such as <tt>0xB8</tt> (expedited forwarding).
+     * 
+     * @param trafficClass
+     *            The traffic class, from 0 to 255, or -1 for the system
+     *            default.
+     */
+    public synchronized void setTrafficClass(int trafficClass) {
+        if (trafficClass < -1 || trafficClass > 255)
+            throw new IllegalArgumentException("Invalid traffic class: "
+                    + trafficClass);
+        this.trafficClass = trafficClass;
+    }
+
     /**
      * Sends a SETUP request to the server. This method is responsible for
      * sending the SETUP request, receiving the response and retrieving the
-     * session identification to be used in future messages. It is also
-     * responsible for establishing an RTP datagram socket to be used for data
-     * transmission by the server. The datagram socket should be created with a
-     * random UDP port number, and the port number used in that connection has
-     * to be sent to the RTSP server for setup. This datagram socket should also
-     * be defined to timeout after 1 second if no packet is received.
+     * session identification to be used in future messages. Before the SETUP
+     * request, the video is described with a DESCRIBE request, if the server
+     * supports it, to find its tracks and their encoding, RTP clock rate and
+     * control URL. Each track is set up with its own SETUP request, all under
+     * the session returned for the first one; tracks other than the video that
+     * the server does not set up are left out. It is also responsible for
+     * establishing the RTP and RTCP datagram channels of each track, with
+     * random UDP port numbers that are sent to the RTSP server for setup. In
+     * multicast mode no channel is opened; the multicast group returned by the
+     * server is joined when the video is played.
      * 
      * @param videoName
      *            The name of the video to be setup.
@@ -115,22 +241,46 @@ public class RTSPConnection {
         this.videoName = videoName;
         if (state == INIT) {
             try {
-                RTPPacket = new DatagramSocket();
-                RTPPacket.setSoTimeout(1000);
-                sendRTSPRequest("SETUP"); 
-                RTSPResponse response = RTSPResponse
-                        .readRTSPResponse(RTSPIn);
-                printRTSPResponse(response);
-                if (response.getResponseCode() == 200) {
-                    state = READY;
-                    sessionID = response.getHeaderValue("Session");
-                    currentFrame = 0;
-                } else {
-                	handleRTSPException(response.getResponseCode());               	
-                } 
+                describe();
+                sessionID = null;
+                Iterator<MediaTrack> iterator = tracks.iterator();
+                while (iterator.hasNext()) {
+                    MediaTrack track = iterator.next();
+                    String transport = MULTICAST_TRANSPORT;
+                    if (!multicast) {
+                        track.open(receiveBufferSize, trafficClass);
+                        transport = track.getTransport(described);
+                    }
+                    sendRTSPRequest("SETUP", track.getControlURL(),
+                            "Transport: " + transport + "\r\n"
+                                    + getSessionHeader());
+                    RTSPResponse response = readRTSPResponse();
+                    logRTSPResponse(response);
+                    if (response.getResponseCode() == 200
+                            && (!multicast || parseMulticastTransport(track,
+                                    response.getHeaderValue("Transport")))) {
+                        if (sessionID == null)
+                            parseSessionHeader(response.getHeaderValue("Session"));
+                    } else if (track.isPrimary()) {
+                        closeTracks();
+                        handleRTSPException(response.getResponseCode());
+                        throw new RTSPException(multicast
+                                ? "Multicast is not supported by the server."
+                                : "Video could not be set up.");
+                    } else {
+                        track.close();
+                        iterator.remove();
+                    }
+                }
+                startTracks();
+                state = READY;
+                scheduleKeepAlive(KeepAliveService
+                        .getKeepAliveInterval(sessionTimeout));
             } catch (SocketException e) {
+                closeTracks();
                 throw new RTSPException("Connection could not be established.");
             } catch (IOException e) {
+                closeTracks();
                 throw new RTSPException("Connectivity error.");
             }
         } else {
@@ -138,10 +288,241 @@ public class RTSPConnection {
         }
     }
 
+    /**
+     * Sends a DESCRIBE request to the server and parses the session
+     * description in the response into the list of tracks to be set up. Only
+     * video and audio media are used. If the server does not support DESCRIBE,
+     * or does not answer in time, the video is assumed to be a single JPEG
+     * stream and its URL is used for SETUP. A server that does not support
+     * DESCRIBE is not asked again in this connection.
+     * 
+     * @throws RTSPException
+     *             If the video does not exist, or the response is invalid.
+     * @throws IOException
+     *             In case of a connectivity error.
+     */
+    private void describe() throws RTSPException, IOException {
+        sessionDescription.clear();
+        tracks.clear();
+        described = false;
+        aggregateURL = videoName;
+        primaryTrack = new MediaTrack(0, "video", videoName, -1, null, 0, true);
+        if (describeSupported)
+            describeTracks();
+        if (tracks.isEmpty())
+            tracks.add(primaryTrack);
+    }
+
+    private void describeTracks() throws RTSPException, IOException {
+
+        RTSPResponse response;
+        sendRTSPRequest("DESCRIBE");
+        RTSPSocket.setSoTimeout(DESCRIBE_TIMEOUT_MS);
+        try {
+            response = readRTSPResponse();
+        } catch (SocketTimeoutException e) {
+            DiagnosticListener diagnostics = session.getDiagnosticListener();
+            diagnostics.socketTimedOut("RTSP", DESCRIBE_TIMEOUT_MS);
+            diagnostics.requestCompleted(requestMethod, cseq, -1,
+                    System.nanoTime() - requestTime);
+            describeSupported = false;
+            return;
+        } finally {
+            RTSPSocket.setSoTimeout(0);
+        }
+        if (response == null)
+            throw new RTSPException("Connectivity error.");
+        logRTSPResponse(response);
+
+        if (response.getResponseCode() == 200 && response.getBody() != null) {
+            sessionDescription.parse(response.getBody());
+            String base = response.getHeaderValue("Content-Base");
+            if (base == null)
+                base = videoName;
+            SessionDescription.MediaDescription video = sessionDescription
+                    .findMedia("video");
+            for (int i = 0; i < sessionDescription.getMediaCount(); i++) {
+                SessionDescription.MediaDescription media = sessionDescription
+                        .getMedia(i);
+                if (!media.getType().equals("video")
+                        && !media.getType().equals("audio"))
+                    continue;
+                MediaTrack track = new MediaTrack(tracks.size(),
+                        media.getType(), SessionDescription.resolveControl(
+                                base, media.getControl()),
+                        media.getPayloadType(), media.getEncodingName(),
+                        media.getClockRate(), media == video);
+                tracks.add(track);
+                if (media == video)
+                    primaryTrack = track;
+            }
+            if (!tracks.isEmpty()) {
+                described = true;
+                // Without a session control URL, a single track is
+                // controlled by its own URL (RFC 2326, appendix C.1.1)
+                if (sessionDescription.getControl() != null)
+                    aggregateURL = SessionDescription.resolveControl(base,
+                            sessionDescription.getControl());
+                else if (tracks.size() == 1)
+                    aggregateURL = tracks.get(0).getControlURL();
+                else
+                    aggregateURL = base;
+            }
+        } else if (response.getResponseCode() == 404) {
+            handleRTSPException(response.getResponseCode());
+        } else {
+            describeSupported = false;
+        }
+    }
+
+    /**
+     * Parses the Transport header of a multicast SETUP response, in the format
+     * <tt>RTP/AVP;multicast;destination=group;port=rtp-rtcp</tt>, and sets
+     * the multicast destination of the track. If only the RTP port is given,
+     * RTCP is assumed to use the next port.
+     * 
+     * @return <tt>false</tt> if the server did not return a multicast
+     *         destination.
+     */
+    private static boolean parseMulticastTransport(MediaTrack track,
+            String value) {
+        if (value == null)
+            return false;
+        boolean isMulticast = false;
+        String destination = null;
+        int rtpPort = -1;
+        int rtcpPort = -1;
+        for (String parameter : value.split(";")) {
+            String[] parts = parameter.trim().split("=", 2);
+            if (parts[0].equalsIgnoreCase("multicast")) {
+                isMulticast = true;
+            } else if (parts.length == 2
+                    && parts[0].equalsIgnoreCase("destination")) {
+                destination = parts[1].trim();
+            } else if (parts.length == 2 && parts[0].equalsIgnoreCase("port")) {
+                String[] ports = parts[1].trim().split("-", 2);
+                try {
+                    rtpPort = Integer.parseInt(ports[0]);
+                    rtcpPort = ports.length == 2 ? Integer
+                            .parseInt(ports[1]) : rtpPort + 1;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        if (!isMulticast || destination == null || rtpPort < 0)
+            return false;
+        try {
+            InetAddress group = InetAddress.getByName(destination);
+            if (!group.isMulticastAddress())
+                return false;
+            track.setMulticastDestination(group, rtpPort, rtcpPort);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the playout clock and the playout buffer of each track that was
+     * set up, and registers the channels of the tracks in a new selector. The
+     * audio track, if there is one, drives the clock.
+     * 
+     * @throws IOException
+     *             If the selector could not be opened.
+     */
+    private void startTracks() throws IOException {
+        int master = primaryTrack.getIndex();
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).getType().equals("audio")) {
+                master = i;
+                break;
+            }
+        }
+        if (!tracks.contains(primaryTrack)) {
+            // The video was not described, so the first track is shown
+            primaryTrack = tracks.get(0);
+        }
+
+        playoutClock = new PlayoutClock(tracks.size(), master);
+        selector = Selector.open();
+        for (int i = 0; i < tracks.size(); i++) {
+            MediaTrack track = tracks.get(i);
+            PlayoutBuffer buffer = new PlayoutBuffer(session, playoutClock, i,
+                    track == primaryTrack ? null : track.getType());
+            buffer.setClockRate(track.getClockRate());
+            if (track == primaryTrack)
+                buffer.setDecimation(decimation);
+            buffer.setRate(scale);
+            buffer.setOffHeap(offHeap);
+            playoutClock.setClockRate(i, track.getClockRate());
+            track.setPlayoutBuffer(buffer);
+            track.setPlayoutThread(null);
+            track.register(selector);
+        }
+    }
+
+    /**
+     * Closes the channels of all tracks and the selector, if they are open.
+     */
+    private void closeTracks() {
+        for (MediaTrack track : tracks)
+            track.close();
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Returns the encoding of the video track, as obtained from the DESCRIBE
+     * response of the last SETUP.
+     * 
+     * @return The encoding name, or null if the server did not describe the
+     *         video.
+     */
+    public synchronized String getEncodingName() {
+        return primaryTrack == null ? null : primaryTrack.getEncodingName();
+    }
+
+    /**
+     * Returns the RTP payload type of the video track, as obtained from the
+     * DESCRIBE response of the last SETUP.
+     * 
+     * @return The payload type, or -1 if the server did not describe the
+     *         video.
+     */
+    public synchronized int getPayloadType() {
+        return primaryTrack == null ? -1 : primaryTrack.getPayloadType();
+    }
+
+    /**
+     * Returns the number of tracks set up in the current session.
+     * 
+     * @return The number of tracks, or 0 if no video is set up.
+     */
+    public synchronized int getTrackCount() {
+        return state == INIT ? 0 : tracks.size();
+    }
+
+    /**
+     * Returns the largest synchronization error between a track and the
+     * track that drives the playout clock, such as the lip-sync error between
+     * audio and video.
+     * 
+     * @return The synchronization error in nanoseconds, or 0 if there is a
+     *         single track or the tracks are not synchronized yet.
+     */
+    public synchronized long getSyncSkew() {
+        return playoutClock == null ? 0 : playoutClock.getMaximumSkew();
+    }
+
     /**
      * Sends a PLAY request to the server. This method is responsible for
      * sending the request, receiving the response and, in case of a successful
-     * response, starting the RTP timer responsible for receiving RTP packets
+     * response, starting the RTP receiver responsible for receiving RTP packets
      * with frames.
      * 
      * @throws RTSPException
@@ -149,103 +530,362 @@ public class RTSPConnection {
      *             if the server did not return a successful response.
      */
     public synchronized void play() throws RTSPException {
-        if (state == READY) {
+        play(false);
+    }
+
+    /**
+     * Sends a PLAY request to the server, but holds the playout of the frames
+     * received. Frames are kept in the playout buffer until
+     * <code>play</code> is called, at which point they are played right away.
+     * A PAUSE request may be sent in the meantime to stop the transmission
+     * once enough frames are buffered.
+     * 
+     * @throws RTSPException
+     *             If there was an error sending or receiving the RTSP data, or
+     *             if the server did not return a successful response.
+     */
+    public synchronized void prebuffer() throws RTSPException {
+        play(true);
+    }
+
+    private void play(boolean holdPlayout) throws RTSPException {
+        if (state == PLAYING && playoutHeld && !holdPlayout) {
+            playoutHeld = false;
+            resumeTracks();
+        } else if (state == READY) {
             try {
-                sendRTSPRequest("PLAY"); 
-                RTSPResponse response = RTSPResponse
-                        .readRTSPResponse(RTSPIn);
-                printRTSPResponse(response);
+                sendRTSPRequest("PLAY", aggregateURL, getSessionHeader()
+                        + getScaleHeader());
+                RTSPResponse response = readRTSPResponse();
+                logRTSPResponse(response);
                 if (response.getResponseCode() == 200) {
+                    applyScale(response.getHeaderValue("Scale"));
                     state = PLAYING;
-                    isClosed = false;
-                    replay = false;
-                    if (isPaused) {
-                        rtpTimer.cancel();
-                    }
                     isPaused = false;
-                    startRTPTimer();
-                    frameSender = new Thread(new FrameHandler());
-                    frameSender.start();
+                    playoutHeld = holdPlayout;
+                    for (MediaTrack track : tracks) {
+                        if (holdPlayout) {
+                            track.getPlayoutBuffer().pause();
+                        }
+                        if (track.getPlayoutThread() == null) {
+                            Thread playout = executionMode.newThread(
+                                    track.getPlayoutBuffer(), "Frame handler "
+                                            + videoName + " " + track.getType());
+                            track.setPlayoutThread(playout);
+                            playout.start();
+                        }
+                    }
+                    if (!receiving) {
+                        startRTPReceiver();
+                    }
+                    if (!holdPlayout) {
+                        resumeTracks();
+                    }
                 } else {
                 	handleRTSPException(response.getResponseCode());               	
                 } 
             } catch (IOException e) {
-                frameSender.interrupt();
                 throw new RTSPException(e);
             }
         } else if (state == PLAYING) {
-        	replay = true;
         	teardown();
         	setup(videoName);
-        	play();
+        	play(holdPlayout);
         } else {
             throw new RTSPException("Command not expected at this time.");
         }
     }
 
     /**
-     * Starts a timer that reads RTP packets repeatedly. The timer will wait at
-     * least MINIMUM_DELAY_READ_PACKETS_MS after receiving a packet to read the
-     * next one.
+     * Resumes the playout of all tracks, from a new reference point of the
+     * playout clock.
      */
-    private void startRTPTimer() {
-        rtpTimer = new Timer();
-        rtpTimer.schedule(new TimerTask() {
+    private void resumeTracks() {
+        playoutClock.reset();
+        for (MediaTrack track : tracks)
+            track.getPlayoutBuffer().resume();
+    }
+
+    /**
+     * Starts a thread that reads RTP and RTCP packets of all unicast tracks
+     * repeatedly, until the receiver is stopped, and subscribes the multicast
+     * tracks to their groups. Each receiver thread only runs while it is the
+     * current receiver, so a receiver still blocked in the selector when it is
+     * replaced exits as soon as the selector returns.
+     * 
+     * @throws IOException
+     *             If a multicast group could not be joined.
+     */
+    private void startRTPReceiver() throws IOException {
+        receiving = true;
+        boolean unicast = false;
+        for (MediaTrack track : tracks) {
+            if (track.isMulticast())
+                track.joinMulticast(new TrackSubscriber(track, playoutClock));
+            else
+                unicast = true;
+        }
+        if (!unicast)
+            return;
+
+        final Selector receiveSelector = selector;
+        final PlayoutClock clock = playoutClock;
+        Thread receiver = executionMode.newThread(new Runnable() {
             @Override
             public void run() {
-                receiveRTPPacket();
+                ReceiveBatch batch = new ReceiveBatch(
+                        ReceiveBatch.DEFAULT_CAPACITY, BUFFER_LENGTH);
+                while (rtpReceiver == Thread.currentThread())
+                    receivePackets(receiveSelector, clock, batch);
             }
-        }, 0, MINIMUM_DELAY_READ_PACKETS_MS);
+        }, "RTP receiver " + videoName);
+        rtpReceiver = receiver;
+        receiver.start();
+    }
 
+    /**
+     * Stops the thread that reads RTP packets, if there is one. Unless called
+     * by the receiver itself, this method waits for the receiver to finish
+     * processing the packets already selected, for at most
+     * RECEIVE_TIMEOUT_MS, so that the channels and the selector can be closed
+     * safely afterwards.
+     */
+    private void stopRTPReceiver() {
+        Thread receiver = rtpReceiver;
+        rtpReceiver = null;
+        receiving = false;
+        if (receiver == null || receiver == Thread.currentThread())
+            return;
+        if (selector != null)
+            selector.wakeup();
+        try {
+            receiver.join(RECEIVE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Receives a single RTP packet and processes the corresponding frame. The
-     * data received from the datagram socket is assumed to be no larger than
-     * BUFFER_LENGTH bytes. This data is then parsed into a Frame object (using
-     * the parseRTPPacket method) and the method session.processReceivedFrame is
-     * called with the resulting packet. In case of timeout no exception should
-     * be thrown and no frame should be processed.
+     * Waits for packets in any of the channels of the session, and processes
+     * all packets available. The data received from each channel is assumed
+     * to be no larger than BUFFER_LENGTH bytes. The packets ready in a channel
+     * are received in batches: RTP packets are parsed into Frame objects
+     * (using the parseRTPPacket method) and added to the playout buffer of
+     * their track together; RTCP sender reports update the playout clock. The
+     * amount of data drained from each RTP channel is recorded in the
+     * reception statistics of its track, to tell losses in the receive buffer
+     * from losses in the network. If no packet is received in any channel for
+     * 1 second, the stream is considered finished.
      */
-    private void receiveRTPPacket() {
-        byte[] packet = new byte[BUFFER_LENGTH];
-        DatagramPacket RTPpacket = new DatagramPacket(packet, BUFFER_LENGTH);
+    private void receivePackets(Selector receiveSelector, PlayoutClock clock,
+            ReceiveBatch batch) {
         try {
-        	RTPPacket.receive(RTPpacket);
-            Frame frame = parseRTPPacket(RTPpacket.getData(),
-                    RTPpacket.getLength());
-            queue.put(frame);
-        } catch (SocketTimeoutException e) {
-            if (isPaused) {
-                rtpTimer.cancel();
-                frameSender.interrupt();
-            } else {
-                handleClosed();
+            if (receiveSelector.select(RECEIVE_TIMEOUT_MS) == 0) {
+                // While paused the receiver keeps waiting, so that it is
+                // ready as soon as the stream is resumed
+                if (!isPaused && rtpReceiver == Thread.currentThread()) {
+                    session.getDiagnosticListener().socketTimedOut("RTP",
+                            RECEIVE_TIMEOUT_MS);
+                    handleClosed();
+                }
+                return;
+            }
+            Iterator<SelectionKey> keys = receiveSelector.selectedKeys()
+                    .iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                MediaTrack track = (MediaTrack) key.attachment();
+                DatagramChannel channel = (DatagramChannel) key.channel();
+                boolean rtcp = track.isRTCPChannel(channel);
+                long backlogBytes = 0;
+                long backlogPackets = 0;
+                boolean more;
+                do {
+                    more = batch.receive(channel);
+                    backlogBytes += batch.getReceivedBytes();
+                    backlogPackets += batch.size();
+                    if (rtcp) {
+                        for (int i = 0; i < batch.size(); i++)
+                            processRTCPPacket(track, clock, batch.getPacket(i));
+                    } else {
+                        long receivedAt = System.nanoTime();
+                        framesArrived(track, clock, batch.getFrames(),
+                                batch.parse(), receivedAt);
+                    }
+                } while (more);
+                if (!rtcp)
+                    track.getStatistics().burstReceived(backlogBytes,
+                            backlogPackets, track.getReceiveBufferSize());
             }
+        } catch (ClosedSelectorException e) {
+            // The session was torn down while waiting
         } catch (IOException e) {
-            if (!isPaused) {
+            // A stopped receiver must not close the channels of a newer setup
+            if (!isPaused && rtpReceiver == Thread.currentThread()) {
                 handleClosed();
             }
         }
     }
 
-    private void handleClosed() {
-        isClosed = true;
-        rtpTimer.cancel();
-        RTPPacket.close();
-        try {
-            frameSender.interrupt();
-            frameSender.join(10000);
-        } catch (InterruptedException e1) {
-            e1.printStackTrace();
+    /**
+     * Hands a frame that just arrived to the packet listeners of the session,
+     * if it belongs to the video track, and adds it to the playout buffer of
+     * its track. Used for multicast, where the socket is shared with other
+     * sessions, so its gaps are counted but not attributed to a cause.
+     */
+    private void frameArrived(MediaTrack track, PlayoutClock clock,
+            Frame frame) {
+        ReceptionStatistics statistics = track.getStatistics();
+        if (statistics.packetReceived(frame.getSequenceNumber()))
+            session.getDiagnosticListener().packetReordered(track.getType(),
+                    frame.getSequenceNumber());
+        LatencyTrace trace = track.isPrimary() ? session.getLatencyTrace()
+                : null;
+        if (trace != null) {
+            long now = System.nanoTime();
+            traceArrival(trace, clock, track, frame, now, now);
+        }
+        if (track.isPrimary())
+            session.processArrivedPacket(frame);
+        track.getPlayoutBuffer().offer(frame);
+        if (trace != null)
+            trace.record(LatencyTrace.Stage.ENQUEUE, frame.getSequenceNumber());
+    }
+
+    /**
+     * Hands a batch of frames that just arrived to the packet listeners of the
+     * session, if they belong to the video track, and adds them to the playout
+     * buffer of their track at once. If the latency of the session is traced,
+     * the time the batch was received (once the channel was drained) is
+     * recorded for every frame of the batch.
+     */
+    private void framesArrived(MediaTrack track, PlayoutClock clock,
+            Frame[] frames, int count, long receivedAt) {
+        if (count == 0)
+            return;
+        ReceptionStatistics statistics = track.getStatistics();
+        for (int i = 0; i < count; i++)
+            if (statistics.packetReceived(frames[i].getSequenceNumber()))
+                session.getDiagnosticListener().packetReordered(
+                        track.getType(), frames[i].getSequenceNumber());
+        LatencyTrace trace = track.isPrimary() ? session.getLatencyTrace()
+                : null;
+        if (trace != null) {
+            long parsedAt = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                traceArrival(trace, clock, track, frames[i], receivedAt,
+                        parsedAt);
+        }
+        if (track.isPrimary())
+            for (int i = 0; i < count; i++)
+                session.processArrivedPacket(frames[i]);
+        track.getPlayoutBuffer().offer(frames, count);
+        if (trace != null) {
+            long enqueuedAt = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                trace.record(LatencyTrace.Stage.ENQUEUE,
+                        frames[i].getSequenceNumber(), enqueuedAt);
+        }
+    }
+
+    /**
+     * Starts the trace of a frame that arrived, with the time it was sent if
+     * the track is synchronized to the wallclock of the sender.
+     */
+    private static void traceArrival(LatencyTrace trace, PlayoutClock clock,
+            MediaTrack track, Frame frame, long receivedAt, long parsedAt) {
+        short sequenceNumber = frame.getSequenceNumber();
+        trace.frameReceived(sequenceNumber, receivedAt);
+        trace.record(LatencyTrace.Stage.PARSE, sequenceNumber, parsedAt);
+        long sentAt = clock.getSenderWallclock(track.getIndex(),
+                frame.getTimestamp());
+        if (sentAt >= 0)
+            trace.frameSent(sequenceNumber, sentAt);
+    }
+
+    /**
+     * Processes a (possibly compound) RTCP packet of a track. Only sender
+     * reports are used, to map the RTP timestamps of the track to the
+     * wallclock of the sender.
+     */
+    private static void processRTCPPacket(MediaTrack track, PlayoutClock clock,
+            ByteBuffer packet) {
+        int offset = 0;
+        while (offset + 4 <= packet.limit()) {
+            int packetType = packet.get(offset + 1) & 0xff;
+            int length = ((packet.getShort(offset + 2) & 0xffff) + 1) * 4;
+            if (packetType == RTCP_SENDER_REPORT
+                    && offset + RTCP_SENDER_REPORT_LENGTH <= packet.limit()) {
+                clock.onSenderReport(track.getIndex(),
+                        packet.getLong(offset + 8), packet.getInt(offset + 16));
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Stops receiving when the stream has ended. The playout threads are not
+     * waited for: they play the frames still buffered and finish on their
+     * own, or are stopped by <code>teardown</code> or
+     * <code>closeConnection</code>. Called by the receiver thread; nothing is
+     * done if a teardown or a new setup replaced that receiver before the
+     * lock of the connection was acquired.
+     */
+    private synchronized void handleClosed() {
+        if (rtpReceiver != Thread.currentThread())
+            return;
+        stopRTPReceiver();
+        closeTracks();
+        for (MediaTrack track : tracks)
+            if (track.getPlayoutBuffer() != null)
+                track.getPlayoutBuffer().endOfStream();
+    }
+
+    /**
+     * Closes the playout buffers of all tracks and waits for their playout
+     * threads to finish, for at most PLAYOUT_STOP_TIMEOUT_MS in total. A
+     * thread still running after that, such as one blocked in a slow
+     * listener, is interrupted and left to finish on its own.
+     */
+    private void stopPlayout() {
+        for (MediaTrack track : tracks)
+            if (track.getPlayoutBuffer() != null)
+                track.getPlayoutBuffer().close();
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(PLAYOUT_STOP_TIMEOUT_MS);
+        boolean interrupted = false;
+        for (MediaTrack track : tracks) {
+            Thread playout = track.getPlayoutThread();
+            if (playout == null)
+                continue;
+            track.setPlayoutThread(null);
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+                    - System.nanoTime());
+            try {
+                if (!interrupted && remaining > 0)
+                    playout.join(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (playout.isAlive()) {
+                playout.interrupt();
+                if (eventLog.isEnabled(EventLog.Level.WARN))
+                    eventLog.log(EventLog.Level.WARN, "playout.stuck",
+                            sessionID, videoName, -1, "thread",
+                            playout.getName());
+            }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     /**
      * Sends a PAUSE request to the server. This method is responsible for
      * sending the request, receiving the response and, in case of a successful
-     * response, cancelling the RTP timer responsible for receiving RTP packets
-     * with frames.
+     * response, pausing the playout of frames. The RTP receiver and the frames
+     * already buffered are kept, so that playback resumes immediately on the
+     * next PLAY request.
      * 
      * @throws RTSPException
      *             If there was an error sending or receiving the RTSP data, or
@@ -255,14 +895,13 @@ public class RTSPConnection {
         if (state == PLAYING) {
             try {
                 sendRTSPRequest("PAUSE"); 
-                RTSPResponse response = RTSPResponse
-                        .readRTSPResponse(RTSPIn);
-                printRTSPResponse(response);
+                RTSPResponse response = readRTSPResponse();
+                logRTSPResponse(response);
                 if (response.getResponseCode() == 200) {
                     state = READY;
                     isPaused = true;
-                    replay = false;
-                    frameSender.interrupt();
+                    for (MediaTrack track : tracks)
+                        track.getPlayoutBuffer().pause();
                 } else {
                 	handleRTSPException(response.getResponseCode());               	
                 } 
@@ -277,11 +916,11 @@ public class RTSPConnection {
     /**
      * Sends a TEARDOWN request to the server. This method is responsible for
      * sending the request, receiving the response and, in case of a successful
-     * response, closing the RTP socket. This method does not close the RTSP
+     * response, closing the RTP and RTCP channels. This method does not close the RTSP
      * connection, and a further SETUP in the same connection should be
      * accepted. Also this method can be called both for a paused and for a
-     * playing stream, so the timer responsible for receiving RTP packets will
-     * also be cancelled.
+     * playing stream, so the receiver responsible for receiving RTP packets
+     * will also be stopped.
      * 
      * @throws RTSPException
      *             If there was an error sending or receiving the RTSP data, or
@@ -291,20 +930,14 @@ public class RTSPConnection {
         if (state == READY || state == PLAYING) {
             try {
                 sendRTSPRequest("TEARDOWN"); 
-                RTSPResponse response = RTSPResponse
-                        .readRTSPResponse(RTSPIn);
-                printRTSPResponse(response);
+                RTSPResponse response = readRTSPResponse();
+                logRTSPResponse(response);
                 if (response.getResponseCode() == 200) {
                     state = INIT;
-                    isClosed = true;
-                    rtpTimer.cancel();
-                    queue.clear();
-                    frameSender.interrupt();
-                    try {
-						frameSender.join(10000);
-					} catch (InterruptedException e) {
-					}
-                    RTPPacket.close();
+                    cancelKeepAlive();
+                    stopRTPReceiver();
+                    stopPlayout();
+                    closeTracks();
                 } else {
                 	handleRTSPException(response.getResponseCode());               	
                 } 
@@ -319,21 +952,360 @@ public class RTSPConnection {
     /**
      * Closes the connection with the RTSP server. This method should also close
      * any open resource associated to this connection, such as the RTP
-     * connection, if it is still open.
+     * connection, if it is still open. The keep-alive check is cancelled, and
+     * the RTP receiver and playout threads are stopped, so no thread of the
+     * connection is left running. No request is sent to the server; the
+     * session is expected to be torn down before, if it is still set up.
+     * Calling this method more than once has no further effect.
      */
     public synchronized void closeConnection() {
+        if (closed)
+            return;
+        closed = true;
+        cseq = 0;
+        state = INIT;
+        cancelKeepAlive();
+        stopRTPReceiver();
+        stopPlayout();
+        closeTracks();
+        closeResource(RTSPOut, "output");
+        closeResource(RTSPIn, "input");
+        closeResource(RTSPSocket, "socket");
+    }
+
+    /**
+     * Closes the RTSP socket right away, without taking the lock of the
+     * connection, so that a request blocked waiting for its response fails
+     * immediately. This is used to bound the time a connection takes to
+     * close when the server does not respond; <code>closeConnection</code>
+     * must still be called to release the other resources.
+     */
+    public void abort() {
+        closeResource(RTSPSocket, "socket");
+    }
+
+    /**
+     * Closes a resource of the connection, logging the failure, if any,
+     * instead of propagating it, since the connection is being discarded.
+     */
+    private void closeResource(Closeable resource, String name) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            if (eventLog.isEnabled(EventLog.Level.WARN))
+                eventLog.log(EventLog.Level.WARN, "rtsp.close.failed",
+                        sessionID, videoName, -1, "resource", name, "error",
+                        e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a keep-alive request to the server, if the session is still set up
+     * and no other request was sent within the keep-alive interval. The
+     * request used is GET_PARAMETER, unless the server has reported it does
+     * not support it, in which case OPTIONS is used instead. This method is
+     * called by the <code>KeepAliveService</code>, and schedules the next
+     * check before returning. The response is waited for at most
+     * KEEP_ALIVE_TIMEOUT_MS; a response arriving later is discarded with the
+     * next request.
+     * 
+     * @throws RTSPException
+     *             If there was an error sending or receiving the RTSP data.
+     */
+    synchronized void keepAlive() throws RTSPException {
+        synchronized (keepAliveLock) {
+            keepAliveTimeout = null;
+        }
+        if (state != READY && state != PLAYING)
+            return;
+
+        long interval = KeepAliveService.getKeepAliveInterval(sessionTimeout);
+        long idle = System.currentTimeMillis() - lastRequestTime;
+        if (idle < interval) {
+            scheduleKeepAlive(interval - idle);
+            return;
+        }
+
         try {
-            cseq = 0;
-            if (RTPPacket != null) {
-            	RTPPacket.close();
+            sendRTSPRequest(getParameterSupported ? "GET_PARAMETER" : "OPTIONS");
+            RTSPResponse response;
+            RTSPSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+            try {
+                response = readRTSPResponse();
+            } catch (SocketTimeoutException e) {
+                session.getDiagnosticListener().socketTimedOut("RTSP",
+                        KEEP_ALIVE_TIMEOUT_MS);
+                scheduleKeepAlive(interval);
+                return;
+            } finally {
+                RTSPSocket.setSoTimeout(0);
+            }
+            if (response == null)
+                throw new RTSPException("Connectivity error.");
+            logRTSPResponse(response);
+            if (getParameterSupported
+                    && (response.getResponseCode() == 405 || response
+                            .getResponseCode() == 501)) {
+                getParameterSupported = false;
+                scheduleKeepAlive(0);
+                return;
             }
-            RTSPSocket.close();
-            RTSPOut.close();
-            RTSPIn.close();
+            if (response.getResponseCode() == 454)
+                return;
         } catch (IOException e) {
+            throw new RTSPException("Connectivity error.");
+        }
+        scheduleKeepAlive(interval);
+    }
+
+    /**
+     * Returns an indication if a request was sent and its response is still
+     * being waited for. This method does not wait for the lock of the
+     * connection.
+     * 
+     * @return <tt>true</tt> if a request is in progress.
+     */
+    boolean isRequestInProgress() {
+        return requestInProgress;
+    }
+
+    /**
+     * Postpones a keep-alive check that found a request in progress. That
+     * request refreshes the session by itself, so the next check is one
+     * keep-alive interval later. This method does not wait for the lock of
+     * the connection.
+     */
+    void keepAliveSkipped() {
+        scheduleKeepAlive(KeepAliveService.getKeepAliveInterval(sessionTimeout));
+    }
+
+    /**
+     * Schedules the next keep-alive check in the shared keep-alive service,
+     * replacing any check currently scheduled.
+     * 
+     * @param delayMillis
+     *            The delay before the check, in milliseconds.
+     */
+    private void scheduleKeepAlive(long delayMillis) {
+        synchronized (keepAliveLock) {
+            cancelKeepAlive();
+            keepAliveTimeout = KeepAliveService.getInstance().schedule(this,
+                    delayMillis);
+        }
+    }
+
+    /**
+     * Cancels the keep-alive check currently scheduled, if any.
+     */
+    private void cancelKeepAlive() {
+        synchronized (keepAliveLock) {
+            if (keepAliveTimeout != null) {
+                keepAliveTimeout.cancel();
+                keepAliveTimeout = null;
+            }
+        }
+    }
+
+    /**
+     * Parses the value of the Session header of a SETUP response, in the
+     * format <tt>id[;timeout=seconds]</tt>. If no timeout is announced, the
+     * default RTSP session timeout is assumed.
+     * 
+     * @param value
+     *            The value of the Session header.
+     */
+    private void parseSessionHeader(String value) {
+        sessionTimeout = KeepAliveService.DEFAULT_SESSION_TIMEOUT;
+        if (value == null) {
+            sessionID = null;
+            return;
+        }
+        String[] parts = value.split(";");
+        sessionID = parts[0].trim();
+        for (int i = 1; i < parts.length; i++) {
+            String[] parameter = parts[i].split("=", 2);
+            if (parameter.length == 2
+                    && parameter[0].trim().equalsIgnoreCase("timeout")) {
+                try {
+                    sessionTimeout = Integer.parseInt(parameter[1].trim());
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of the frames received but not yet played.
+     * 
+     * @return The number of buffered payload bytes.
+     */
+    public synchronized long getBufferedBytes() {
+        long buffered = 0;
+        for (MediaTrack track : tracks)
+            if (track.getPlayoutBuffer() != null)
+                buffered += track.getPlayoutBuffer().getBufferedBytes();
+        return buffered;
+    }
+
+    /**
+     * Sets the playback rate requested in the Scale header of the following
+     * PLAY requests, such as 2 for fast-forward at double speed or -4 for
+     * rewind at four times the speed. If the stream is playing, it is paused
+     * and played again right away so that the new rate takes effect. The rate
+     * actually used is the one returned by the server, and is 1 if the server
+     * does not support the Scale header.
+     * 
+     * @param rate
+     *            The requested playback rate. Must not be 0.
+     * @throws RTSPException
+     *             If the rate is invalid, or if the stream could not be paused
+     *             or played again.
+     */
+    public synchronized void setRate(double rate) throws RTSPException {
+        if (rate == 0 || Double.isNaN(rate) || Double.isInfinite(rate))
+            throw new RTSPException("Invalid playback rate.");
+        requestedScale = rate;
+        if (state == PLAYING && !playoutHeld) {
+            pause();
+            play();
+        }
+    }
+
+    /**
+     * Returns the playback rate returned by the server in the most recent
+     * PLAY request.
+     * 
+     * @return The current playback rate, 1 for normal playback.
+     */
+    public synchronized double getRate() {
+        return scale;
+    }
+
+    /**
+     * Returns the Scale header line for the requested rate, or an empty
+     * string for normal playback, so that servers without Scale support
+     * receive the same requests as before.
+     */
+    private String getScaleHeader() {
+        if (requestedScale == 1.0)
+            return "";
+        String value = requestedScale == Math.rint(requestedScale) ? Long
+                .toString((long) requestedScale) : Double
+                .toString(requestedScale);
+        return "Scale: " + value + "\r\n";
+    }
+
+    /**
+     * Applies the rate chosen by the server to the playout buffers. Frames
+     * still buffered were sent for the previous rate, so they are discarded
+     * when the rate changes.
+     * 
+     * @param value
+     *            The Scale header of the PLAY response, or null if absent.
+     */
+    private void applyScale(String value) {
+        double applied = 1.0;
+        if (value != null) {
+            try {
+                applied = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                applied = 1.0;
+            }
+            if (applied == 0 || Double.isNaN(applied) || Double.isInfinite(applied))
+                applied = 1.0;
+        }
+        if (applied == scale)
+            return;
+        scale = applied;
+        for (MediaTrack track : tracks) {
+            track.getPlayoutBuffer().seek();
+            track.getPlayoutBuffer().setRate(scale);
         }
     }
 
+    /**
+     * Sets the fraction of video frames handed to the session, for this and
+     * later setups.
+     * 
+     * @param decimation
+     *            1 to play all frames, or n to play one frame in n.
+     */
+    public synchronized void setDecimation(int decimation) {
+        this.decimation = Math.max(1, decimation);
+        PlayoutBuffer buffer = getPrimaryBuffer();
+        if (buffer != null)
+            buffer.setDecimation(this.decimation);
+    }
+
+    /**
+     * Returns the number of video frames received but not yet played.
+     * 
+     * @return The number of buffered video frames.
+     */
+    public synchronized int getBufferedFrames() {
+        PlayoutBuffer buffer = getPrimaryBuffer();
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    /**
+     * Returns the number of video frames discarded by the playout buffer
+     * since the last SETUP.
+     * 
+     * @return The number of discarded frames.
+     */
+    public synchronized long getDroppedFrames() {
+        PlayoutBuffer buffer = getPrimaryBuffer();
+        return buffer == null ? 0 : buffer.getDroppedFrames();
+    }
+
+    /**
+     * Returns the number of video frames played late, or skipped for being
+     * late, since the last SETUP.
+     * 
+     * @return The number of late frames.
+     */
+    public synchronized long getLateFrames() {
+        PlayoutBuffer buffer = getPrimaryBuffer();
+        return buffer == null ? 0 : buffer.getLateFrames();
+    }
+
+    /**
+     * Returns the average time the session takes to process a video frame.
+     * 
+     * @return The average delivery time in nanoseconds.
+     */
+    public synchronized long getDeliveryTime() {
+        PlayoutBuffer buffer = getPrimaryBuffer();
+        return buffer == null ? 0 : buffer.getDeliveryTime();
+    }
+
+    /**
+     * Returns the packets received and lost in the video track since the last
+     * SETUP. Losses in multicast tracks are all attributed to the network,
+     * since their socket is shared and drained by another thread.
+     * 
+     * @return The reception statistics, or null if no video is set up.
+     */
+    public synchronized ReceptionStatistics getReceptionStatistics() {
+        return primaryTrack == null ? null : primaryTrack.getStatistics();
+    }
+
+    private PlayoutBuffer getPrimaryBuffer() {
+        return primaryTrack == null ? null : primaryTrack.getPlayoutBuffer();
+    }
+
+    /**
+     * Returns the time it took for the first frame to be played after the
+     * most recent PLAY request that resumed a paused stream.
+     * 
+     * @return The resume latency in nanoseconds, or -1 if no paused stream
+     *         has been resumed yet.
+     */
+    public synchronized long getResumeLatency() {
+        PlayoutBuffer buffer = getPrimaryBuffer();
+        return buffer == null ? -1 : buffer.getResumeLatency();
+    }
+
     /**
      * Parses an RTP packet into a Frame object.
      * 
@@ -342,17 +1314,31 @@ public class RTSPConnection {
      *            packet.
      * @return A Frame object.
      */
-    private static Frame parseRTPPacket(byte[] packet, int length) {
+    static Frame parseRTPPacket(byte[] packet, int length) {
+        return parseRTPPacket(packet, 0, length);
+    }
 
-        byte payloadType = (byte) (packet[1] & 0x7f);
-        boolean marker = false;
-        if (packet[1] >> 7 == 1) {
-            marker = true;
-        }
-        short sequenceNumber = (short) (((packet[2] & 0xff) << 8) + (packet[3] & 0xff));
-        int timestamp = packet[4] << 24 + packet[5] << 16 + packet[6] << 8 + packet[7];
-        int offset = 12;
-        return new Frame(payloadType, marker, sequenceNumber, timestamp, packet, offset, length - offset);
+    /**
+     * Parses an RTP packet stored at some position of an array into a Frame
+     * object.
+     * 
+     * @param packet
+     *            an array containing the RTP packet.
+     * @param start
+     *            the position of the packet in the array.
+     * @param length
+     *            the length of the packet.
+     * @return A Frame object.
+     */
+    static Frame parseRTPPacket(byte[] packet, int start, int length) {
+
+        byte payloadType = (byte) (packet[start + 1] & 0x7f);
+        boolean marker = (packet[start + 1] & 0x80) != 0;
+        short sequenceNumber = (short) (((packet[start + 2] & 0xff) << 8) + (packet[start + 3] & 0xff));
+        int timestamp = ((packet[start + 4] & 0xff) << 24) | ((packet[start + 5] & 0xff) << 16)
+                | ((packet[start + 6] & 0xff) << 8) | (packet[start + 7] & 0xff);
+        int offset = start + RTP_HEADER_LENGTH;
+        return new Frame(payloadType, marker, sequenceNumber, timestamp, packet, offset, length - RTP_HEADER_LENGTH);
     }
 
     /**
@@ -363,30 +1349,115 @@ public class RTSPConnection {
      * @throws RTSPException
      */
     private void sendRTSPRequest(String request) throws RTSPException {
-        String requestString = null;
-        cseq++;
-        if (request.equals("SETUP")) {
-            requestString = request + " " + videoName + " RTSP/1.0" + "\r\n" + "CSeq: " + cseq + "\r\n" + "Transport: RTP/UDP; client_port= " + RTPPacket.getLocalPort() + "\r\n" + "\r\n";
+        if (request.equals("DESCRIBE")) {
+            sendRTSPRequest(request, videoName, "Accept: application/sdp\r\n");
         } else {
-            requestString = request + " " + videoName + " RTSP/1.0" + "\r\n"  + "Cseq: " + cseq + "\r\n" + "Session: " + sessionID  + "\r\n" + "\r\n";
+            sendRTSPRequest(request, aggregateURL, getSessionHeader());
         }
+    }
+
+    /**
+     * Reads the response to the last request sent. A response whose CSeq
+     * belongs to an earlier request, such as a DESCRIBE answered after its
+     * timeout expired, is logged and discarded, so that it is not taken as
+     * the response to a later request.
+     * 
+     * @return The response, or null if the connection was closed by the
+     *         server.
+     */
+    private RTSPResponse readRTSPResponse() throws IOException, RTSPException {
         try {
+            return readMatchingResponse();
+        } finally {
+            requestInProgress = false;
+        }
+    }
+
+    private RTSPResponse readMatchingResponse() throws IOException,
+            RTSPException {
+        while (true) {
+            RTSPResponse response = RTSPResponse.readRTSPResponse(RTSPIn);
+            if (response == null)
+                return null;
+            String value = response.getHeaderValue("CSeq");
+            int responseCSeq;
+            try {
+                responseCSeq = value == null ? cseq : Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                responseCSeq = cseq;
+            }
+            if (responseCSeq >= cseq)
+                return response;
+            if (eventLog.isEnabled(EventLog.Level.WARN))
+                eventLog.log(EventLog.Level.WARN, "rtsp.response.stale",
+                        sessionID, videoName, responseCSeq, "status",
+                        response.getResponseCode(), "expected", cseq);
+        }
+    }
+
+    /**
+     * Returns the Session header line for the current session, or an empty
+     * string if no session is set up yet.
+     */
+    private String getSessionHeader() {
+        return sessionID == null ? "" : "Session: " + sessionID + "\r\n";
+    }
+
+    /**
+     * Sends a request command to the RTSP server.
+     * 
+     * @param request
+     *            the command we are to send.
+     * @param url
+     *            the URL the command applies to.
+     * @param headers
+     *            the header lines to be sent after the CSeq header, each one
+     *            terminated by CRLF.
+     * @throws RTSPException
+     */
+    private void sendRTSPRequest(String request, String url, String headers)
+            throws RTSPException {
+        cseq++;
+        requestInProgress = true;
+        String requestString = request + " " + url + " RTSP/1.0" + "\r\n" + "CSeq: " + cseq + "\r\n" + headers + "\r\n";
+        try {
+        	requestMethod = request;
+        	requestTime = System.nanoTime();
         	RTSPOut.write(requestString);
         	RTSPOut.flush();
+        	lastRequestTime = System.currentTimeMillis();
         } catch (IOException e) {
+            requestInProgress = false;
             throw new RTSPException(e);
         }
-        System.out.println("client:\n" + requestString + "\n");
+        if (eventLog.isEnabled(EventLog.Level.DEBUG))
+            eventLog.log(EventLog.Level.DEBUG, "rtsp.request", sessionID,
+                    videoName, cseq, "method", request, "url", url,
+                    "headers", headers);
+        else if (eventLog.isEnabled(EventLog.Level.INFO))
+            eventLog.log(EventLog.Level.INFO, "rtsp.request", sessionID,
+                    videoName, cseq, "method", request, "url", url);
     }
 
     /**
-     * Prints the response from the RTSP server
+     * Logs the response from the RTSP server, and reports how long the
+     * server took to respond to the diagnostic listeners of the session.
      * 
      * @param response
-     *            the response string to be printed
+     *            the response to be logged
      */
-    private void printRTSPResponse(RTSPResponse response) {
-        System.out.println("server:\n" + response.getRtspVersion() + " " + response.getResponseCode() + " " + response.getResponseMessage() + "\n" + "Cseq: " + response.getHeaderValue("cseq") + "\n" + "Session: " + response.getHeaderValue("session") + "\n");
+    private void logRTSPResponse(RTSPResponse response) {
+        long duration = System.nanoTime() - requestTime;
+        session.getDiagnosticListener().requestCompleted(requestMethod, cseq,
+                response.getResponseCode(), duration);
+        EventLog.Level level = response.getResponseCode() >= 400
+                ? EventLog.Level.WARN : EventLog.Level.INFO;
+        if (eventLog.isEnabled(level))
+            eventLog.log(level, "rtsp.response", sessionID, videoName, cseq,
+                    "method", requestMethod, "status",
+                    response.getResponseCode(), "message",
+                    response.getResponseMessage(), "durationMicros",
+                    duration / 1000);
     }
     
     /**
@@ -411,60 +1482,39 @@ public class RTSPConnection {
     	
     }
 
-    public static class FrameHandler implements Runnable {
-
-        public void run() {
-            init();
-
-            while (true) {
-                if (!queue.isEmpty() && !isPaused) {
-                    try {
-                    	Frame frame = queue.peek();
-                    	if (frame.getSequenceNumber() < currentFrame){
-                    		queue.remove(frame);
-                    	} else {
-                    		frame = queue.poll();
-                    		currentFrame = frame.getSequenceNumber();
-                    		session.processReceivedFrame(frame);
-                    	}                        
-                        Thread.sleep(40);
-                    } catch (InterruptedException e1) {
-                        if (isPaused || replay) {
-                            return;
-                        } else
-                            continue;
-                    }
-                } else if (!isClosed && queue.isEmpty() && !isPaused) {
-                    int iterations = 0;
-                    while ((queue.size() < MINIMUM_PACKETS_TO_PLAY && iterations <= MINIMUM_PACKETS_TO_PLAY)) {
-                        iterations++;
-                        try {
-                            Thread.sleep(400);
-                        } catch (InterruptedException e1) {
-                            if (!isPaused || !replay) {
-                                break;
-                            } else
-                                return;
-                        }
-                    }
-                } else if (isClosed && queue.isEmpty()) {
-                    break;
-                } else if (isPaused) {
-                    return;
-                }
-            }
+    /**
+     * Hands the packets of a multicast group to a track of this connection.
+     * Frames received while the stream is paused are dropped, since the group
+     * is not paused for other viewers.
+     */
+    private class TrackSubscriber implements MulticastReceiver.Subscriber {
+
+        private final MediaTrack track;
+        private final PlayoutClock clock;
+
+        private TrackSubscriber(MediaTrack track, PlayoutClock clock) {
+            this.track = track;
+            this.clock = clock;
         }
 
-        private void init() {
-            int iterations = 0;
-            while (queue.size() < MINIMUM_PACKETS_TO_PLAY && iterations <= MINIMUM_PACKETS_TO_PLAY) {
-                iterations++;
-                try {
-                    Thread.sleep(40);
-                } catch (InterruptedException e1) {
-                    break;
-                }
+        @Override
+        public void frameReceived(Frame frame) {
+            if (!isPaused)
+                frameArrived(track, clock, frame);
+        }
+
+        @Override
+        public void rtcpReceived(ByteBuffer packet) {
+            processRTCPPacket(track, clock, packet);
+        }
+
+        @Override
+        public void receiveTimeout() {
+            if (!isPaused) {
+                session.getDiagnosticListener().socketTimedOut("RTP",
+                        RECEIVE_TIMEOUT_MS);
+                track.getPlayoutBuffer().endOfStream();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -31,6 +31,7 @@ public class RTSPResponse {
 	private int responseCode;
 	private String responseMessage;
 	private Map<String, String> headers;
+	private String body = null;
 
 	/**
 	 * Creates an RTSP response.
@@ -95,6 +96,16 @@ public class RTSPResponse {
 		return headers.get(headerName.toUpperCase());
 	}
 
+	/**
+	 * Returns the message body included in the response, such as the session
+	 * description returned for a DESCRIBE request.
+	 * 
+	 * @return The body of the response, or null if the response had no body.
+	 */
+	public String getBody() {
+		return body;
+	}
+
 	/**
 	 * Reads and parses an RTSP response from the input. This input is usually
 	 * expected to be associated to a socket (although there is no requirement
@@ -136,6 +147,28 @@ public class RTSPResponse {
 			response.headers.put(headerLineSplit[0].toUpperCase(), headerLineSplit[1].trim());
 		}
 
+		// Read the message body, if any, so that it is not read as the
+		// beginning of the next response. Bodies are expected to be text
+		// (e.g., SDP), so each byte counted in Content-Length is one character
+		String contentLength = response.getHeaderValue("Content-Length");
+		if (contentLength != null) {
+			int length;
+			try {
+				length = Integer.parseInt(contentLength);
+			} catch (NumberFormatException e) {
+				throw new RTSPException("Invalid response from RTSP server.");
+			}
+			char[] content = new char[Math.max(0, length)];
+			int read = 0;
+			while (read < content.length) {
+				int count = reader.read(content, read, content.length - read);
+				if (count < 0)
+					break;
+				read += count;
+			}
+			response.body = new String(content, 0, read);
+		}
+
 		return response;
 	}
 
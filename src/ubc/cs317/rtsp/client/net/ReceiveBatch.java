@@ -0,0 +1,133 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * A batch of RTP packets received from a non-blocking channel. All datagrams
+ * ready in the channel are first received back to back into a single
+ * pre-allocated buffer, then parsed in one pass, so that the frames can be
+ * handed to the playout buffer in one go instead of one at a time.
+ */
+class ReceiveBatch {
+
+	/**
+	 * Default maximum number of packets in a batch.
+	 */
+	static final int DEFAULT_CAPACITY = 64;
+
+	private final int maximumPacketLength;
+	private final ByteBuffer data;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final Frame[] frames;
+	private int packetCount = 0;
+
+	/**
+	 * Creates a new, empty batch.
+	 *
+	 * @param capacity
+	 *            The maximum number of packets in the batch.
+	 * @param maximumPacketLength
+	 *            The maximum length of a packet, in bytes.
+	 */
+	ReceiveBatch(int capacity, int maximumPacketLength) {
+		this.maximumPacketLength = maximumPacketLength;
+		data = ByteBuffer.allocate(Math.max(maximumPacketLength, capacity
+				* Math.min(maximumPacketLength, 4096)));
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		frames = new Frame[capacity];
+	}
+
+	/**
+	 * Receives the datagrams ready in a channel, until the channel has no
+	 * more datagrams or the batch is full. The previous contents of the batch
+	 * are discarded.
+	 *
+	 * @param channel
+	 *            A channel in non-blocking mode.
+	 * @return <tt>true</tt> if the batch is full, in which case more
+	 *         datagrams may still be ready in the channel.
+	 * @throws IOException
+	 *             If the channel could not be read.
+	 */
+	boolean receive(DatagramChannel channel) throws IOException {
+		data.clear();
+		packetCount = 0;
+		while (packetCount < offsets.length
+				&& data.remaining() >= maximumPacketLength) {
+			int offset = data.position();
+			if (channel.receive(data) == null)
+				return false;
+			offsets[packetCount] = offset;
+			lengths[packetCount] = data.position() - offset;
+			packetCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the packets of the batch into frames, skipping packets shorter
+	 * than an RTP header.
+	 *
+	 * @return The number of frames, which are available through
+	 *         <code>getFrames</code>.
+	 */
+	int parse() {
+		byte[] array = data.array();
+		int frameCount = 0;
+		for (int i = 0; i < packetCount; i++) {
+			if (lengths[i] >= RTSPConnection.RTP_HEADER_LENGTH)
+				frames[frameCount++] = RTSPConnection.parseRTPPacket(array,
+						offsets[i], lengths[i]);
+		}
+		Arrays.fill(frames, frameCount, frames.length, null);
+		return frameCount;
+	}
+
+	/**
+	 * Returns the frames of the most recent call to <code>parse</code>. The
+	 * array is reused by the next batch.
+	 *
+	 * @return The array of frames.
+	 */
+	Frame[] getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of bytes received.
+	 *
+	 * @return The total length of the packets in the batch.
+	 */
+	int getReceivedBytes() {
+		return data.position();
+	}
+
+	/**
+	 * Returns the number of packets received.
+	 *
+	 * @return The number of packets in the batch.
+	 */
+	int size() {
+		return packetCount;
+	}
+
+	/**
+	 * Returns the contents of a received packet.
+	 *
+	 * @param index
+	 *            The index of the packet in the batch.
+	 * @return A buffer with the packet, positioned at its start.
+	 */
+	ByteBuffer getPacket(int index) {
+		ByteBuffer packet = data.duplicate();
+		packet.limit(offsets[index] + lengths[index]).position(offsets[index]);
+		return packet.slice();
+	}
+}
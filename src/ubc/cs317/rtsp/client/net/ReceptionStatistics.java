@@ -0,0 +1,136 @@
+package ubc.cs317.rtsp.client.net;
+
+/**
+ * Counts the RTP packets received and lost in a track, and estimates where
+ * the lost packets were dropped. Packets are lost wherever the sequence
+ * numbers have a gap. The kernel drops packets silently when the receive
+ * buffer of the socket overflows, which only happens while the receiver is
+ * behind: gaps found while the receiver drains a backlog of at least half
+ * the receive buffer, or right after such a backlog (the packets that
+ * overflowed may have been sent after the receiver emptied the buffer), are
+ * attributed to local overflow, and other gaps to the network. The kernel
+ * charges each queued datagram for its bookkeeping as well as its payload,
+ * so the backlog is estimated with a fixed overhead per packet. A packet
+ * arriving late to fill a gap is not counted as lost.
+ */
+public class ReceptionStatistics {
+
+	private static final double BACKLOG_RATIO = 0.5;
+	private static final int PACKET_OVERHEAD = 256;
+
+	private boolean started = false;
+	private int highestSequence;
+	private long receivedPackets = 0;
+	private long localLostPackets = 0;
+	private long networkLostPackets = 0;
+	private long pendingLostPackets = 0;
+	private long previousBacklog = 0;
+
+	/**
+	 * Records a packet received in the current burst.
+	 *
+	 * @param sequenceNumber
+	 *            The RTP sequence number of the packet.
+	 * @return <tt>true</tt> if a packet with a later sequence number was
+	 *         received before this one.
+	 */
+	synchronized boolean packetReceived(short sequenceNumber) {
+		receivedPackets++;
+		if (!started) {
+			started = true;
+			highestSequence = sequenceNumber & 0xFFFF;
+			return false;
+		}
+		int delta = (short) (sequenceNumber - (short) highestSequence);
+		if (delta > 0) {
+			pendingLostPackets += delta - 1;
+			highestSequence += delta;
+		} else if (delta < 0) {
+			// A late packet fills a gap counted before
+			if (pendingLostPackets > 0)
+				pendingLostPackets--;
+			else if (networkLostPackets > 0)
+				networkLostPackets--;
+			else if (localLostPackets > 0)
+				localLostPackets--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Attributes the gaps found since the previous burst, once the receiver
+	 * has drained all packets ready in the socket.
+	 *
+	 * @param bytes
+	 *            The number of bytes drained in this burst.
+	 * @param packets
+	 *            The number of packets drained in this burst.
+	 * @param receiveBufferSize
+	 *            The receive buffer size of the socket, or 0 if the gaps
+	 *            cannot be caused by a local overflow.
+	 */
+	synchronized void burstReceived(long bytes, long packets,
+			int receiveBufferSize) {
+		long backlog = bytes + packets * PACKET_OVERHEAD;
+		if (receiveBufferSize > 0
+				&& Math.max(backlog, previousBacklog) >= receiveBufferSize
+						* BACKLOG_RATIO)
+			localLostPackets += pendingLostPackets;
+		else
+			networkLostPackets += pendingLostPackets;
+		pendingLostPackets = 0;
+		previousBacklog = backlog;
+	}
+
+	/**
+	 * Returns the number of packets received.
+	 *
+	 * @return The number of packets received, including duplicates.
+	 */
+	public synchronized long getReceivedPackets() {
+		return receivedPackets;
+	}
+
+	/**
+	 * Returns the number of packets lost.
+	 *
+	 * @return The number of sequence numbers never received, including the
+	 *         gaps not attributed to a cause, such as those of a multicast
+	 *         stream, whose socket is shared by several sessions.
+	 */
+	public synchronized long getLostPackets() {
+		return localLostPackets + networkLostPackets + pendingLostPackets;
+	}
+
+	/**
+	 * Returns the estimated number of packets dropped by this host because
+	 * the receive buffer of the socket overflowed.
+	 *
+	 * @return The number of packets lost locally.
+	 */
+	public synchronized long getLocalLostPackets() {
+		return localLostPackets;
+	}
+
+	/**
+	 * Returns the estimated number of packets lost before reaching this host.
+	 *
+	 * @return The number of packets lost in the network.
+	 */
+	public synchronized long getNetworkLostPackets() {
+		return networkLostPackets;
+	}
+
+	/**
+	 * Returns the fraction of packets lost.
+	 *
+	 * @return The number of packets lost divided by the number of packets
+	 *         expected, or 0 if no packet was received.
+	 */
+	public synchronized double getLossRatio() {
+		long lost = getLostPackets();
+		long expected = receivedPackets + lost;
+		return expected == 0 ? 0 : (double) lost / expected;
+	}
+}
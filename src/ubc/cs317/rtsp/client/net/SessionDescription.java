@@ -0,0 +1,356 @@
+package ubc.cs317.rtsp.client.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents a session description (SDP, RFC 4566), as returned by
+ * an RTSP server in response to a DESCRIBE request. Only the fields used by
+ * the client are kept: the media type, port, transport protocol and payload
+ * type of each media, the encoding name and clock rate from
+ * <tt>a=rtpmap</tt>, and the control URLs from <tt>a=control</tt>.
+ *
+ * A description object is meant to be reused: parsing a new description
+ * reuses the media objects from the previous one, and keeps the previous
+ * strings when their contents did not change, so describing the same stream
+ * again does not allocate.
+ */
+public class SessionDescription {
+
+	private final List<MediaDescription> media = new ArrayList<MediaDescription>();
+	private int mediaCount = 0;
+	private String control = null;
+
+	/**
+	 * Parses a session description, replacing the current contents of this
+	 * object. Lines that are not understood are ignored.
+	 *
+	 * @param sdp
+	 *            The text of the session description.
+	 */
+	public void parse(CharSequence sdp) {
+		mediaCount = 0;
+		boolean sessionControlFound = false;
+		MediaDescription current = null;
+
+		int length = sdp.length();
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && sdp.charAt(end) != '\n')
+				end++;
+			int next = end + 1;
+			if (end > start && sdp.charAt(end - 1) == '\r')
+				end--;
+
+			if (end - start >= 2 && sdp.charAt(start + 1) == '=') {
+				char type = sdp.charAt(start);
+				int value = start + 2;
+				if (type == 'm') {
+					if (mediaCount == media.size())
+						media.add(new MediaDescription());
+					current = media.get(mediaCount++);
+					current.parseMediaLine(sdp, value, end);
+				} else if (type == 'a') {
+					if (regionMatches(sdp, value, end, "control:")) {
+						if (current == null) {
+							control = reuse(control, sdp, value + 8, end);
+							sessionControlFound = true;
+						} else {
+							current.control = reuse(current.control, sdp,
+									value + 8, end);
+							current.controlFound = true;
+						}
+					} else if (current != null
+							&& regionMatches(sdp, value, end, "rtpmap:"))
+						current.parseRtpMap(sdp, value + 7, end);
+				}
+			}
+			start = next;
+		}
+
+		if (!sessionControlFound)
+			control = null;
+		for (int i = 0; i < mediaCount; i++)
+			media.get(i).finish();
+	}
+
+	/**
+	 * Removes all media from this description.
+	 */
+	public void clear() {
+		mediaCount = 0;
+		control = null;
+	}
+
+	/**
+	 * Returns the session-level control URL.
+	 *
+	 * @return The session control URL, or null if none was given.
+	 */
+	public String getControl() {
+		return control;
+	}
+
+	/**
+	 * Returns the number of media in the description.
+	 *
+	 * @return The number of media.
+	 */
+	public int getMediaCount() {
+		return mediaCount;
+	}
+
+	/**
+	 * Returns a media of the description.
+	 *
+	 * @param index
+	 *            The index of the media, starting at 0.
+	 * @return The media description.
+	 */
+	public MediaDescription getMedia(int index) {
+		if (index < 0 || index >= mediaCount)
+			throw new IndexOutOfBoundsException("Invalid media: " + index);
+		return media.get(index);
+	}
+
+	/**
+	 * Returns the first media of a given type.
+	 *
+	 * @param type
+	 *            The media type, such as <tt>video</tt> or <tt>audio</tt>.
+	 * @return The first media of that type, or null if there is none.
+	 */
+	public MediaDescription findMedia(String type) {
+		for (int i = 0; i < mediaCount; i++)
+			if (type.equals(media.get(i).type))
+				return media.get(i);
+		return null;
+	}
+
+	/**
+	 * Resolves a control URL against a base URL, as described in RFC 2326,
+	 * appendix C.1.1.
+	 *
+	 * @param base
+	 *            The base URL (usually the URL of the DESCRIBE request).
+	 * @param control
+	 *            The control URL, which may be null, <tt>*</tt>, absolute or
+	 *            relative.
+	 * @return The resolved URL.
+	 */
+	public static String resolveControl(String base, String control) {
+		if (control == null || control.equals("*"))
+			return base;
+		if (control.indexOf("://") >= 0)
+			return control;
+		return base.endsWith("/") ? base + control : base + "/" + control;
+	}
+
+	private static boolean regionMatches(CharSequence s, int start, int end,
+			String prefix) {
+		if (end - start < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++)
+			if (s.charAt(start + i) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the previous string if it has the same contents as the given
+	 * region, or a new string otherwise.
+	 */
+	private static String reuse(String previous, CharSequence s, int start,
+			int end) {
+		while (start < end && s.charAt(start) == ' ')
+			start++;
+		while (end > start && s.charAt(end - 1) == ' ')
+			end--;
+		if (previous != null && previous.length() == end - start) {
+			boolean same = true;
+			for (int i = 0; same && i < end - start; i++)
+				same = previous.charAt(i) == s.charAt(start + i);
+			if (same)
+				return previous;
+		}
+		return s.subSequence(start, end).toString();
+	}
+
+	/**
+	 * Parses a non-negative decimal number, stopping at the first character
+	 * that is not a digit.
+	 *
+	 * @return The number, or -1 if the region does not start with a digit.
+	 */
+	private static int parseNumber(CharSequence s, int start, int end) {
+		int value = -1;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			value = (value < 0 ? 0 : value * 10) + (c - '0');
+		}
+		return value;
+	}
+
+	private static int indexOf(CharSequence s, char c, int start, int end) {
+		for (int i = start; i < end; i++)
+			if (s.charAt(i) == c)
+				return i;
+		return end;
+	}
+
+	/**
+	 * A single media (<tt>m=</tt> line and its attributes) of a session
+	 * description.
+	 */
+	public static class MediaDescription {
+
+		private String type;
+		private int port;
+		private String protocol;
+		private int payloadType;
+		private String encodingName;
+		private int clockRate;
+		private String control;
+		private boolean controlFound;
+		private boolean rtpMapFound;
+
+		private void parseMediaLine(CharSequence s, int start, int end) {
+			int fieldEnd = indexOf(s, ' ', start, end);
+			type = reuse(type, s, start, fieldEnd);
+			start = fieldEnd + 1;
+
+			fieldEnd = indexOf(s, ' ', start, end);
+			port = Math.max(0, parseNumber(s, start, fieldEnd));
+			start = fieldEnd + 1;
+
+			fieldEnd = indexOf(s, ' ', start, end);
+			protocol = reuse(protocol, s, Math.min(start, end), fieldEnd);
+			start = fieldEnd + 1;
+
+			payloadType = start < end ? parseNumber(s, start, end) : -1;
+			controlFound = false;
+			rtpMapFound = false;
+		}
+
+		private void parseRtpMap(CharSequence s, int start, int end) {
+			int space = indexOf(s, ' ', start, end);
+			if (parseNumber(s, start, space) != payloadType || space >= end)
+				return;
+			int slash = indexOf(s, '/', space + 1, end);
+			encodingName = reuse(encodingName, s, space + 1, slash);
+			clockRate = slash < end ? Math.max(0,
+					parseNumber(s, slash + 1, end)) : 0;
+			rtpMapFound = true;
+		}
+
+		/**
+		 * Clears the attributes that were not present in the last parsed
+		 * description.
+		 */
+		private void finish() {
+			if (!controlFound)
+				control = null;
+			if (!rtpMapFound)
+				setStaticPayloadType();
+		}
+
+		/**
+		 * Sets the encoding and clock rate of the static payload types of RFC
+		 * 3551, which may be used without an <tt>a=rtpmap</tt> attribute.
+		 */
+		private void setStaticPayloadType() {
+			switch (payloadType) {
+			case 0:
+				encodingName = "PCMU";
+				clockRate = 8000;
+				break;
+			case 8:
+				encodingName = "PCMA";
+				clockRate = 8000;
+				break;
+			case 14:
+				encodingName = "MPA";
+				clockRate = 90000;
+				break;
+			case 26:
+				encodingName = "JPEG";
+				clockRate = 90000;
+				break;
+			case 32:
+				encodingName = "MPV";
+				clockRate = 90000;
+				break;
+			default:
+				encodingName = null;
+				clockRate = 0;
+			}
+		}
+
+		/**
+		 * Returns the media type.
+		 *
+		 * @return The media type, such as <tt>video</tt> or <tt>audio</tt>.
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the transport port announced for the media.
+		 *
+		 * @return The port, usually 0 for RTSP.
+		 */
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * Returns the transport protocol of the media.
+		 *
+		 * @return The transport protocol, such as <tt>RTP/AVP</tt>.
+		 */
+		public String getProtocol() {
+			return protocol;
+		}
+
+		/**
+		 * Returns the first RTP payload type announced for the media.
+		 *
+		 * @return The payload type, or -1 if none was given.
+		 */
+		public int getPayloadType() {
+			return payloadType;
+		}
+
+		/**
+		 * Returns the encoding name of the payload type.
+		 *
+		 * @return The encoding name, such as <tt>JPEG</tt>, or null if it is
+		 *         not known.
+		 */
+		public String getEncodingName() {
+			return encodingName;
+		}
+
+		/**
+		 * Returns the clock rate of the RTP timestamps of the media.
+		 *
+		 * @return The clock rate in Hz, or 0 if it is not known.
+		 */
+		public int getClockRate() {
+			return clockRate;
+		}
+
+		/**
+		 * Returns the control URL of the media.
+		 *
+		 * @return The control URL, or null if none was given.
+		 */
+		public String getControl() {
+			return control;
+		}
+	}
+}
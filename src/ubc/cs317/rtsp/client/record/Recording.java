@@ -0,0 +1,216 @@
+package ubc.cs317.rtsp.client.record;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * This class gives read access to a recording created by
+ * <code>RecordingSessionListener</code>. The index files of all segments are
+ * memory-mapped, so locating a frame by position or by timestamp is done with
+ * a binary search over the index entries, without reading any payload.
+ */
+public class Recording {
+
+	/**
+	 * Length of each index entry, in bytes: extended sequence number (4),
+	 * timestamp (4), data file offset (8), payload length (4), payload type
+	 * (1), marker (1) and padding (2).
+	 */
+	public static final int INDEX_ENTRY_LENGTH = 24;
+
+	private static final int TIMESTAMP_OFFSET = 4;
+	private static final int DATA_OFFSET = 8;
+	private static final int LENGTH_OFFSET = 16;
+	private static final int PAYLOAD_TYPE_OFFSET = 20;
+	private static final int MARKER_OFFSET = 21;
+
+	private final List<FileChannel> dataChannels = new ArrayList<FileChannel>();
+	private final List<MappedByteBuffer> indexes = new ArrayList<MappedByteBuffer>();
+	private final int[] firstFrameOfSegment;
+	private final int frameCount;
+
+	/**
+	 * Opens an existing recording.
+	 *
+	 * @param directory
+	 *            The directory where the segment files are located.
+	 * @param name
+	 *            The name of the recording.
+	 * @throws IOException
+	 *             If the recording could not be found or read.
+	 */
+	public Recording(File directory, String name) throws IOException {
+		int segment = 0;
+		File indexFile;
+		while ((indexFile = getIndexFile(directory, name, segment)).exists()) {
+			RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+			try {
+				FileChannel channel = index.getChannel();
+				long usable = channel.size() - channel.size()
+						% INDEX_ENTRY_LENGTH;
+				indexes.add(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						usable));
+			} finally {
+				index.close();
+			}
+			dataChannels.add(new RandomAccessFile(getDataFile(directory, name,
+					segment), "r").getChannel());
+			segment++;
+		}
+		if (segment == 0)
+			throw new IOException("Recording " + name + " not found.");
+
+		firstFrameOfSegment = new int[segment + 1];
+		for (int i = 0; i < segment; i++)
+			firstFrameOfSegment[i + 1] = firstFrameOfSegment[i]
+					+ indexes.get(i).capacity() / INDEX_ENTRY_LENGTH;
+		frameCount = firstFrameOfSegment[segment];
+	}
+
+	/**
+	 * Returns the data file of a segment of a recording.
+	 *
+	 * @param directory
+	 *            The directory of the recording.
+	 * @param name
+	 *            The name of the recording.
+	 * @param segment
+	 *            The segment number, starting at 0.
+	 * @return The data file of the segment.
+	 */
+	public static File getDataFile(File directory, String name, int segment) {
+		return new File(directory, String.format("%s-%05d.mjpeg", name,
+				segment));
+	}
+
+	/**
+	 * Returns the index file of a segment of a recording.
+	 *
+	 * @param directory
+	 *            The directory of the recording.
+	 * @param name
+	 *            The name of the recording.
+	 * @param segment
+	 *            The segment number, starting at 0.
+	 * @return The index file of the segment.
+	 */
+	public static File getIndexFile(File directory, String name, int segment) {
+		return new File(directory, String.format("%s-%05d.idx", name, segment));
+	}
+
+	/**
+	 * Returns the number of frames in the recording.
+	 *
+	 * @return The number of frames.
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Returns the timestamp of a frame, as read from the index.
+	 *
+	 * @param position
+	 *            The position of the frame in the recording, starting at 0.
+	 * @return The timestamp of the frame.
+	 */
+	public int getTimestamp(int position) {
+		int segment = findSegment(position);
+		return indexes.get(segment).getInt(
+				entryOffset(segment, position) + TIMESTAMP_OFFSET);
+	}
+
+	/**
+	 * Finds the first frame whose timestamp is equal to or later than a given
+	 * timestamp. Timestamps are expected to be increasing in the recording.
+	 *
+	 * @param timestamp
+	 *            The timestamp to look for.
+	 * @return The position of the frame, or the number of frames if all frames
+	 *         are earlier than the timestamp.
+	 */
+	public int seek(int timestamp) {
+		int low = 0, high = frameCount;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (getTimestamp(middle) < timestamp)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Reads a frame from the recording.
+	 *
+	 * @param position
+	 *            The position of the frame in the recording, starting at 0.
+	 * @return The frame at that position.
+	 * @throws IOException
+	 *             If the payload could not be read.
+	 */
+	public Frame readFrame(int position) throws IOException {
+		int segment = findSegment(position);
+		ByteBuffer index = indexes.get(segment);
+		int entry = entryOffset(segment, position);
+
+		int length = index.getInt(entry + LENGTH_OFFSET);
+		long offset = index.getLong(entry + DATA_OFFSET);
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		FileChannel data = dataChannels.get(segment);
+		while (payload.hasRemaining()) {
+			if (data.read(payload, offset + payload.position()) < 0)
+				throw new EOFException("Recording data is truncated.");
+		}
+
+		return new Frame(index.get(entry + PAYLOAD_TYPE_OFFSET),
+				index.get(entry + MARKER_OFFSET) != 0, (short) index.getInt(entry),
+				index.getInt(entry + TIMESTAMP_OFFSET), payload.array());
+	}
+
+	/**
+	 * Closes all files of the recording.
+	 *
+	 * @throws IOException
+	 *             If a file could not be closed.
+	 */
+	public void close() throws IOException {
+		for (FileChannel channel : dataChannels)
+			channel.close();
+		dataChannels.clear();
+		indexes.clear();
+	}
+
+	/**
+	 * Finds the segment containing a frame position, by binary search over the
+	 * first frame of each segment.
+	 */
+	private int findSegment(int position) {
+		if (position < 0 || position >= frameCount)
+			throw new IndexOutOfBoundsException("Invalid frame position: "
+					+ position);
+		int low = 0, high = indexes.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (firstFrameOfSegment[middle] <= position)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	private int entryOffset(int segment, int position) {
+		return (position - firstFrameOfSegment[segment]) * INDEX_ENTRY_LENGTH;
+	}
+}
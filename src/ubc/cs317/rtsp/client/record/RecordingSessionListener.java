@@ -0,0 +1,255 @@
+package ubc.cs317.rtsp.client.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * This listener records the frames played in a session to disk, so that they
+ * can be read back later with the <code>Recording</code> class. Frames are
+ * appended to a sequence of segment files, each with a data file holding the
+ * payloads and an index file with one fixed-size entry per frame.
+ *
+ * The listener never blocks the thread that delivers the frames: frames are
+ * put in a bounded queue and written in batches by a separate writer thread,
+ * using a single gathering write per batch. If the writer cannot keep up and
+ * the queue is full, new frames are dropped and counted.
+ */
+public class RecordingSessionListener implements SessionListener {
+
+	/**
+	 * Default maximum size of the data file of a segment, in bytes.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int MAXIMUM_BATCH_SIZE = 64;
+
+	private final File directory;
+	private final String name;
+	private final long segmentSize;
+	private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(
+			QUEUE_CAPACITY);
+	private final Thread writer;
+	private final AtomicLong droppedFrames = new AtomicLong();
+
+	private volatile boolean closed = false;
+	private IOException writeError = null;
+
+	// Used only by the writer thread
+	private int segment = -1;
+	private FileChannel dataChannel;
+	private FileChannel indexChannel;
+	private long dataPosition;
+	private int lastSequenceNumber;
+	private boolean firstFrame = true;
+	private final ByteBuffer indexBuffer = ByteBuffer
+			.allocateDirect(MAXIMUM_BATCH_SIZE * Recording.INDEX_ENTRY_LENGTH);
+	private final ByteBuffer[] writeBuffers = new ByteBuffer[MAXIMUM_BATCH_SIZE];
+
+	/**
+	 * Creates a new recorder that writes segments with the default maximum
+	 * size.
+	 *
+	 * @param directory
+	 *            The directory where the segment files are created.
+	 * @param name
+	 *            The name of the recording, used as the prefix of the segment
+	 *            files.
+	 */
+	public RecordingSessionListener(File directory, String name) {
+		this(directory, name, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a new recorder. The writer thread is started immediately.
+	 *
+	 * @param directory
+	 *            The directory where the segment files are created.
+	 * @param name
+	 *            The name of the recording, used as the prefix of the segment
+	 *            files.
+	 * @param segmentSize
+	 *            The size of the data file after which a new segment is
+	 *            started, in bytes.
+	 */
+	public RecordingSessionListener(File directory, String name,
+			long segmentSize) {
+		this.directory = directory;
+		this.name = name;
+		this.segmentSize = segmentSize;
+
+		writer = ExecutionMode.getDefault().newThread(new Writer(),
+				"Recorder " + name);
+		writer.start();
+	}
+
+	@Override
+	public void exceptionThrown(RTSPException exception) {
+	}
+
+	@Override
+	public void frameReceived(Frame frame) {
+		if (frame == null || closed)
+			return;
+		if (!queue.offer(frame))
+			droppedFrames.incrementAndGet();
+	}
+
+	@Override
+	public void videoNameChanged(String videoName) {
+	}
+
+	/**
+	 * Returns the number of frames that were not recorded because the writer
+	 * could not keep up with the stream.
+	 *
+	 * @return The number of dropped frames.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	/**
+	 * Stops recording. Frames already queued are written, and all files are
+	 * closed before this method returns.
+	 *
+	 * @throws IOException
+	 *             If there was an error writing the recording.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (writeError != null)
+				throw writeError;
+		}
+	}
+
+	/**
+	 * Writes a batch of frames to the current segment, starting a new segment
+	 * first if the current one is full. Payloads and index entries are each
+	 * written with a single gathering write.
+	 */
+	private void writeBatch(List<Frame> batch) throws IOException {
+		if (dataChannel == null || dataPosition >= segmentSize)
+			startSegment();
+
+		indexBuffer.clear();
+		int count = batch.size();
+		for (int i = 0; i < count; i++) {
+			Frame frame = batch.get(i);
+			writeBuffers[i] = frame.getPayloadBuffer();
+
+			indexBuffer.putInt(extendSequenceNumber(frame.getSequenceNumber()));
+			indexBuffer.putInt(frame.getTimestamp());
+			indexBuffer.putLong(dataPosition);
+			indexBuffer.putInt(frame.getPayloadLength());
+			indexBuffer.put(frame.getPayloadType());
+			indexBuffer.put((byte) (frame.isMarkerOn() ? 1 : 0));
+			indexBuffer.putShort((short) 0);
+			dataPosition += frame.getPayloadLength();
+		}
+
+		long remaining = dataPosition - dataChannel.position();
+		while (remaining > 0)
+			remaining -= dataChannel.write(writeBuffers, 0, count);
+		indexBuffer.flip();
+		while (indexBuffer.hasRemaining())
+			indexChannel.write(indexBuffer);
+
+		for (int i = 0; i < count; i++)
+			writeBuffers[i] = null;
+	}
+
+	/**
+	 * Closes the current segment, if any, and opens the files of the next one.
+	 */
+	private void startSegment() throws IOException {
+		closeSegment();
+		segment++;
+		dataChannel = new RandomAccessFile(Recording.getDataFile(directory,
+				name, segment), "rw").getChannel();
+		dataChannel.truncate(0);
+		indexChannel = new RandomAccessFile(Recording.getIndexFile(directory,
+				name, segment), "rw").getChannel();
+		indexChannel.truncate(0);
+		dataPosition = 0;
+	}
+
+	private void closeSegment() throws IOException {
+		if (dataChannel != null) {
+			dataChannel.close();
+			indexChannel.close();
+			dataChannel = null;
+			indexChannel = null;
+		}
+	}
+
+	/**
+	 * Extends the 16-bit sequence number of a frame into a 32-bit number that
+	 * keeps increasing when the sequence number wraps around.
+	 */
+	private int extendSequenceNumber(short sequenceNumber) {
+		int value = sequenceNumber & 0xffff;
+		if (firstFrame) {
+			firstFrame = false;
+			lastSequenceNumber = value;
+		} else {
+			lastSequenceNumber += (short) (value - (lastSequenceNumber & 0xffff));
+		}
+		return lastSequenceNumber;
+	}
+
+	private class Writer implements Runnable {
+
+		@Override
+		public void run() {
+			List<Frame> batch = new ArrayList<Frame>(MAXIMUM_BATCH_SIZE);
+			try {
+				while (!closed || !queue.isEmpty()) {
+					Frame frame = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (frame == null)
+						continue;
+					batch.add(frame);
+					queue.drainTo(batch, MAXIMUM_BATCH_SIZE - 1);
+					writeBatch(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// Recording stopped externally
+			} catch (IOException e) {
+				synchronized (RecordingSessionListener.this) {
+					writeError = e;
+				}
+				closed = true;
+			} finally {
+				try {
+					closeSegment();
+				} catch (IOException e) {
+					synchronized (RecordingSessionListener.this) {
+						if (writeError == null)
+							writeError = e;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package ubc.cs317.rtsp.client.relay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+
+/**
+ * The RTSP connection of a single viewer of the relay. This class implements
+ * the server side of the requests used by the clients of this project
+ * (OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN and GET_PARAMETER), for a
+ * single video track per connection.
+ */
+class RelayConnection implements Runnable {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int SESSION_TIMEOUT = 60;
+	private static final Pattern CLIENT_PORT = Pattern
+			.compile("client_port=\\s*(\\d+)(?:-(\\d+))?");
+	private static final Pattern INTERLEAVED = Pattern
+			.compile("interleaved=\\s*(\\d+)(?:-(\\d+))?");
+
+	private final RelayServer relay;
+	private final SocketChannel channel;
+	private final Object writeLock = new Object();
+	private final String sessionID = Long.toHexString(new Random()
+			.nextLong() & Long.MAX_VALUE);
+
+	private RelaySource source;
+	private RelaySubscriber subscriber;
+	private boolean closed = false;
+
+	RelayConnection(RelayServer relay, SocketChannel channel) {
+		this.relay = relay;
+		this.channel = channel;
+	}
+
+	@Override
+	public void run() {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					Channels.newInputStream(channel), ASCII));
+			String requestLine;
+			while ((requestLine = in.readLine()) != null) {
+				if (requestLine.isEmpty())
+					continue;
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = in.readLine()) != null && !line.isEmpty()) {
+					int colon = line.indexOf(':');
+					if (colon > 0)
+						headers.put(line.substring(0, colon).trim()
+								.toLowerCase(), line.substring(colon + 1)
+								.trim());
+				}
+				if (headers.containsKey("content-length"))
+					in.skip(Integer.parseInt(headers.get("content-length")));
+				handleRequest(requestLine, headers);
+			}
+		} catch (IOException e) {
+			// Viewer disconnected
+		} catch (NumberFormatException e) {
+			// Malformed request, drop the viewer
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Handles a single request and sends its response. SETUP may wait for
+	 * the origin server, so it is handled without holding the lock of the
+	 * connection, which <code>close</code> needs; all other requests are
+	 * handled with the lock held.
+	 */
+	private void handleRequest(String requestLine, Map<String, String> headers)
+			throws IOException {
+		String[] request = requestLine.split(" ");
+		String cseq = headers.get("cseq");
+		if (request.length >= 3 && request[0].equals("SETUP"))
+			setup(getVideoName(request[1]), cseq, headers.get("transport"));
+		else
+			synchronized (this) {
+				handleRequest(request, cseq, headers);
+			}
+	}
+
+	private void handleRequest(String[] request, String cseq,
+			Map<String, String> headers) throws IOException {
+		if (request.length < 3) {
+			respond(400, "Bad Request", cseq, "", null);
+			return;
+		}
+		String method = request[0];
+		String videoName = getVideoName(request[1]);
+
+		if (method.equals("OPTIONS")) {
+			respond(200, "OK", cseq,
+					"Public: OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER\r\n",
+					null);
+		} else if (method.equals("DESCRIBE")) {
+			describe(videoName, cseq);
+		} else if (source == null || !sessionID.equals(getSession(headers))) {
+			respond(454, "Session Not Found", cseq, "", null);
+		} else if (method.equals("PLAY")) {
+			source.subscribe(subscriber);
+			respond(200, "OK", cseq, getSessionHeader(), null);
+		} else if (method.equals("PAUSE")) {
+			source.unsubscribe(subscriber);
+			respond(200, "OK", cseq, getSessionHeader(), null);
+		} else if (method.equals("TEARDOWN")) {
+			release();
+			respond(200, "OK", cseq, getSessionHeader(), null);
+		} else if (method.equals("GET_PARAMETER")) {
+			respond(200, "OK", cseq, getSessionHeader(), null);
+		} else {
+			respond(501, "Not Implemented", cseq, "", null);
+		}
+	}
+
+	/**
+	 * Describes a video as a single video track. If the video is already
+	 * relayed, its payload type and encoding are those of the origin server;
+	 * otherwise the origin server is not contacted until SETUP, and the video
+	 * is described as JPEG.
+	 */
+	private void describe(String videoName, String cseq) throws IOException {
+		RelaySource described = relay.getSource(videoName);
+		int payloadType = RelaySource.DEFAULT_PAYLOAD_TYPE;
+		String encodingName = "JPEG";
+		if (described != null) {
+			payloadType = described.getPayloadType();
+			encodingName = described.getEncodingName();
+		}
+		StringBuilder sdp = new StringBuilder();
+		sdp.append("v=0\r\n");
+		sdp.append("o=- ").append(sessionID).append(" 1 IN IP4 0.0.0.0\r\n");
+		sdp.append("s=").append(videoName).append("\r\n");
+		sdp.append("t=0 0\r\n");
+		sdp.append("a=control:*\r\n");
+		sdp.append("m=video 0 RTP/AVP ").append(payloadType).append("\r\n");
+		if (encodingName != null)
+			sdp.append("a=rtpmap:").append(payloadType).append(' ')
+					.append(encodingName).append("/90000\r\n");
+		respond(200, "OK", cseq, "Content-Type: application/sdp\r\n",
+				sdp.toString());
+	}
+
+	/**
+	 * Sets up a video for the viewer. The transport is checked and the
+	 * subscriber created with the lock of the connection held, but the source
+	 * is acquired without it, since the origin server may be slow to open the
+	 * video. If the connection was closed in the meantime, the source is
+	 * released right away.
+	 */
+	private void setup(String videoName, String cseq, String transport)
+			throws IOException {
+		RelaySubscriber subscriber;
+		String responseTransport;
+		synchronized (this) {
+			if (closed)
+				return;
+			if (source != null || transport == null) {
+				respond(455, "Method Not Valid in This State", cseq, "", null);
+				return;
+			}
+			subscriber = createSubscriber(videoName, transport);
+			if (subscriber == null) {
+				respond(461, "Unsupported Transport", cseq, "", null);
+				return;
+			}
+			responseTransport = getResponseTransport(transport);
+		}
+
+		RelaySource acquired;
+		try {
+			acquired = relay.acquireSource(videoName);
+		} catch (RTSPException e) {
+			synchronized (this) {
+				if (!closed)
+					respond(404, "Not Found", cseq, "", null);
+			}
+			return;
+		}
+
+		synchronized (this) {
+			if (!closed) {
+				source = acquired;
+				this.subscriber = subscriber;
+				subscriber.start();
+				respond(200, "OK", cseq, "Transport: " + responseTransport
+						+ "\r\n" + "Session: " + sessionID + ";timeout="
+						+ SESSION_TIMEOUT + "\r\n", null);
+				return;
+			}
+		}
+		relay.releaseSource(acquired);
+	}
+
+	/**
+	 * Creates the subscriber for a transport requested in SETUP, or returns
+	 * null if the transport is not supported.
+	 */
+	private RelaySubscriber createSubscriber(String videoName,
+			String transport) throws IOException {
+		String name = sessionID + " " + videoName;
+		Matcher interleaved = INTERLEAVED.matcher(transport);
+		Matcher clientPort = CLIENT_PORT.matcher(transport);
+		if (transport.contains("/TCP") || interleaved.find()) {
+			int rtpChannel = interleaved.find(0) ? Integer.parseInt(interleaved
+					.group(1)) : 0;
+			return new RelaySubscriber.Interleaved(name, this, rtpChannel);
+		} else if (clientPort.find()) {
+			int rtpPort = Integer.parseInt(clientPort.group(1));
+			InetSocketAddress viewer = new InetSocketAddress(
+					((InetSocketAddress) channel.getRemoteAddress())
+							.getAddress(), rtpPort);
+			return new RelaySubscriber.Udp(name, relay.getRTPChannel(), viewer);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the transport of the SETUP response for a supported transport
+	 * requested by the viewer.
+	 */
+	private String getResponseTransport(String transport) {
+		Matcher interleaved = INTERLEAVED.matcher(transport);
+		Matcher clientPort = CLIENT_PORT.matcher(transport);
+		if (transport.contains("/TCP") || interleaved.find()) {
+			int rtpChannel = interleaved.find(0) ? Integer.parseInt(interleaved
+					.group(1)) : 0;
+			return "RTP/AVP/TCP;unicast;interleaved=" + rtpChannel + "-"
+					+ (rtpChannel + 1);
+		}
+		clientPort.find();
+		int serverPort = relay.getRTPChannel().socket().getLocalPort();
+		return "RTP/AVP;unicast;client_port=" + clientPort.group(1)
+				+ (clientPort.group(2) == null ? "" : "-" + clientPort.group(2))
+				+ ";server_port=" + serverPort;
+	}
+
+	/**
+	 * Stops sending to the viewer and releases the relayed video.
+	 */
+	private void release() {
+		if (source == null)
+			return;
+		source.unsubscribe(subscriber);
+		subscriber.stop();
+		relay.releaseSource(source);
+		source = null;
+		subscriber = null;
+	}
+
+	/**
+	 * Closes the connection, releasing the video if it is still set up.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+			release();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		relay.connectionClosed(this);
+	}
+
+	/**
+	 * Writes buffers to the connection, serialized with the RTSP responses.
+	 */
+	void write(ByteBuffer[] buffers) throws IOException {
+		synchronized (writeLock) {
+			RelaySubscriber.writeFully(channel, buffers);
+		}
+	}
+
+	private void respond(int code, String message, String cseq,
+			String headers, String body) throws IOException {
+		StringBuilder response = new StringBuilder();
+		response.append("RTSP/1.0 ").append(code).append(' ').append(message)
+				.append("\r\n");
+		if (cseq != null)
+			response.append("CSeq: ").append(cseq).append("\r\n");
+		response.append(headers);
+		if (body != null)
+			response.append("Content-Length: ").append(body.length())
+					.append("\r\n");
+		response.append("\r\n");
+		if (body != null)
+			response.append(body);
+		write(new ByteBuffer[] { ByteBuffer.wrap(response.toString()
+				.getBytes(ASCII)) });
+	}
+
+	private String getSessionHeader() {
+		return "Session: " + sessionID + "\r\n";
+	}
+
+	private static String getSession(Map<String, String> headers) {
+		String session = headers.get("session");
+		if (session == null)
+			return null;
+		int semicolon = session.indexOf(';');
+		return semicolon < 0 ? session : session.substring(0, semicolon).trim();
+	}
+
+	/**
+	 * Returns the video name of a request URL, removing the scheme, host and
+	 * any track control suffix, so that absolute and relative URLs of the same
+	 * video share a source.
+	 */
+	private static String getVideoName(String url) {
+		String videoName = url;
+		if (videoName.startsWith("rtsp://")) {
+			int slash = videoName.indexOf('/', 7);
+			videoName = slash < 0 ? "" : videoName.substring(slash + 1);
+		}
+		if (videoName.endsWith("/*"))
+			videoName = videoName.substring(0, videoName.length() - 2);
+		return videoName;
+	}
+}
@@ -0,0 +1,123 @@
+package ubc.cs317.rtsp.client.relay;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ubc.cs317.rtsp.client.model.Frame;
+
+/**
+ * An RTP packet shared by all subscribers of a relayed stream. The packet is
+ * built once from a frame, in a direct buffer taken from a pool, and each
+ * subscriber sends its own slice of the same buffer, so no data is copied
+ * per subscriber. The packet is reference counted, and goes back to its pool
+ * when the last reference is released.
+ */
+class RelayPacket {
+
+	static final int RTP_HEADER_LENGTH = 12;
+	static final int MAXIMUM_LENGTH = 15000 + RTP_HEADER_LENGTH;
+
+	private final ByteBuffer data = ByteBuffer.allocateDirect(MAXIMUM_LENGTH);
+	private final AtomicInteger references = new AtomicInteger();
+	private final Pool pool;
+
+	private RelayPacket(Pool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns a new view of the packet contents, with its own position and
+	 * limit, to be sent by a subscriber.
+	 *
+	 * @return A read-only buffer with the packet contents.
+	 */
+	ByteBuffer slice() {
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Adds a reference to the packet.
+	 */
+	void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Removes a reference to the packet, returning it to its pool if this was
+	 * the last one.
+	 */
+	void release() {
+		if (references.decrementAndGet() == 0)
+			pool.recycle(this);
+	}
+
+	/**
+	 * Builds the RTP packet of a frame.
+	 */
+	private void fill(Frame frame, int ssrc) {
+		data.clear();
+		data.put((byte) 0x80);
+		data.put((byte) ((frame.isMarkerOn() ? 0x80 : 0) | (frame
+				.getPayloadType() & 0x7f)));
+		data.putShort(frame.getSequenceNumber());
+		data.putInt(frame.getTimestamp());
+		data.putInt(ssrc);
+		data.put(frame.getPayloadBuffer());
+		data.flip();
+	}
+
+	/**
+	 * A pool of packets of a relayed stream. Packets not in use are kept for
+	 * reuse, up to a maximum number.
+	 */
+	static class Pool {
+
+		private final ConcurrentLinkedQueue<RelayPacket> free = new ConcurrentLinkedQueue<RelayPacket>();
+		private final AtomicInteger freeCount = new AtomicInteger();
+		private final int maximumFree;
+		private final int ssrc;
+
+		/**
+		 * Creates a new, empty pool.
+		 *
+		 * @param maximumFree
+		 *            The maximum number of packets kept for reuse.
+		 * @param ssrc
+		 *            The synchronization source identifier written in the
+		 *            packets.
+		 */
+		Pool(int maximumFree, int ssrc) {
+			this.maximumFree = maximumFree;
+			this.ssrc = ssrc;
+		}
+
+		/**
+		 * Returns a packet with the contents of a frame, holding a single
+		 * reference owned by the caller.
+		 *
+		 * @param frame
+		 *            The frame to be relayed.
+		 * @return The packet, or null if the frame does not fit in a packet.
+		 */
+		RelayPacket obtain(Frame frame) {
+			if (frame.getPayloadLength() > MAXIMUM_LENGTH - RTP_HEADER_LENGTH)
+				return null;
+			RelayPacket packet = free.poll();
+			if (packet == null)
+				packet = new RelayPacket(this);
+			else
+				freeCount.decrementAndGet();
+			packet.fill(frame, ssrc);
+			packet.references.set(1);
+			return packet;
+		}
+
+		private void recycle(RelayPacket packet) {
+			if (freeCount.incrementAndGet() <= maximumFree)
+				free.offer(packet);
+			else
+				freeCount.decrementAndGet();
+		}
+	}
+}
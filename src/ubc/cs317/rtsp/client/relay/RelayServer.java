@@ -0,0 +1,286 @@
+package ubc.cs317.rtsp.client.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.log.EventLog;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * A relay that keeps a single upstream session per video with the origin
+ * server, and serves it to any number of local viewers over RTSP, with RTP
+ * sent over UDP or interleaved in the RTSP connection. The origin server only
+ * sees one session per video, however many viewers are watching it.
+ *
+ * <pre>
+ * Usage: RelayServer origin-server origin-port [listen-port]
+ * </pre>
+ */
+public class RelayServer implements Runnable {
+
+	/**
+	 * Default port where the relay listens to viewers.
+	 */
+	public static final int DEFAULT_PORT = 8554;
+
+	private final String originServer;
+	private final int originPort;
+	private final ServerSocketChannel serverChannel;
+	private final DatagramChannel rtpChannel;
+	private final Map<String, RelaySource> sources = new HashMap<String, RelaySource>();
+	private final List<RelayConnection> connections = new ArrayList<RelayConnection>();
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a new relay listening for viewers on a local port.
+	 *
+	 * @param originServer
+	 *            The IP address or host name of the origin RTSP server.
+	 * @param originPort
+	 *            The port of the origin RTSP server.
+	 * @param port
+	 *            The port where viewers connect, or 0 for any free port.
+	 * @throws IOException
+	 *             If the port could not be opened.
+	 */
+	public RelayServer(String originServer, int originPort, int port)
+			throws IOException {
+		this.originServer = originServer;
+		this.originPort = originPort;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		rtpChannel = DatagramChannel.open();
+		rtpChannel.bind(new InetSocketAddress(0));
+	}
+
+	/**
+	 * Starts accepting viewers in a new thread.
+	 */
+	public void start() {
+		ExecutionMode.getDefault().newThread(this, "Relay server").start();
+	}
+
+	/**
+	 * Returns the port where viewers connect.
+	 *
+	 * @return The local RTSP port of the relay.
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the number of upstream sessions currently open.
+	 *
+	 * @return The number of relayed videos.
+	 */
+	public synchronized int getSourceCount() {
+		return sources.size();
+	}
+
+	/**
+	 * Stops accepting viewers, disconnects all viewers and closes all
+	 * upstream sessions.
+	 */
+	public void close() {
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+		}
+		List<RelayConnection> open;
+		synchronized (this) {
+			open = new ArrayList<RelayConnection>(connections);
+		}
+		for (RelayConnection connection : open)
+			connection.close();
+		try {
+			rtpChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				RelayConnection connection = new RelayConnection(this,
+						channel);
+				synchronized (this) {
+					connections.add(connection);
+				}
+				ExecutionMode
+						.getDefault()
+						.newThread(connection,
+								"Relay connection " + channel.getRemoteAddress())
+						.start();
+			} catch (IOException e) {
+				EventLog eventLog = EventLog.getDefault();
+				if (running && eventLog.isEnabled(EventLog.Level.WARN))
+					eventLog.log(EventLog.Level.WARN, "relay.accept.failed",
+							null, null, -1, "error", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Relays a video already playing in a session of this process, such as a
+	 * stream of a headless client, instead of opening a new upstream session
+	 * when a viewer sets it up. The session remains owned by the caller, and
+	 * viewers receive its packets for as long as it plays, or until
+	 * <code>unpublish</code> is called, which must be done before closing the
+	 * session. If the video is already relayed, the session is not used.
+	 *
+	 * @param session
+	 *            A session where a video is open.
+	 */
+	public void publish(Session session) {
+		synchronized (this) {
+			if (sources.containsKey(session.getVideoName()))
+				return;
+			RelaySource source = new RelaySource(session);
+			// The publisher counts as a client, so viewers never close it
+			source.addClient();
+			sources.put(source.getVideoName(), source);
+		}
+	}
+
+	/**
+	 * Stops relaying a session published with <code>publish</code>. Viewers
+	 * that set up the video later open a new upstream session, and viewers
+	 * that already have it set up receive no more packets. Does nothing if
+	 * the session is not relayed.
+	 *
+	 * @param session
+	 *            A session passed to <code>publish</code>.
+	 */
+	public void unpublish(Session session) {
+		RelaySource source = null;
+		synchronized (this) {
+			for (RelaySource published : sources.values())
+				if (published.getPublisher() == session)
+					source = published;
+			if (source == null)
+				return;
+			sources.remove(source.getVideoName());
+			// The session is owned by the caller, so no client closes it
+			source.removeClient();
+		}
+		source.unpublish();
+	}
+
+	/**
+	 * Returns the upstream source of a video, if it is being relayed.
+	 *
+	 * @param videoName
+	 *            The name of the video.
+	 * @return The source of the video, or null if no viewer has it set up or
+	 *         it is still being opened.
+	 */
+	synchronized RelaySource getSource(String videoName) {
+		RelaySource source = sources.get(videoName);
+		return source != null && source.isOpen() ? source : null;
+	}
+
+	/**
+	 * Returns the upstream source of a video, opening it if no viewer has it
+	 * set up yet, and counts the caller as one more client of the source.
+	 * The source is reserved while holding the lock of the relay, but the
+	 * origin server is contacted after releasing it, so other viewers are
+	 * not held up by a slow origin. Viewers of a video being opened wait for
+	 * it to open.
+	 *
+	 * @param videoName
+	 *            The name of the video.
+	 * @return The source of the video.
+	 * @throws RTSPException
+	 *             If the video could not be opened in the origin server.
+	 */
+	RelaySource acquireSource(String videoName) throws RTSPException {
+		RelaySource source;
+		boolean opening = false;
+		synchronized (this) {
+			source = sources.get(videoName);
+			if (source == null) {
+				source = new RelaySource(videoName);
+				sources.put(videoName, source);
+				opening = true;
+			}
+			source.addClient();
+		}
+		try {
+			if (opening)
+				source.open(originServer, originPort);
+			else
+				source.awaitOpen();
+		} catch (RTSPException e) {
+			synchronized (this) {
+				// Let the next viewer try again
+				if (sources.get(videoName) == source)
+					sources.remove(videoName);
+			}
+			releaseSource(source);
+			throw e;
+		}
+		return source;
+	}
+
+	/**
+	 * Removes a client of a source, closing the upstream session if this was
+	 * the last one.
+	 *
+	 * @param source
+	 *            The source being released.
+	 */
+	void releaseSource(RelaySource source) {
+		synchronized (this) {
+			if (!source.removeClient())
+				return;
+			if (sources.get(source.getVideoName()) == source)
+				sources.remove(source.getVideoName());
+		}
+		source.close();
+	}
+
+	/**
+	 * Removes a connection that was closed.
+	 */
+	synchronized void connectionClosed(RelayConnection connection) {
+		connections.remove(connection);
+	}
+
+	DatagramChannel getRTPChannel() {
+		return rtpChannel;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err
+					.println("Usage: RelayServer origin-server origin-port [listen-port]");
+			System.exit(1);
+		}
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+		final RelayServer relay = new RelayServer(args[0],
+				Integer.parseInt(args[1]), port);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				relay.close();
+			}
+		});
+		System.err.println("Relaying " + args[0] + ":" + args[1]
+				+ " on port " + relay.getPort());
+		relay.run();
+	}
+}
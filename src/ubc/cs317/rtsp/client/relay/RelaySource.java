@@ -0,0 +1,242 @@
+package ubc.cs317.rtsp.client.relay;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.listener.PacketListener;
+
+/**
+ * The upstream side of a relayed video: a single session with the origin
+ * server, whose packets are rebuilt once as they arrive and handed to every
+ * subscriber. Packets are relayed before playout buffering, so viewers pace
+ * the stream themselves. The upstream session is played while at least one
+ * downstream client has the video set up.
+ */
+class RelaySource implements PacketListener {
+
+	private static final int POOL_SIZE = 2 * RelaySubscriber.QUEUE_CAPACITY;
+	static final int DEFAULT_PAYLOAD_TYPE = 26;
+
+	private final String videoName;
+	private final Session publisher;
+	private volatile Session session = null;
+	private boolean opened = false;
+	private RTSPException failure = null;
+	private final RelayPacket.Pool pool = new RelayPacket.Pool(POOL_SIZE,
+			new Random().nextInt());
+	private final List<RelaySubscriber> subscribers = new CopyOnWriteArrayList<RelaySubscriber>();
+	private int clients = 0;
+
+	/**
+	 * Creates the source of a video. The video is not opened in the origin
+	 * server until <code>open</code> is called.
+	 *
+	 * @param videoName
+	 *            The name of the video.
+	 */
+	RelaySource(String videoName) {
+		this.videoName = videoName;
+		this.publisher = null;
+	}
+
+	/**
+	 * Creates the source of a video already playing in a session owned by
+	 * the caller. The session is not closed by the relay.
+	 *
+	 * @param session
+	 *            The session where the video is open.
+	 */
+	RelaySource(Session session) {
+		this.videoName = session.getVideoName();
+		this.publisher = session;
+		this.session = session;
+		this.opened = true;
+		session.addPacketListener(this);
+	}
+
+	/**
+	 * Opens and plays the video in the origin server. Clients waiting in
+	 * <code>awaitOpen</code> are woken up when the video is playing or could
+	 * not be opened.
+	 *
+	 * @param server
+	 *            The IP address or host name of the origin server.
+	 * @param port
+	 *            The port of the origin server.
+	 * @throws RTSPException
+	 *             If the video could not be opened.
+	 */
+	void open(String server, int port) throws RTSPException {
+		Session session = null;
+		RTSPException failure = null;
+		try {
+			session = new Session(server, port);
+			session.addPacketListener(this);
+			session.open(videoName);
+			session.play();
+		} catch (RTSPException e) {
+			if (session != null)
+				session.closeConnection();
+			session = null;
+			failure = e;
+		}
+		synchronized (this) {
+			this.session = session;
+			this.failure = failure;
+			opened = true;
+			notifyAll();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Waits until the video is opened by the client that created the source.
+	 *
+	 * @throws RTSPException
+	 *             If the video could not be opened.
+	 */
+	synchronized void awaitOpen() throws RTSPException {
+		boolean interrupted = false;
+		while (!opened) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+			throw new RTSPException(failure.getMessage(), failure);
+	}
+
+	/**
+	 * Returns an indication if the video is playing in the origin server.
+	 *
+	 * @return <tt>true</tt> if the video was opened successfully.
+	 */
+	synchronized boolean isOpen() {
+		return opened && session != null;
+	}
+
+	/**
+	 * Adds a subscriber, which receives all frames from now on.
+	 *
+	 * @param subscriber
+	 *            The subscriber to be added.
+	 */
+	void subscribe(RelaySubscriber subscriber) {
+		if (!subscribers.contains(subscriber))
+			subscribers.add(subscriber);
+	}
+
+	/**
+	 * Removes a subscriber, which no longer receives frames.
+	 *
+	 * @param subscriber
+	 *            The subscriber to be removed.
+	 */
+	void unsubscribe(RelaySubscriber subscriber) {
+		subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Counts a new downstream client with this video set up. Must be called
+	 * with the lock of the relay held.
+	 */
+	void addClient() {
+		clients++;
+	}
+
+	/**
+	 * Removes a downstream client with this video set up. Must be called with
+	 * the lock of the relay held.
+	 *
+	 * @return <tt>true</tt> if there are no more clients.
+	 */
+	boolean removeClient() {
+		return --clients == 0;
+	}
+
+	/**
+	 * Stops relaying the packets of the session of the caller. Viewers still
+	 * subscribed receive no more packets.
+	 */
+	void unpublish() {
+		publisher.removePacketListener(this);
+	}
+
+	/**
+	 * Returns the session of the caller relayed by this source.
+	 *
+	 * @return The session, or null if the source opened its own upstream
+	 *         session.
+	 */
+	Session getPublisher() {
+		return publisher;
+	}
+
+	/**
+	 * Closes the upstream session, unless it is owned by the caller.
+	 */
+	void close() {
+		Session session = this.session;
+		if (session == null || session == publisher)
+			return;
+		try {
+			session.release();
+		} catch (RTSPException e) {
+		}
+	}
+
+	String getVideoName() {
+		return videoName;
+	}
+
+	/**
+	 * Returns the payload type of the relayed stream.
+	 *
+	 * @return The payload type announced by the origin server, or 26 (JPEG)
+	 *         if the server did not describe the video.
+	 */
+	int getPayloadType() {
+		int payloadType = session.getPayloadType();
+		return payloadType < 0 ? DEFAULT_PAYLOAD_TYPE : payloadType;
+	}
+
+	/**
+	 * Returns the encoding of the relayed stream.
+	 *
+	 * @return The encoding name, or null if the origin server did not
+	 *         describe the video.
+	 */
+	String getEncodingName() {
+		return session.getEncodingName();
+	}
+
+	/**
+	 * Returns the number of subscribers currently receiving frames.
+	 *
+	 * @return The number of subscribers.
+	 */
+	int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	@Override
+	public void packetReceived(Frame frame) {
+		if (subscribers.isEmpty())
+			return;
+		RelayPacket packet = pool.obtain(frame);
+		if (packet == null)
+			return;
+		for (RelaySubscriber subscriber : subscribers)
+			subscriber.offer(packet);
+		packet.release();
+	}
+}
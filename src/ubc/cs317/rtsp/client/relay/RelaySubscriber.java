@@ -0,0 +1,171 @@
+package ubc.cs317.rtsp.client.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ubc.cs317.rtsp.client.net.ExecutionMode;
+
+/**
+ * A downstream viewer of a relayed stream. Packets are queued in a bounded
+ * queue and sent by a thread of the subscriber, so a slow viewer only loses
+ * its own packets (when its queue is full) and never delays the others.
+ */
+abstract class RelaySubscriber implements Runnable {
+
+	/**
+	 * Number of packets queued for a subscriber before new packets are
+	 * dropped.
+	 */
+	static final int QUEUE_CAPACITY = 64;
+
+	private final BlockingQueue<RelayPacket> queue = new ArrayBlockingQueue<RelayPacket>(
+			QUEUE_CAPACITY);
+	private final String name;
+	private volatile Thread sender;
+	private volatile long sentPackets = 0;
+	private volatile long droppedPackets = 0;
+
+	RelaySubscriber(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Starts the sender thread of the subscriber.
+	 */
+	void start() {
+		Thread thread = ExecutionMode.getDefault().newThread(this,
+				"Relay sender " + name);
+		sender = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops the sender thread and releases all queued packets.
+	 */
+	void stop() {
+		Thread thread = sender;
+		sender = null;
+		if (thread != null)
+			thread.interrupt();
+		RelayPacket packet;
+		while ((packet = queue.poll()) != null)
+			packet.release();
+	}
+
+	/**
+	 * Queues a packet to be sent. If the queue is full, the packet is dropped
+	 * for this subscriber only.
+	 *
+	 * @param packet
+	 *            The packet to be sent. A reference is taken if it is queued.
+	 */
+	void offer(RelayPacket packet) {
+		packet.retain();
+		if (!queue.offer(packet)) {
+			packet.release();
+			droppedPackets++;
+		}
+	}
+
+	long getSentPackets() {
+		return sentPackets;
+	}
+
+	long getDroppedPackets() {
+		return droppedPackets;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (sender == Thread.currentThread()) {
+				RelayPacket packet = queue.take();
+				try {
+					send(packet.slice());
+					sentPackets++;
+				} finally {
+					packet.release();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Subscriber was stopped
+		} catch (IOException e) {
+			// Viewer is gone; its connection handler cleans up
+			sender = null;
+		}
+	}
+
+	/**
+	 * Sends the contents of a packet to the viewer.
+	 */
+	protected abstract void send(ByteBuffer packet) throws IOException;
+
+	/**
+	 * A subscriber receiving RTP over UDP. All UDP subscribers of a relay
+	 * share the same channel.
+	 */
+	static class Udp extends RelaySubscriber {
+
+		private final DatagramChannel channel;
+		private final InetSocketAddress address;
+
+		Udp(String name, DatagramChannel channel, InetSocketAddress address) {
+			super(name);
+			this.channel = channel;
+			this.address = address;
+		}
+
+		@Override
+		protected void send(ByteBuffer packet) throws IOException {
+			channel.send(packet, address);
+		}
+	}
+
+	/**
+	 * A subscriber receiving RTP interleaved in its RTSP connection (RFC
+	 * 2326, section 10.12). Each packet is preceded by a 4-byte header with
+	 * the channel number and length.
+	 */
+	static class Interleaved extends RelaySubscriber {
+
+		private final RelayConnection connection;
+		private final int channelNumber;
+		private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+		private final ByteBuffer[] buffers = new ByteBuffer[2];
+
+		Interleaved(String name, RelayConnection connection, int channelNumber) {
+			super(name);
+			this.connection = connection;
+			this.channelNumber = channelNumber;
+		}
+
+		@Override
+		protected void send(ByteBuffer packet) throws IOException {
+			header.clear();
+			header.put((byte) '$');
+			header.put((byte) channelNumber);
+			header.putShort((short) packet.remaining());
+			header.flip();
+			buffers[0] = header;
+			buffers[1] = packet;
+			connection.write(buffers);
+		}
+	}
+
+	/**
+	 * Writes all buffers to a channel, blocking until done.
+	 */
+	static void writeFully(SocketChannel channel, ByteBuffer[] buffers)
+			throws IOException {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers)
+			remaining += buffer.remaining();
+		while (remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+}
@@ -14,24 +14,39 @@
 package ubc.cs317.rtsp.client.ui;
 
 import java.awt.BorderLayout;
+import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.log.EventLog;
 import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.FrameDecoder;
+import ubc.cs317.rtsp.client.model.LatencyTrace;
+import ubc.cs317.rtsp.client.model.RateController;
 import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.SessionRegistry;
 import ubc.cs317.rtsp.client.model.listener.SessionListener;
+import ubc.cs317.rtsp.client.net.ExecutionMode;
 
 public class MainWindow extends JFrame implements SessionListener {
 
-	private Session session;
+	private volatile Session session;
+	private RateController rateController;
+	private FrameDecoder decoder = new FrameDecoder();
+	private volatile LatencyTrace paintTrace;
+	private volatile short paintSequenceNumber;
 
 	private VideoControlToolbar videoControlToolbar;
 	private JLabel imagePanel;
@@ -42,7 +57,17 @@ public class MainWindow extends JFrame implements SessionListener {
 		super("Video Client");
 
 		videoControlToolbar = new VideoControlToolbar(this);
-		imagePanel = new JLabel();
+		imagePanel = new JLabel() {
+			@Override
+			protected void paintComponent(Graphics g) {
+				super.paintComponent(g);
+				// Only the first paint of each frame is traced
+				LatencyTrace trace = paintTrace;
+				paintTrace = null;
+				if (trace != null)
+					trace.record(LatencyTrace.Stage.PAINT, paintSequenceNumber);
+			}
+		};
 		imagePanel.setHorizontalAlignment(SwingConstants.CENTER);
 		imagePanel.setVerticalAlignment(SwingConstants.CENTER);
 		videoNamePanel = new JLabel();
@@ -74,24 +99,51 @@ public class MainWindow extends JFrame implements SessionListener {
 		if (this.session == session)
 			return;
 
+		if (rateController != null) {
+			rateController.close();
+			rateController = null;
+		}
+		EventLog eventLog = EventLog.getDefault();
+		if (this.session != null && this.session.getLatencyTrace() != null
+				&& eventLog.isEnabled(EventLog.Level.INFO))
+			eventLog.log(EventLog.Level.INFO, "playback.latency", null,
+					this.session.getVideoName(), -1, "breakdown",
+					this.session.getLatencyTrace().getBreakdown());
 		if (this.session != null) {
 			this.session.removeSessionListener(this);
-			this.session.closeConnection();
+			releaseInBackground(this.session);
 		}
 
 		this.session = session;
 
 		if (session != null) {
 			session.addSessionListener(this);
+			rateController = new RateController(session);
 		}
 	}
 
+	/**
+	 * Releases a session in a new thread, so that the user interface does not
+	 * wait for the server to respond to TEARDOWN. The release takes at most
+	 * <code>SessionRegistry.SHUTDOWN_TIMEOUT_MS</code>.
+	 */
+	private static void releaseInBackground(final Session session) {
+		ExecutionMode.getDefault().newThread(new Runnable() {
+			@Override
+			public void run() {
+				SessionRegistry.closeAll(Collections.singletonList(session),
+						SessionRegistry.SHUTDOWN_TIMEOUT_MS,
+						TimeUnit.MILLISECONDS);
+			}
+		}, "Session release").start();
+	}
+
 	public synchronized void disconnect(boolean showOpenDialog) {
 		setSession(null);
 		if (showOpenDialog)
 			showOpenDialog();
 		else
-			System.exit(0);
+			dispose();
 	}
 
 	/**
@@ -117,18 +169,50 @@ public class MainWindow extends JFrame implements SessionListener {
 			imagePanel.setIcon(null);
 		else {
 
-			Image scaledImage = frame.getImage().getScaledInstance(
+			Session current = session;
+			LatencyTrace trace = current == null ? null : current
+					.getLatencyTrace();
+			short sequenceNumber = frame.getSequenceNumber();
+			if (trace != null)
+				trace.record(LatencyTrace.Stage.DECODE_START, sequenceNumber);
+			Image image;
+			try {
+				// Only decode as many pixels as the panel can show
+				image = decoder.decode(frame, 0, imagePanel.getHeight());
+			} catch (IOException e) {
+				image = frame.getImage();
+			}
+			Image scaledImage = image.getScaledInstance(
 					-imagePanel.getWidth(), imagePanel.getHeight(),
 					Image.SCALE_FAST);
+			if (trace != null)
+				trace.record(LatencyTrace.Stage.DECODE_END, sequenceNumber);
+			paintSequenceNumber = sequenceNumber;
+			paintTrace = trace;
 			imagePanel.setIcon(new ImageIcon(scaledImage));
 		}
 	}
 
 	@Override
-	public void videoNameChanged(String videoName) {
-		if (videoName==null)
-			videoNamePanel.setText("(click open to select a video)");
-		else
-			videoNamePanel.setText("Video: " + videoName);
+	public void videoNameChanged(final String videoName) {
+		// Delivered in the thread of the listener, possibly after the session
+		// was replaced or cleared by setSession
+		Session current = session;
+		final int payloadType = current == null || videoName == null ? -1
+				: current.getPayloadType();
+		final String encodingName = payloadType < 0 ? null : current
+				.getEncodingName();
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (videoName == null)
+					videoNamePanel.setText("(click open to select a video)");
+				else {
+					videoNamePanel.setText("Video: " + videoName);
+					if (payloadType >= 0)
+						decoder.setEncoding(payloadType, encodingName);
+				}
+			}
+		});
 	}
 }
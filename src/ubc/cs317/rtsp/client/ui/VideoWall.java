@@ -0,0 +1,98 @@
+package ubc.cs317.rtsp.client.ui;
+
+import java.awt.BorderLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Session;
+import ubc.cs317.rtsp.client.model.SessionRegistry;
+
+/**
+ * A window that plays several videos at the same time in a
+ * <code>VideoWallPanel</code>, one session per video.
+ */
+public class VideoWall extends JFrame {
+
+	private VideoWallPanel wallPanel;
+	private List<Session> sessions = new ArrayList<Session>();
+
+	public VideoWall() {
+
+		super("Video Wall");
+
+		wallPanel = new VideoWallPanel();
+
+		this.setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+		this.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				closeAll();
+				System.exit(0);
+			}
+		});
+
+		this.setLayout(new BorderLayout());
+		this.add(wallPanel, BorderLayout.CENTER);
+		this.setSize(1280, 720);
+	}
+
+	/**
+	 * Opens a new session with a video and plays it in a new tile.
+	 *
+	 * @param server
+	 *            The IP address or host name of the RTSP server.
+	 * @param port
+	 *            The port where the RTSP server is listening to.
+	 * @param videoName
+	 *            The name of the video to be played.
+	 * @throws RTSPException
+	 *             If the video could not be opened or played.
+	 */
+	public void addStream(String server, int port, String videoName)
+			throws RTSPException {
+		Session session = new Session(server, port);
+		sessions.add(session);
+		session.addSessionListener(wallPanel.addTile(videoName));
+		session.open(videoName);
+		session.play();
+	}
+
+	/**
+	 * Closes all sessions in the wall, in parallel.
+	 */
+	public void closeAll() {
+		wallPanel.stop();
+		SessionRegistry.closeAll(sessions, SessionRegistry.SHUTDOWN_TIMEOUT_MS,
+				TimeUnit.MILLISECONDS);
+		sessions.clear();
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length < 3) {
+			System.err.println("Usage: VideoWall server port video...");
+			System.exit(1);
+		}
+
+		VideoWall wall = new VideoWall();
+		wall.setVisible(true);
+		wall.wallPanel.start();
+
+		int port = Integer.parseInt(args[1]);
+		for (int i = 2; i < args.length; i++) {
+			try {
+				wall.addStream(args[0], port, args[i]);
+			} catch (RTSPException e) {
+				JOptionPane.showMessageDialog(wall, args[i] + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package ubc.cs317.rtsp.client.ui;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.JComponent;
+
+import ubc.cs317.rtsp.client.exception.RTSPException;
+import ubc.cs317.rtsp.client.model.Frame;
+import ubc.cs317.rtsp.client.model.FrameDecoder;
+import ubc.cs317.rtsp.client.model.listener.SessionListener;
+
+/**
+ * A component that shows many video streams side by side in a grid. Each
+ * stream is shown in a tile, which is the session listener for that stream.
+ * Tiles only keep the latest frame received; a single render thread wakes up
+ * about 60 times per second, decodes the latest frame of each tile that
+ * changed at a resolution close to the tile size, scales it into a reusable
+ * tile image and copies it into a shared back buffer. Only the regions of the tiles that changed are repainted.
+ */
+public class VideoWallPanel extends JComponent {
+
+	private static final long RENDER_INTERVAL_NANOS = TimeUnit.SECONDS
+			.toNanos(1) / 60;
+
+	private final List<Tile> tiles = new CopyOnWriteArrayList<Tile>();
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final Object bufferLock = new Object();
+	private BufferedImage backBuffer;
+	private Graphics backGraphics;
+	private Thread renderer;
+	private volatile boolean running = false;
+
+	public VideoWallPanel() {
+		setOpaque(true);
+		setBackground(Color.BLACK);
+	}
+
+	/**
+	 * Adds a new tile to the wall.
+	 *
+	 * @param name
+	 *            The name shown in the tile.
+	 * @return The new tile, to be added as a listener to the session of the
+	 *         stream.
+	 */
+	public Tile addTile(String name) {
+		Tile tile = new Tile(name);
+		tiles.add(tile);
+		invalidateAllTiles();
+		return tile;
+	}
+
+	/**
+	 * Removes a tile from the wall.
+	 *
+	 * @param tile
+	 *            The tile to be removed.
+	 */
+	public void removeTile(Tile tile) {
+		tiles.remove(tile);
+		// The layout changes, so the back buffer is rebuilt from scratch
+		synchronized (bufferLock) {
+			backBuffer = null;
+		}
+		repaint();
+	}
+
+	/**
+	 * Starts the render thread.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		renderer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				renderLoop();
+			}
+		}, "Video wall renderer");
+		renderer.setDaemon(true);
+		renderer.start();
+	}
+
+	/**
+	 * Stops the render thread.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (renderer != null) {
+			renderer.interrupt();
+			renderer = null;
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		synchronized (bufferLock) {
+			if (backBuffer == null) {
+				g.setColor(getBackground());
+				g.fillRect(0, 0, getWidth(), getHeight());
+			} else
+				g.drawImage(backBuffer, 0, 0, null);
+		}
+	}
+
+	private void invalidateAllTiles() {
+		for (Tile tile : tiles)
+			tile.invalid = true;
+	}
+
+	private void renderLoop() {
+		long nextRender = System.nanoTime();
+		while (running) {
+			render();
+			// Flush the rendering pipeline so frames are shown at a steady pace
+			Toolkit.getDefaultToolkit().sync();
+
+			nextRender += RENDER_INTERVAL_NANOS;
+			long now = System.nanoTime();
+			if (nextRender - now < 0)
+				nextRender = now;
+			else {
+				try {
+					TimeUnit.NANOSECONDS.sleep(nextRender - now);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renders every tile that changed since the previous call into the back
+	 * buffer, and requests a repaint of their regions.
+	 */
+	private void render() {
+		int width = getWidth(), height = getHeight();
+		int count = tiles.size();
+		if (width <= 0 || height <= 0 || count == 0)
+			return;
+
+		synchronized (bufferLock) {
+			if (backBuffer == null || backBuffer.getWidth() != width
+					|| backBuffer.getHeight() != height) {
+				if (backGraphics != null)
+					backGraphics.dispose();
+				backBuffer = new BufferedImage(width, height,
+						BufferedImage.TYPE_INT_RGB);
+				backGraphics = backBuffer.getGraphics();
+				invalidateAllTiles();
+			}
+		}
+
+		int columns = (int) Math.ceil(Math.sqrt(count));
+		int rows = (count + columns - 1) / columns;
+		int tileWidth = width / columns, tileHeight = height / rows;
+		if (tileWidth <= 0 || tileHeight <= 0)
+			return;
+
+		for (int i = 0; i < count; i++) {
+			Tile tile = tiles.get(i);
+			int x = (i % columns) * tileWidth, y = (i / columns) * tileHeight;
+			if (tile.render(tileWidth, tileHeight)) {
+				synchronized (bufferLock) {
+					backGraphics.drawImage(tile.image, x, y, null);
+				}
+				repaint(x, y, tileWidth, tileHeight);
+			}
+		}
+	}
+
+	/**
+	 * A single stream in the wall. The tile receives the frames of its stream
+	 * as a session listener, but only keeps the most recent one; frames
+	 * received between two renders are never decoded.
+	 */
+	public class Tile implements SessionListener {
+
+		private final String name;
+		private final AtomicReference<Frame> latestFrame = new AtomicReference<Frame>();
+		private volatile boolean invalid = true;
+		private volatile boolean cleared = false;
+
+		// Used only by the render thread
+		private BufferedImage image;
+		private BufferedImage lastDecoded;
+		private long framesInWindow = 0;
+		private long windowStart = System.nanoTime();
+
+		private volatile double frameRate = 0;
+		private volatile long renderTime = 0;
+
+		private Tile(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void exceptionThrown(RTSPException exception) {
+		}
+
+		@Override
+		public void frameReceived(Frame frame) {
+			if (frame == null)
+				cleared = true;
+			latestFrame.set(frame);
+		}
+
+		@Override
+		public void videoNameChanged(String videoName) {
+		}
+
+		/**
+		 * Returns the number of frames rendered per second in this tile,
+		 * measured over the last second.
+		 *
+		 * @return The frame rate of the tile.
+		 */
+		public double getFrameRate() {
+			return frameRate;
+		}
+
+		/**
+		 * Returns the time taken to decode and scale the last frame rendered
+		 * in this tile.
+		 *
+		 * @return The render time, in nanoseconds.
+		 */
+		public long getRenderTime() {
+			return renderTime;
+		}
+
+		/**
+		 * Renders the latest frame into the tile image, if the frame or the
+		 * tile size changed since the last render.
+		 *
+		 * @return <tt>true</tt> if the tile image was updated.
+		 */
+		private boolean render(int width, int height) {
+			long start = System.nanoTime();
+			Frame frame = latestFrame.getAndSet(null);
+			boolean resized = image == null || image.getWidth() != width
+					|| image.getHeight() != height;
+			if (frame == null && !invalid && !resized && !cleared)
+				return false;
+
+			invalid = false;
+			if (resized)
+				image = new BufferedImage(width, height,
+						BufferedImage.TYPE_INT_RGB);
+			if (cleared && frame == null) {
+				cleared = false;
+				lastDecoded = null;
+			} else if (frame != null) {
+				BufferedImage decoded = decode(frame, width, height);
+				if (decoded != null)
+					lastDecoded = decoded;
+			}
+
+			Graphics2D g = image.createGraphics();
+			try {
+				g.setColor(Color.BLACK);
+				g.fillRect(0, 0, width, height);
+				if (lastDecoded != null) {
+					double scale = Math.min(
+							(double) width / lastDecoded.getWidth(),
+							(double) height / lastDecoded.getHeight());
+					int scaledWidth = (int) (lastDecoded.getWidth() * scale);
+					int scaledHeight = (int) (lastDecoded.getHeight() * scale);
+					g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+							RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+					g.drawImage(lastDecoded, (width - scaledWidth) / 2,
+							(height - scaledHeight) / 2, scaledWidth,
+							scaledHeight, null);
+				}
+				updateStatistics(frame != null, start);
+				g.setColor(Color.WHITE);
+				g.drawString(String.format("%s  %.1f fps  %.1f ms", name,
+						frameRate, renderTime / 1e6), 4, height - 4);
+			} finally {
+				g.dispose();
+			}
+			return true;
+		}
+
+		private BufferedImage decode(Frame frame, int width, int height) {
+			try {
+				return decoder.decode(frame, width, height);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		private void updateStatistics(boolean newFrame, long start) {
+			long now = System.nanoTime();
+			if (newFrame) {
+				framesInWindow++;
+				renderTime = now - start;
+			}
+			if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+				frameRate = framesInWindow * 1e9 / (now - windowStart);
+				framesInWindow = 0;
+				windowStart = now;
+			}
+		}
+	}
+}